@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.Arrays;
+
+/**
+ * Enum for encapsulating methods of combining the RPKM values computed from
+ * multiple background BAM files
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public enum BackgroundCombineMethod {
+    MEAN {
+        public String toString() {
+            return "mean";
+        }
+    },
+    MEDIAN {
+        public String toString() {
+            return "median";
+        }
+    };
+
+    public static BackgroundCombineMethod fromString(String str) {
+        if(str.equalsIgnoreCase(BackgroundCombineMethod.MEAN.toString())) {
+            return BackgroundCombineMethod.MEAN;
+        } else if(str.equalsIgnoreCase(BackgroundCombineMethod.MEDIAN.toString())) {
+            return BackgroundCombineMethod.MEDIAN;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Combine the values. The array may be re-ordered.
+     */
+    public double combine(double[] values, int n) {
+        if(n == 0) return 0;
+
+        if(this == MEDIAN) {
+            Arrays.sort(values, 0, n);
+            if(n % 2 == 1) return values[n/2];
+            return (values[n/2-1]+values[n/2])/2.0;
+        }
+
+        double sum = 0;
+        for(int i = 0; i < n; i++) {
+            sum += values[i];
+        }
+        return sum/n;
+    }
+}
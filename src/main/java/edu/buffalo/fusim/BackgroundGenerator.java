@@ -17,8 +17,6 @@
 package edu.buffalo.fusim;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
@@ -39,18 +37,20 @@ public class BackgroundGenerator implements FusionGenerator {
 
         List<TranscriptRecord> transcripts = selector.select();
         if(transcripts.size() == 0) return fusions;
-        
-        Collections.sort(transcripts, new TranscriptCompare());
-        
+
+        double[] rpkm = new double[transcripts.size()];
+        for(int i = 0; i < rpkm.length; i++) {
+            rpkm[i] = transcripts.get(i).getRPKM();
+        }
+        QuantileBinner binner = new QuantileBinner(rpkm);
 
         if(GeneSelectionMethod.BINNED.equals(method)) {
             logger.info("Generating fusions using RPKM bins...");
-            // First bin genes into RPKM buckets
-            GeneBins geneBins = new GeneBins(nFusions);
-            geneBins.fill(transcripts);
+            // First bin genes into RPKM buckets of equal size
+            IntArrayList[] geneBins = binner.getQuantileBins(nFusions);
 
-            for(int i = 0; i < geneBins.size(); i++) {
-                IntArrayList b = geneBins.getBin(i);
+            for(int i = 0; i < geneBins.length; i++) {
+                IntArrayList b = geneBins[i];
                 b.trimToSize();
                 if(b.elements().length < genesPerFusion) {
                     logger.fatal("Not enough genes in this bin to generate fusion!");
@@ -69,23 +69,26 @@ public class BackgroundGenerator implements FusionGenerator {
                 fusions.add(new FusionGene(genes));
             }
         } else if(GeneSelectionMethod.EMPIRICAL.equals(method) ||
-                  GeneSelectionMethod.EMPIRICAL_STURGES.equals(method)) {
+                  GeneSelectionMethod.EMPIRICAL_STURGES.equals(method) ||
+                  GeneSelectionMethod.EMPIRICAL_FD.equals(method)) {
             logger.info("Generating fusions based on empirical background distribution...");
-            boolean sturges = false;
+            int nBins = binner.getSqrtBins();
             if(GeneSelectionMethod.EMPIRICAL_STURGES.equals(method)) {
                 logger.info("Using sturges method for computing bin sizes...");
-                sturges = true;
+                nBins = binner.getSturgesBins();
+            } else if(GeneSelectionMethod.EMPIRICAL_FD.equals(method)) {
+                logger.info("Using Freedman-Diaconis method for computing bin sizes...");
+                nBins = binner.getFreedmanDiaconisBins();
             }
 
-            // First bin genes into RPKM buckets
-            EmpiricalGeneBins geneBins = new EmpiricalGeneBins();
-            geneBins.fill(transcripts, sturges);
+            // First bin genes into RPKM buckets of equal width
+            IntArrayList[] geneBins = binner.getWidthBins(nBins);
 
             Random r = new Random();
             int[] distribution = new int[transcripts.size()];
             int index = 0;
-            for(int i = 0; i < geneBins.size(); i++) {
-                IntArrayList b = geneBins.getBin(i);
+            for(int i = 0; i < geneBins.length; i++) {
+                IntArrayList b = geneBins[i];
                 for(int j = 0; j < b.size(); j++) {
                     distribution[index] = i;    
                     index++;
@@ -97,7 +100,7 @@ public class BackgroundGenerator implements FusionGenerator {
 
                 for(int j = 0; j < genesPerFusion; j++) {
                     int binIndex = distribution[r.nextInt(distribution.length)];
-                    IntArrayList b = geneBins.getBin(binIndex);
+                    IntArrayList b = geneBins[binIndex];
                     TranscriptRecord tr = transcripts.get(b.get(r.nextInt(b.size())));
                     genes.add(tr);
 
@@ -119,104 +122,6 @@ public class BackgroundGenerator implements FusionGenerator {
         
         return fusions;
     }
-  
-    protected class TranscriptCompare implements Comparator<TranscriptRecord> {
-        public int compare(TranscriptRecord o1, TranscriptRecord o2) {
-            return Double.compare(o1.getRPKM(), o2.getRPKM());
-        }
-    }
-    
-    protected class GeneBins {
-        private IntArrayList[] bins;
-        private int binsize;
-        
-        public GeneBins(int binsize) {
-            this.binsize = binsize;
-        }
-        
-        public void fill(List<TranscriptRecord> values) {
-            if(values.size() < binsize) {
-                this.binsize = 1;
-            }
-
-            this.bins = new IntArrayList[binsize];
-            for(int i = 0; i < binsize; i++) {
-                bins[i] = new IntArrayList();
-            }
-
-            int inc = (int)Math.ceil(values.size()/binsize);
-            int binI = 0;
-            for(int i = 0; i < values.size(); i++) {
-                if((i+1)%inc == 0) {
-                    binI++;
-                    if(binI > binsize-1) binI = binsize-1;
-                }
-                bins[binI].add(i);
-            }
-        }
-        
-        public int size() {
-            return this.binsize;
-        }
-        
-        public IntArrayList getBin(int index) {
-            return this.bins[index];
-        }
-    }
-
-    protected class EmpiricalGeneBins {
-        private IntArrayList[] bins;
-        
-        public void fill(List<TranscriptRecord> values) {
-            this.fill(values, false);
-        }
-
-        public void fill(List<TranscriptRecord> values, boolean sturges) {
-            int binsize = (int)Math.sqrt(values.size());
-            if(sturges) {
-                binsize = (int)(Math.log(values.size()+1)/Math.log(2));
-            }
-
-            if(values.size() < binsize) {
-                binsize = 1;
-            }
-
-            IntArrayList[] tmpbins = new IntArrayList[binsize];
-            for(int i = 0; i < binsize; i++) {
-                tmpbins[i] = new IntArrayList();
-            }
-
-            TranscriptRecord min = values.get(0);
-            TranscriptRecord max = values.get(values.size()-1);
-
-            double inc = (max.getRPKM()-min.getRPKM())/binsize;
-            for(int i = 0; i < values.size(); i++) {
-                int index = (int)(values.get(i).getRPKM()/inc);
-                if(index > tmpbins.length-1) index = tmpbins.length - 1;
-                tmpbins[index].add(i);
-            }
-
-            List<IntArrayList> list = new ArrayList<IntArrayList>();
-            for(int i = 0; i < tmpbins.length; i++) {
-                IntArrayList b = tmpbins[i];
-                b.trimToSize();
-                if(b.size() > 0) list.add(b);
-            } 
-
-            this.bins = new IntArrayList[list.size()];
-            for(int i = 0; i < list.size(); i++) {
-                this.bins[i] = list.get(i);
-            }
-        }
-        
-        public int size() {
-            return this.bins.length;
-        }
-        
-        public IntArrayList getBin(int index) {
-            return this.bins[index];
-        }
-    }
 
     public void setGeneSelector(GeneSelector selector) {
         this.selector = selector;
@@ -16,59 +16,113 @@
 
 package edu.buffalo.fusim;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import net.sf.samtools.AbstractBAMFileIndex;
-import net.sf.samtools.BAMIndexMetaData;
-import net.sf.samtools.SAMFileReader;
-import net.sf.samtools.SAMRecord;
-import net.sf.samtools.SAMRecordIterator;
-
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import edu.buffalo.fusim.gtf.GTFParseException;
-
-
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
+
+import edu.buffalo.fusim.io.BamIndex;
+import edu.buffalo.fusim.io.BamIndexWriter;
+import edu.buffalo.fusim.io.SamtoolsView;
+import edu.buffalo.fusim.io.BamRecordScanner;
+
+/**
+ * Gene selector which computes the RPKM value of each transcript from one or
+ * more BAM files of background reads. The gene model is parsed once and the
+ * transcripts are split into chunks. Worker threads take the next chunk of
+ * any file from a shared cursor so all files are counted concurrently, each
+ * worker keeping its own reader per file. RPKM values are normalized per file
+ * and combined with the mean or median. A file which fails is logged and
+ * left out of the combined profile.
+ *
+ * Reads are counted with a BamRecordScanner which only decodes the fields
+ * needed for counting instead of building a full SAMRecord for every read.
+ * Transcripts are counted in genomic order and BGZF blocks are inflated
+ * ahead of the workers on a shared pool of threads. A mapped read is counted
+ * once for a transcript if any of its aligned blocks overlap an exon.
+ *
+ * With target regions (a gene panel) only the parts of the exons inside the
+ * merged targets are queried.
+ *
+ * A BAM file without an index is counted in a single sequential pass which
+ * also writes the index next to the file, so later runs use indexed access.
+ */
 public class BackgroundSelector implements GeneSelector {
     private static Log logger = LogFactory.getLog(BackgroundSelector.class);
-    
+
     private List<TranscriptRecord> transcripts;
-    private File geneModelFile;
-    private GeneModelParser parser;
+    private TranscriptOrder order;
+    private StaticSelector geneModel = new StaticSelector();
 
-    private ArrayBlockingQueue<TranscriptRecord> queue;
-    private File backgroundFile;
+    private List<File> backgroundFiles;
     private double rpkmCutoff;
     private int threads;
+    private double sampleFraction = 1.0;
+    private File reportFile;
+    private BackgroundCombineMethod combineMethod = BackgroundCombineMethod.MEAN;
+    private int minMappingQuality = 0;
+    private boolean excludeDuplicates = false;
+    private boolean excludeSecondary = false;
+    private TargetRegions targets;
+    private File referenceFile;
+    private ChimericCatalog chimericCatalog;
+    private File chimericReportFile;
+
+    /**
+     * Size of the genomic tiles sampled when estimating RPKM values
+     */
+    public static final int TILE_SIZE = 4096;
+
+    /**
+     * Number of transcripts counted by a worker at a time
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * z-score for the 95% confidence intervals of estimated RPKM values
+     */
+    private static final double Z_95 = 1.959964;
 
     public BackgroundSelector(File backgroundFile, double rpkmCutoff, int threads) {
-        this.queue = new ArrayBlockingQueue<TranscriptRecord>(1000);
-        this.backgroundFile = backgroundFile;
+        this(Arrays.asList(backgroundFile), rpkmCutoff, threads);
+    }
+
+    public BackgroundSelector(List<File> backgroundFiles, double rpkmCutoff, int threads) {
+        this.backgroundFiles = backgroundFiles;
         this.rpkmCutoff = rpkmCutoff;
         this.threads = threads;
     }
 
-    public List<TranscriptRecord> select() {
+    public synchronized List<TranscriptRecord> select() {
         if(transcripts == null) this.processBackgroundReads();
         return transcripts;
     }
 
+    public synchronized TranscriptOrder getOrder() {
+        if(order == null) order = new TranscriptOrder(this.select());
+        return order;
+    }
+
     public List<TranscriptRecord> select(String[] filter) {
         if(filter == null || filter.length == 0) return this.select();
 
-        if(transcripts == null) this.processBackgroundReads();
+        this.select();
 
         Map<String,Boolean> filterMap = new HashMap<String,Boolean>();
         for(String f : filter) {
@@ -77,7 +131,7 @@ public class BackgroundSelector implements GeneSelector {
 
         List<TranscriptRecord> filteredList = new ArrayList<TranscriptRecord>();
         for(TranscriptRecord r : transcripts) {
-            if(filterMap.containsKey(r.getGeneId()) 
+            if(filterMap.containsKey(r.getGeneId())
                || filterMap.containsKey(r.getChrom())
                || filterMap.containsKey(r.getTranscriptId())) {
                 filteredList.add(r);
@@ -88,37 +142,140 @@ public class BackgroundSelector implements GeneSelector {
 
     protected void processBackgroundReads() {
         logger.info("Processing background reads...");
-        logger.info("Computing RPKM values using " + threads + " threads...");
         long tstart = System.currentTimeMillis();
         this.transcripts = new ArrayList<TranscriptRecord>();
 
-        GeneModelProducer producer = new GeneModelProducer();
-        producer.start();
-
-        // Leave one thread for the GTF producer
-        if (threads > 1)
-            threads--;
-        ArrayList<GeneModelConsumer> consumers = new ArrayList<GeneModelConsumer>();
+        // Count in genomic order so each reader moves forward through the file
+        // and the blocks read ahead are the ones needed next
+        List<TranscriptRecord> model = geneModel.getOrder().byPosition();
+
+        int nFiles = backgroundFiles.size();
+        int chunks = (model.size()+CHUNK_SIZE-1)/CHUNK_SIZE;
+        BackgroundCount counts = new BackgroundCount(model, nFiles, chunks);
+        this.chimericCatalog = new ChimericCatalog(model, nFiles);
+
+        // Files without an index are counted in a single pass which also
+        // builds the index for later runs. CRAM files are always counted in
+        // a single pass over the output of samtools.
+        List<File> unindexed = new ArrayList<File>();
+        for(int f = 0; f < nFiles; f++) {
+            File bamFile = backgroundFiles.get(f);
+            if(SamtoolsView.isCram(bamFile) || !new File(bamFile.getAbsolutePath() + ".bai").canRead()) {
+                counts.setSwept(f);
+                unindexed.add(bamFile);
+            }
+        }
 
-        for (int i = 0; i < threads; i++) {
-            GeneModelConsumer consumer = new GeneModelConsumer(backgroundFile);
-            consumer.start();
-            consumers.add(consumer);
+        int nIndexed = nFiles-unindexed.size();
+        int nWorkers = Math.max(1, Math.min(threads, nIndexed*chunks));
+        logger.info("Computing RPKM values for "+model.size()+" transcripts in "+nFiles+" BAM files using " + nWorkers + " threads...");
+
+        // Shared by all readers. Workers inflate blocks themselves when the
+        // pool falls behind
+        ExecutorService inflaters = Executors.newFixedThreadPool(nWorkers);
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for(int f = 0; f < nFiles; f++) {
+            if(counts.isSwept(f) && SamtoolsView.isCram(backgroundFiles.get(f))) {
+                logger.info("Decoding CRAM file "+backgroundFiles.get(f).getName()+" with samtools, counting reads in a single pass");
+                workers.add(new BackgroundSweep(counts, f, inflaters));
+            } else if(counts.isSwept(f)) {
+                logger.info("Missing BAM index for "+backgroundFiles.get(f).getName()+", counting reads in a single pass and building the index");
+                workers.add(new BackgroundSweep(counts, f, inflaters));
+            }
+        }
+        for (int i = 0; nIndexed > 0 && i < nWorkers; i++) {
+            workers.add(new GeneModelConsumer(counts, inflaters));
+        }
+        for (Thread t : workers) {
+            t.start();
         }
 
         try {
-            producer.join();
-            for (GeneModelConsumer c : consumers) {
-                c.join();
+            for (Thread t : workers) {
+                t.join();
             }
-        } catch (InterruptedException e) {}
-        
+        } catch (InterruptedException e) {
+        } finally {
+            inflaters.shutdownNow();
+        }
+
         // Reduce
-        for(GeneModelConsumer c : consumers) {
-            for(TranscriptRecord t : c.getTranscripts()) {
-                transcripts.add(t);
+        int nOk = 0;
+        for(int f = 0; f < nFiles; f++) {
+            if(!counts.isFailed(f)) nOk++;
+        }
+        if(nOk == 0) {
+            throw new RuntimeException("Failed to compute RPKM values, no background BAM files could be processed");
+        }
+        if(nOk < nFiles) {
+            logger.warn("Combining RPKM values from "+nOk+" of "+nFiles+" BAM files");
+        }
+
+        long exonBases = 0;
+        long sampledBases = 0;
+        double[] rpkm = new double[nOk];
+        double[] lower = new double[nOk];
+        double[] upper = new double[nOk];
+        for(int i = 0; i < model.size(); i++) {
+            TranscriptRecord transcript = model.get(i);
+            int n = 0;
+            for(int f = 0; f < nFiles; f++) {
+                if(counts.isFailed(f)) continue;
+
+                int sampled = counts.getSampled(f, i);
+                int count = counts.getCount(f, i);
+
+                // Extrapolate the count from the sampled tiles to the whole transcript
+                double scale = sampled == 0 ? 0 : (double)transcript.getExonBases()/sampled;
+                double norm = Math.pow(10,9)/((double)counts.getTotalMappedReads(f)*transcript.getExonBases());
+                rpkm[n] = norm*scale*count;
+                lower[n] = rpkm[n];
+                upper[n] = rpkm[n];
+                if(sampleFraction < 1.0) {
+                    lower[n] = norm*scale*poissonLower(count);
+                    upper[n] = norm*scale*poissonUpper(count);
+                }
+                exonBases += transcript.getExonBases();
+                sampledBases += sampled;
+                n++;
+            }
+
+            double value = combineMethod.combine(rpkm, n);
+            if(value > rpkmCutoff) {
+                transcript.setRPKM(value);
+                transcript.setRPKMInterval(combineMethod.combine(lower, n), combineMethod.combine(upper, n));
+                transcripts.add(transcript);
+            }
+        }
+
+        if(sampleFraction < 1.0) {
+            logger.info("Estimated RPKM values from "+sampledBases+" of "+exonBases+" exon bases ("
+                        +String.format("%.2f", exonBases == 0 ? 0 : 100.0*sampledBases/exonBases)+"%)");
+        }
+        if(reportFile != null) {
+            this.writeReport(model, counts);
+        }
+
+        logger.info("Found "+chimericCatalog.size()+" gene pairs supported by discordant or split reads");
+
+        // The catalog only sees the reads visited while counting
+        String partial = null;
+        if(sampleFraction < 1.0) {
+            partial = "Partial catalog: only reads in the sampled fraction ("+sampleFraction+") of exon bases were scanned";
+        } else if(targets != null) {
+            partial = "Partial catalog: only reads in the target regions were scanned";
+        }
+        if(partial != null) {
+            logger.warn(partial+", gene pairs supported by chimeric reads elsewhere are missed");
+        }
+        if(chimericReportFile != null) {
+            try {
+                chimericCatalog.write(chimericReportFile, partial);
+                logger.info("Wrote chimeric read report: "+chimericReportFile.getAbsolutePath());
+            } catch(IOException e) {
+                logger.fatal("Failed to write chimeric read report: "+e.getMessage());
             }
-            c.clearTranscripts();
         }
 
         long tend = System.currentTimeMillis();
@@ -126,128 +283,677 @@ public class BackgroundSelector implements GeneSelector {
         logger.info("Finished processing background file in: "+totalTime + "s");
     }
 
-    protected class GeneModelProducer extends Thread {
-        private Log log = LogFactory.getLog(GeneModelProducer.class);
+    private void writeReport(List<TranscriptRecord> model, BackgroundCount counts) {
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8"));
+            out.println("#file\ttranscriptId\tgeneId\tchrom\texonBases\tsampledBases\treads\testimatedReads\trpkm\trpkmLower\trpkmUpper");
+            for(int f = 0; f < backgroundFiles.size(); f++) {
+                if(counts.isFailed(f)) continue;
+
+                String name = backgroundFiles.get(f).getName();
+                for(int i = 0; i < model.size(); i++) {
+                    TranscriptRecord transcript = model.get(i);
+                    int sampled = counts.getSampled(f, i);
+                    int count = counts.getCount(f, i);
+                    double scale = sampled == 0 ? 0 : (double)transcript.getExonBases()/sampled;
+                    double norm = Math.pow(10,9)/((double)counts.getTotalMappedReads(f)*transcript.getExonBases());
+                    double rpkm = norm*scale*count;
+                    double lower = sampleFraction < 1.0 ? norm*scale*poissonLower(count) : rpkm;
+                    double upper = sampleFraction < 1.0 ? norm*scale*poissonUpper(count) : rpkm;
+                    out.println(name+"\t"+transcript.getTranscriptId()+"\t"+transcript.getGeneId()+"\t"+transcript.getChrom()
+                                +"\t"+transcript.getExonBases()+"\t"+sampled+"\t"+count+"\t"+String.format("%.1f", scale*count)
+                                +"\t"+rpkm+"\t"+lower+"\t"+upper);
+                }
+            }
+            out.close();
+            logger.info("Wrote background report: "+reportFile.getAbsolutePath());
+        } catch(IOException e) {
+            logger.fatal("Failed to write background report: "+e.getMessage());
+        }
+    }
 
-        public void run() {
-            try {
-                BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(geneModelFile), "UTF-8"));
-
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("#")) continue;
-                    TranscriptRecord feature;
-                    try {
-                        feature = parser.parseLine(line);
-                        if(feature == null) continue;
-
-                        queue.put(feature);
-                    } catch (InterruptedException e) {
-                        log.fatal("InterruptedException while adding to queue: "
-                                + e.getMessage());
-                    } catch(GTFParseException e) {
-                        log.fatal("Failed to parse gene model line: "
-                                + e.getMessage());
-                    }
+    /**
+     * Regions of the transcript to count reads in as start, end pairs: the
+     * exons (clipped to the targets) or the sampled tiles of them. Adjacent
+     * sampled tiles are joined into a single region so reads spanning tile
+     * boundries are only counted once. If none of the tiles of a transcript
+     * are sampled the tile with the smallest hash is used. Returns the
+     * number of bases in the regions.
+     */
+    protected int getCountRegions(TranscriptRecord transcript, IntArrayList exons, IntArrayList regions) {
+        String chrom = transcript.getChrom();
+
+        // XXX do we want only coding exons here???
+        //for(int[] exon : feature.getCodingExons())
+        exons.clear();
+        for(int i = 0; i < transcript.getExonStarts().length; i++) {
+            if(targets == null) {
+                exons.add(transcript.getExonStarts()[i]);
+                exons.add(transcript.getExonEnds()[i]);
+            } else {
+                targets.clip(chrom, transcript.getExonStarts()[i], transcript.getExonEnds()[i], exons);
+            }
+        }
+
+        regions.clear();
+        int sampled = 0;
+        if(sampleFraction >= 1.0) {
+            for(int i = 0; i < exons.size(); i += 2) {
+                regions.add(exons.get(i));
+                regions.add(exons.get(i+1));
+                sampled += exons.get(i+1)-exons.get(i);
+            }
+            return sampled;
+        }
+
+        int minTile = -1;
+        double minHash = 2.0;
+        for(int i = 0; i < exons.size(); i += 2) {
+            int start = exons.get(i);
+            int end = exons.get(i+1);
+            int runStart = -1;
+            int runEnd = -1;
+            for(int tile = start/TILE_SIZE; tile <= (end-1)/TILE_SIZE; tile++) {
+                double h = tileHash(chrom, tile);
+                if(h < minHash) {
+                    minHash = h;
+                    minTile = tile;
+                }
+                if(h < sampleFraction) {
+                    if(runStart < 0) runStart = Math.max(start, tile*TILE_SIZE);
+                    runEnd = Math.min(end, (tile+1)*TILE_SIZE);
+                } else if(runStart >= 0) {
+                    regions.add(runStart);
+                    regions.add(runEnd);
+                    sampled += runEnd-runStart;
+                    runStart = -1;
+                }
+            }
+            if(runStart >= 0) {
+                regions.add(runStart);
+                regions.add(runEnd);
+                sampled += runEnd-runStart;
+            }
+        }
+
+        if(sampled == 0 && minTile >= 0) {
+            int tileStart = minTile*TILE_SIZE;
+            int tileEnd = tileStart+TILE_SIZE;
+            for(int i = 0; i < exons.size(); i += 2) {
+                int start = Math.max(tileStart, exons.get(i));
+                int end = Math.min(tileEnd, exons.get(i+1));
+                if(start < end) {
+                    regions.add(start);
+                    regions.add(end);
+                    sampled += end-start;
                 }
-            } catch (IOException e) {
-                log.fatal("I/O error while reading gene model file: " + e.getMessage());
+            }
+        }
+
+        return sampled;
+    }
+
+    /**
+     * Deterministically decide if a genomic tile is sampled. The same tiles
+     * are chosen for every run with the same sample fraction.
+     */
+    protected static double tileHash(String chrom, int tile) {
+        long h = chrom.hashCode()*0x9E3779B97F4A7C15L + tile;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h >>> 11)/(double)(1L << 53);
+    }
+
+    /**
+     * Lower bound of the 95% confidence interval of a Poisson count
+     * (Byar's approximation)
+     */
+    protected static double poissonLower(long k) {
+        if(k == 0) return 0;
+        double c = 1.0 - 1.0/(9.0*k) - Z_95/(3.0*Math.sqrt(k));
+        return k*c*c*c;
+    }
+
+    /**
+     * Upper bound of the 95% confidence interval of a Poisson count
+     * (Byar's approximation)
+     */
+    protected static double poissonUpper(long k) {
+        double c = 1.0 - 1.0/(9.0*(k+1)) + Z_95/(3.0*Math.sqrt(k+1));
+        return (k+1)*c*c*c;
+    }
+
+    /**
+     * Read counts of every transcript in every file shared by the workers.
+     * Each chunk of transcripts of a file is counted by exactly one worker.
+     */
+    protected class BackgroundCount {
+        private List<TranscriptRecord> model;
+        private int chunks;
+        private int[][] count;
+        private int[][] sampled;
+        private long[] totalMappedReads;
+        private BamIndex[] indexes;
+        private boolean[] failed;
+        private boolean[] swept;
+        private AtomicInteger cursor = new AtomicInteger(0);
+        private AtomicIntegerArray chunksDone;
+        private long tstart = System.currentTimeMillis();
+
+        public BackgroundCount(List<TranscriptRecord> model, int nFiles, int chunks) {
+            this.model = model;
+            this.chunks = chunks;
+            this.count = new int[nFiles][model.size()];
+            this.sampled = new int[nFiles][model.size()];
+            this.totalMappedReads = new long[nFiles];
+            this.indexes = new BamIndex[nFiles];
+            this.failed = new boolean[nFiles];
+            this.swept = new boolean[nFiles];
+            this.chunksDone = new AtomicIntegerArray(nFiles);
+        }
+
+        /**
+         * Returns the next unit of work. Files are interleaved so they all
+         * finish at about the same time. Returns -1 when done.
+         */
+        public int next() {
+            int unit = cursor.getAndIncrement();
+            return unit < chunks*failed.length ? unit : -1;
+        }
+
+        public int getFile(int unit) {
+            return unit % failed.length;
+        }
+
+        public int getChunkStart(int unit) {
+            return (unit / failed.length)*CHUNK_SIZE;
+        }
+
+        public int getChunkEnd(int unit) {
+            return Math.min(model.size(), getChunkStart(unit)+CHUNK_SIZE);
+        }
+
+        public List<TranscriptRecord> getModel() {
+            return model;
+        }
+
+        public void setCount(int file, int transcript, int count, int sampled) {
+            this.count[file][transcript] = count;
+            this.sampled[file][transcript] = sampled;
+        }
+
+        public int getCount(int file, int transcript) {
+            return count[file][transcript];
+        }
+
+        public int getSampled(int file, int transcript) {
+            return sampled[file][transcript];
+        }
+
+        /**
+         * Returns the index of the file, loading it on first use. The index
+         * is shared by all workers.
+         */
+        public synchronized BamIndex getIndex(int file) throws IOException {
+            if(indexes[file] == null) {
+                File bamFile = backgroundFiles.get(file);
+                File bamIndexFile = new File(bamFile.getAbsolutePath() + ".bai");
+                if (!bamIndexFile.canRead()) {
+                    throw new IOException("Missing BAM index. Please index your BAM file with: samtools index "+bamFile.getName());
+                }
+                indexes[file] = new BamIndex(bamIndexFile);
+                totalMappedReads[file] = indexes[file].getMappedCount();
+            }
+            return indexes[file];
+        }
+
+        public synchronized long getTotalMappedReads(int file) {
+            return totalMappedReads[file];
+        }
+
+        public synchronized void setTotalMappedReads(int file, long mapped) {
+            totalMappedReads[file] = mapped;
+        }
+
+        /**
+         * Mark the file as counted by a sweep of the whole file instead of
+         * by the workers
+         */
+        public synchronized void setSwept(int file) {
+            swept[file] = true;
+        }
+
+        public synchronized boolean isSwept(int file) {
+            return swept[file];
+        }
+
+        public synchronized boolean isFailed(int file) {
+            return failed[file];
+        }
+
+        public synchronized void fail(int file, String message) {
+            if(failed[file]) return;
+            failed[file] = true;
+            logger.fatal("Failed to process BAM file "+backgroundFiles.get(file).getAbsolutePath()+": "+message);
+        }
+
+        public void chunkDone(int file) {
+            if(chunksDone.incrementAndGet(file) == chunks) {
+                long tend = System.currentTimeMillis();
+                logger.info("Finished counting reads in "+backgroundFiles.get(file).getName()
+                            +" ("+(file+1)+" of "+failed.length+") in: "+((tend-tstart)/1000)+"s");
             }
         }
     }
 
     protected class GeneModelConsumer extends Thread {
-        private Log log = LogFactory.getLog(GeneModelProducer.class);
-        private SAMFileReader sam;
-        private int totalMappedReads;
-        private List<TranscriptRecord> list = new ArrayList<TranscriptRecord>();
-
-        public GeneModelConsumer(File bamFile) {
-            File bamIndexFile = new File(bamFile.getAbsolutePath() + ".bai");
-            if (bamIndexFile.canRead()) {
-                sam = new SAMFileReader(bamFile, bamIndexFile);
-            } else {
-                //XXX this needs to throw an error!!! we need a BAM index
-                sam = new SAMFileReader(bamFile);
+        private BackgroundCount counts;
+        private BamRecordScanner[] readers;
+        private ExecutorService inflaters;
+        private LongHashSet seen = new LongHashSet(1024);
+        private IntArrayList exons = new IntArrayList();
+        private IntArrayList regions = new IntArrayList();
+        private int skipFlags;
+
+        public GeneModelConsumer(BackgroundCount counts, ExecutorService inflaters) {
+            this.counts = counts;
+            this.inflaters = inflaters;
+            this.readers = new BamRecordScanner[backgroundFiles.size()];
+
+            this.skipFlags = BamRecordScanner.FLAG_UNMAPPED;
+            if(excludeDuplicates) skipFlags |= BamRecordScanner.FLAG_DUPLICATE;
+            if(excludeSecondary) skipFlags |= BamRecordScanner.FLAG_SECONDARY | BamRecordScanner.FLAG_SUPPLEMENTARY;
+        }
+
+        private BamRecordScanner getReader(int file) throws IOException {
+            if(readers[file] == null) {
+                readers[file] = new BamRecordScanner(backgroundFiles.get(file), counts.getIndex(file), inflaters);
             }
+            return readers[file];
+        }
 
-            AbstractBAMFileIndex index = (AbstractBAMFileIndex) sam.getIndex();
+        public void run() {
+            List<TranscriptRecord> model = counts.getModel();
+            int unit;
+            while((unit = counts.next()) >= 0) {
+                int file = counts.getFile(unit);
+                if(counts.isFailed(file) || counts.isSwept(file)) continue;
+
+                try {
+                    BamRecordScanner sam = getReader(file);
+                    for(int i = counts.getChunkStart(unit); i < counts.getChunkEnd(unit); i++) {
+                        countTranscript(sam, file, i, model.get(i));
+                    }
+                    counts.chunkDone(file);
+                } catch(IOException e) {
+                    counts.fail(file, e.getMessage());
+                } catch(RuntimeException e) {
+                    counts.fail(file, e.getMessage());
+                }
+            }
 
-            totalMappedReads = 0;
-            for (int i = 0; i < index.getNumberOfReferences(); i++) {
-                BAMIndexMetaData meta = index.getMetaData(i);
-                totalMappedReads += meta.getAlignedRecordCount();
+            for(BamRecordScanner sam : readers) {
+                try {
+                    if(sam != null) sam.close();
+                } catch(IOException e) {}
             }
+        }
 
-            //logger.warn("Total Mapped Reads found: "+totalMappedReads);
+        private void countTranscript(BamRecordScanner sam, int file, int index, TranscriptRecord transcript) throws IOException {
+            int count = 0;
+            seen.clear();
+            int sampled = getCountRegions(transcript, exons, regions);
+            for(int i = 0; i < regions.size(); i += 2) {
+                count += countReads(sam, file, transcript.getChrom(), regions.get(i), regions.get(i+1));
+            }
+            counts.setCount(file, index, count, sampled);
         }
-        
-        public List<TranscriptRecord> getTranscripts() {
-            return this.list;
+
+        /**
+         * Count the reads with an aligned block overlapping the region. A read
+         * is only counted once per transcript no matter how many exons (or
+         * sampled regions) it overlaps, using the record offset as its id.
+         * Counted reads are also offered to the chimeric read catalog.
+         */
+        private int countReads(BamRecordScanner sam, int file, String chrom, int start, int end) throws IOException {
+            int count = 0;
+            if(!sam.query(chrom, start, end)) return 0;
+
+            while (sam.next()) {
+                if((sam.getFlag() & skipFlags) != 0) continue;
+                if(sam.getMappingQuality() < minMappingQuality) continue;
+                if(!sam.overlapsAlignedBlocks(start, end)) continue;
+
+                if(seen.add(sam.getRecordOffset())) {
+                    count++;
+                    chimericCatalog.add(file, sam);
+                }
+            }
+
+            return count;
         }
+    }
 
-        public void clearTranscripts() {
-            this.list = new ArrayList<TranscriptRecord>();
+    /**
+     * Counts the reads of every transcript in a single sequential pass over
+     * a BAM file without an index, building the index (.bai) as it goes, or
+     * over a CRAM file decoded by samtools.
+     * The count regions of all transcripts are sorted by start for each
+     * reference and swept along with the reads, so each read is only
+     * checked against the regions it may overlap.
+     */
+    protected class BackgroundSweep extends Thread {
+        private BackgroundCount counts;
+        private int file;
+        private ExecutorService inflaters;
+        private int skipFlags;
+
+        public BackgroundSweep(BackgroundCount counts, int file, ExecutorService inflaters) {
+            this.counts = counts;
+            this.file = file;
+            this.inflaters = inflaters;
+
+            this.skipFlags = BamRecordScanner.FLAG_UNMAPPED;
+            if(excludeDuplicates) skipFlags |= BamRecordScanner.FLAG_DUPLICATE;
+            if(excludeSecondary) skipFlags |= BamRecordScanner.FLAG_SECONDARY | BamRecordScanner.FLAG_SUPPLEMENTARY;
         }
 
         public void run() {
-            TranscriptRecord transcript;
+            long tstart = System.currentTimeMillis();
+            File bamFile = backgroundFiles.get(file);
+            if(SamtoolsView.isCram(bamFile)) {
+                this.runCram(bamFile, tstart);
+                return;
+            }
+
+            BamRecordScanner sam = null;
+            try {
+                sam = new BamRecordScanner(bamFile, null, inflaters);
+                BamIndexWriter index = this.sweep(sam);
+                counts.setTotalMappedReads(file, index.getMappedCount());
+
+                long tend = System.currentTimeMillis();
+                logger.info("Finished counting reads in "+bamFile.getName()+" ("+(file+1)+" of "+backgroundFiles.size()+") in: "+((tend-tstart)/1000)+"s");
 
-            while (true) {
+                File indexFile = new File(bamFile.getAbsolutePath() + ".bai");
                 try {
-                    transcript = queue.poll(100, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    log.fatal("Interrupted exception while consuming: "
-                            + e.getMessage());
-                    return;
+                    index.write(indexFile);
+                    logger.info("Wrote BAM index: "+indexFile.getAbsolutePath());
+                } catch(IOException e) {
+                    logger.warn("Failed to write BAM index "+indexFile.getAbsolutePath()+": "+e.getMessage());
                 }
-                if (transcript == null)
-                    break;
-
-                int count = 0;
-                // XXX do we want only coding exons here???
-                //for(int[] exon : feature.getCodingExons()) 
-                for(int i = 0; i < transcript.getExonStarts().length; i++) {
-                    // XXX end-1 here???
-                    int start = transcript.getExonStarts()[i];
-                    int end = transcript.getExonEnds()[i];
-                    SAMRecordIterator it = sam.queryOverlapping(transcript.getChrom(), start, end);
-
-                    while (it.hasNext()) {
-                        SAMRecord samRecord = it.next();
-                        // XXX do we require the mate to be mapped??
-                        //if(samRecord.getReadUnmappedFlag() || samRecord.getMateUnmappedFlag()) continue;
-                        //if(samRecord.getReadUnmappedFlag()) continue;
-                        if(!samRecord.getReadUnmappedFlag() || !samRecord.getMateUnmappedFlag()) {
-                            count++;
-                        }
-                    }
+            } catch(IOException e) {
+                counts.fail(file, e.getMessage());
+            } catch(RuntimeException e) {
+                counts.fail(file, e.getMessage());
+            } finally {
+                try {
+                    if(sam != null) sam.close();
+                } catch(IOException e) {}
+            }
+        }
 
-                    it.close();
+        /**
+         * With targets and a CRAM index only the slices overlapping the
+         * targets are decoded, the total mapped reads then come from the
+         * index statistics.
+         */
+        private void runCram(File cramFile, long tstart) {
+            BamRecordScanner sam = null;
+            try {
+                if(referenceFile == null) {
+                    throw new IOException("Reading CRAM requires the reference genome");
+                }
+                File regionsFile = null;
+                if(targets != null && SamtoolsView.getCramIndex(cramFile).canRead()) {
+                    regionsFile = targets.getBedFile();
                 }
-                Double rpkm = (Math.pow(10,9)*(double)count)/((double)totalMappedReads*transcript.getExonBases());
-                if(rpkm > rpkmCutoff) {
-                    transcript.setRPKM(rpkm);
-                    list.add(transcript);
+
+                sam = new BamRecordScanner(SamtoolsView.open(SamtoolsView.DEFAULT_SAMTOOLS_BIN, cramFile, referenceFile, regionsFile));
+                BamIndexWriter index = this.sweep(sam);
+                if(regionsFile == null) {
+                    counts.setTotalMappedReads(file, index.getMappedCount());
+                } else {
+                    counts.setTotalMappedReads(file, SamtoolsView.getMappedCount(SamtoolsView.DEFAULT_SAMTOOLS_BIN, cramFile));
                 }
+
+                long tend = System.currentTimeMillis();
+                logger.info("Finished counting reads in "+cramFile.getName()+" ("+(file+1)+" of "+backgroundFiles.size()+") in: "+((tend-tstart)/1000)+"s");
+            } catch(IOException e) {
+                counts.fail(file, e.getMessage());
+            } catch(RuntimeException e) {
+                counts.fail(file, e.getMessage());
+            } finally {
+                try {
+                    if(sam != null) sam.close();
+                } catch(IOException e) {}
             }
         }
+
+        private BamIndexWriter sweep(BamRecordScanner sam) throws IOException {
+            List<TranscriptRecord> model = counts.getModel();
+            int nRef = sam.getNumberOfReferences();
+
+            // Count regions of each reference as start << 32 | region id
+            IntArrayList exons = new IntArrayList();
+            IntArrayList regions = new IntArrayList();
+            IntArrayList regionStart = new IntArrayList();
+            IntArrayList regionEnd = new IntArrayList();
+            IntArrayList regionTranscript = new IntArrayList();
+            LongArrayList[] byRef = new LongArrayList[nRef];
+            int[] sampled = new int[model.size()];
+            for(int t = 0; t < model.size(); t++) {
+                TranscriptRecord transcript = model.get(t);
+                sampled[t] = getCountRegions(transcript, exons, regions);
+                int ref = sam.getReferenceIndex(transcript.getChrom());
+                if(ref < 0) continue;
+                if(byRef[ref] == null) byRef[ref] = new LongArrayList();
+                for(int i = 0; i < regions.size(); i += 2) {
+                    byRef[ref].add(((long)regions.get(i) << 32) | regionStart.size());
+                    regionStart.add(regions.get(i));
+                    regionEnd.add(regions.get(i+1));
+                    regionTranscript.add(t);
+                }
+            }
+            int[][] sorted = new int[nRef][];
+            for(int r = 0; r < nRef; r++) {
+                if(byRef[r] == null) continue;
+                byRef[r].sort();
+                sorted[r] = new int[byRef[r].size()];
+                for(int i = 0; i < sorted[r].length; i++) {
+                    sorted[r][i] = (int)byRef[r].get(i);
+                }
+                byRef[r] = null;
+            }
+
+            BamIndexWriter index = new BamIndexWriter(nRef);
+            int[] count = new int[model.size()];
+            long[] lastRead = new long[model.size()];
+            IntArrayList active = new IntArrayList();
+            int[] refRegions = null;
+            int curRef = -1;
+            int next = 0;
+            long read = 0;
+
+            while(sam.nextRecord()) {
+                read++;
+                int ref = sam.getReferenceIndex();
+                int pos = sam.getAlignmentStart();
+                boolean unmapped = sam.getReadUnmappedFlag();
+                int end = ref < 0 || unmapped ? pos+1 : sam.getAlignmentEnd();
+                index.add(ref, pos, end, unmapped, sam.getRecordOffset(), sam.getFilePointer());
+
+                if(ref != curRef) {
+                    curRef = ref;
+                    refRegions = ref < 0 ? null : sorted[ref];
+                    next = 0;
+                    active.clear();
+                }
+                if(refRegions == null) continue;
+                if((sam.getFlag() & skipFlags) != 0) continue;
+                if(sam.getMappingQuality() < minMappingQuality) continue;
+
+                while(next < refRegions.length && regionStart.getQuick(refRegions[next]) < end) {
+                    active.add(refRegions[next++]);
+                }
+
+                // Reads are sorted so regions ending before this read are done
+                boolean counted = false;
+                int k = 0;
+                for(int a = 0; a < active.size(); a++) {
+                    int id = active.getQuick(a);
+                    if(regionEnd.getQuick(id) <= pos) continue;
+                    active.setQuick(k++, id);
+
+                    int t = regionTranscript.getQuick(id);
+                    if(lastRead[t] != read && sam.overlapsAlignedBlocks(regionStart.getQuick(id), regionEnd.getQuick(id))) {
+                        lastRead[t] = read;
+                        count[t]++;
+                        counted = true;
+                    }
+                }
+                active.setSize(k);
+                if(counted) chimericCatalog.add(file, sam);
+            }
+
+            for(int t = 0; t < model.size(); t++) {
+                counts.setCount(file, t, count[t], sampled[t]);
+            }
+            return index;
+        }
+    }
+
+    public List<File> getBackgroundFiles() {
+        return this.backgroundFiles;
+    }
+
+    public BackgroundCombineMethod getCombineMethod() {
+        return this.combineMethod;
+    }
+
+    /**
+     * Set the method used to combine the RPKM values of multiple BAM files
+     */
+    public void setCombineMethod(BackgroundCombineMethod combineMethod) {
+        this.combineMethod = combineMethod;
+    }
+
+    public int getMinMappingQuality() {
+        return this.minMappingQuality;
+    }
+
+    /**
+     * Only count reads with at least this mapping quality
+     */
+    public void setMinMappingQuality(int minMappingQuality) {
+        this.minMappingQuality = minMappingQuality;
+    }
+
+    public boolean isExcludeDuplicates() {
+        return this.excludeDuplicates;
+    }
+
+    /**
+     * Don't count reads flagged as PCR or optical duplicates
+     */
+    public void setExcludeDuplicates(boolean excludeDuplicates) {
+        this.excludeDuplicates = excludeDuplicates;
+    }
+
+    public boolean isExcludeSecondary() {
+        return this.excludeSecondary;
+    }
+
+    /**
+     * Don't count secondary or supplementary alignments
+     */
+    public void setExcludeSecondary(boolean excludeSecondary) {
+        this.excludeSecondary = excludeSecondary;
+    }
+
+    public double getSampleFraction() {
+        return this.sampleFraction;
+    }
+
+    /**
+     * Estimate RPKM values by only counting the reads in a random fraction of
+     * the genomic tiles covered by each transcript
+     */
+    public void setSampleFraction(double sampleFraction) {
+        this.sampleFraction = sampleFraction;
+    }
+
+    public TargetRegions getTargetRegions() {
+        return this.targets;
+    }
+
+    /**
+     * Only count reads in the parts of each exon covered by the targets.
+     * Counts are extrapolated to the whole transcript the same as sampled
+     * tiles.
+     */
+    public void setTargetRegions(TargetRegions targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Gene pairs supported by discordant or split reads found while counting
+     * the background reads, null until the reads are counted
+     */
+    public ChimericCatalog getChimericCatalog() {
+        return this.chimericCatalog;
+    }
+
+    public File getChimericReportFile() {
+        return this.chimericReportFile;
+    }
+
+    /**
+     * Write the gene pairs supported by discordant or split reads to this file
+     */
+    public void setChimericReportFile(File chimericReportFile) {
+        this.chimericReportFile = chimericReportFile;
+    }
+
+    public File getReferenceFile() {
+        return this.referenceFile;
+    }
+
+    /**
+     * Reference genome (FASTA) used to decode CRAM background files
+     */
+    public void setReferenceFile(File referenceFile) {
+        this.referenceFile = referenceFile;
+    }
+
+    public File getReportFile() {
+        return this.reportFile;
+    }
+
+    /**
+     * Write the read counts and RPKM values of every transcript to this file
+     */
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
     }
 
     public File getGeneModelFile() {
-        return this.geneModelFile;
+        return geneModel.getGeneModelFile();
     }
 
     public void setGeneModelFile(File geneModelFile) {
-        this.geneModelFile = geneModelFile;
+        geneModel.setGeneModelFile(geneModelFile);
     }
 
     public GeneModelParser getGeneModelParser() {
-        return this.parser;
+        return geneModel.getGeneModelParser();
     }
 
     public void setGeneModelParser(GeneModelParser parser) {
-        this.parser = parser;
+        geneModel.setGeneModelParser(parser);
     }
 
     public static void main(String[] args) throws Exception {
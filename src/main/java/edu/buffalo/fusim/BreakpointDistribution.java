@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+/**
+ * Enum for encapsulating the distributions fusion breaks are drawn from
+ * 
+ * @author Andrew E. Bruno
+ * 
+ */
+public enum BreakpointDistribution {
+    UNIFORM {
+        public String toString() {
+            return "uniform";
+        }
+    },
+    FIVE_PRIME {
+        public String toString() {
+            return "5prime";
+        }
+    },
+    THREE_PRIME {
+        public String toString() {
+            return "3prime";
+        }
+    },
+    EXON_LENGTH {
+        public String toString() {
+            return "exon-length";
+        }
+    },
+    HOTSPOT {
+        public String toString() {
+            return "hotspot";
+        }
+    };
+    
+    public static BreakpointDistribution fromString(String str) {
+        if(str.equalsIgnoreCase(BreakpointDistribution.UNIFORM.toString())) {
+            return BreakpointDistribution.UNIFORM;
+        } else if(str.equalsIgnoreCase(BreakpointDistribution.FIVE_PRIME.toString())) {
+            return BreakpointDistribution.FIVE_PRIME;
+        } else if(str.equalsIgnoreCase(BreakpointDistribution.THREE_PRIME.toString())) {
+            return BreakpointDistribution.THREE_PRIME;
+        } else if(str.equalsIgnoreCase(BreakpointDistribution.EXON_LENGTH.toString())) {
+            return BreakpointDistribution.EXON_LENGTH;
+        } else if(str.equalsIgnoreCase(BreakpointDistribution.HOTSPOT.toString())) {
+            return BreakpointDistribution.HOTSPOT;
+        } else {
+            return null;
+        }
+    }
+}
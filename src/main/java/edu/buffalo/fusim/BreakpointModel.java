@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.io.IOUtils;
+
+import edu.buffalo.fusim.gtf.Strand;
+
+/**
+ * Draws fusion breaks from a distribution over the exons of each transcript.
+ * The weight of each break is computed once per transcript into a cumulative
+ * table, so a break is sampled with a binary search in O(log E) no matter
+ * how the weights are distributed. Breaks are indexed in transcript order:
+ *
+ * <ul>
+ *   <li>uniform: every exon is equally likely</li>
+ *   <li>5prime: the weight of exon k of n is n-k, favouring the 5' end</li>
+ *   <li>3prime: the weight of exon k is k+1, favouring the 3' end</li>
+ *   <li>exon-length: the weight of an exon is its length</li>
+ *   <li>hotspot: only the exons listed in a hotspot file (with their
+ *       weights) are used for listed transcripts, all others are uniform</li>
+ * </ul>
+ *
+ * The hotspot file is tab delimited: gene or transcript id, exon number
+ * (1-based, in transcript order) and an optional weight (default 1).
+ * Thread safe.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BreakpointModel {
+    private static final int BREAK = 0;
+    private static final int BOUNDRY = 1;
+
+    private BreakpointDistribution distribution;
+    private Map<String, Map<Integer, Double>> hotspots;
+    private ConcurrentMap<TranscriptRecord, AtomicReferenceArray<Table>> tables = new ConcurrentHashMap<TranscriptRecord, AtomicReferenceArray<Table>>();
+
+    public BreakpointModel(BreakpointDistribution distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * Hotspot model reading the hotspots from the file
+     */
+    public BreakpointModel(File hotspotFile) throws IOException {
+        this.distribution = BreakpointDistribution.HOTSPOT;
+        this.hotspots = new HashMap<String, Map<Integer, Double>>();
+
+        BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(hotspotFile), "UTF-8"));
+        try {
+            String line = null;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#") || line.trim().length() == 0) continue;
+
+                String[] fields = line.split("\t");
+                if(fields.length < 2) {
+                    throw new IOException("Invalid hotspot file line "+lineNumber+", expected at least 2 columns");
+                }
+                int exon;
+                double weight = 1;
+                try {
+                    exon = Integer.parseInt(fields[1].trim());
+                    if(fields.length > 2) weight = Double.parseDouble(fields[2].trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid hotspot file line "+lineNumber+", can't parse number: "+e.getMessage());
+                }
+                if(exon < 1 || weight < 0) {
+                    throw new IOException("Invalid hotspot file line "+lineNumber+", exon must be >= 1 and weight >= 0");
+                }
+
+                String id = fields[0].trim();
+                Map<Integer, Double> exons = hotspots.get(id);
+                if(exons == null) {
+                    exons = new HashMap<Integer, Double>();
+                    hotspots.put(id, exons);
+                }
+                Double previous = exons.get(exon-1);
+                exons.put(exon-1, previous == null ? weight : previous+weight);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public BreakpointDistribution getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Exon indexes (in genomic order) of one side of a break. The 5' side
+     * keeps the exons up to and including the break exon, the 3' side the
+     * exons from the break exon on.
+     */
+    public int[] sampleExonBreak(TranscriptRecord tr, boolean keepFirstHalf, boolean cdsOnly, Random rgen) {
+        List<int []> exonList = tr.getExons(cdsOnly);
+        if(exonList.size() == 0) {
+            throw new RuntimeException("Missing exons: \n"+tr.toString());
+        }
+
+        int n = exonList.size();
+        int breakIndex = getTable(tr, cdsOnly, BREAK).sample(rgen);
+        int start = keepFirstHalf ? 0 : breakIndex;
+        int end = keepFirstHalf ? breakIndex : n-1;
+
+        // Transcript order index k is genomic index n-1-k on the reverse
+        // strand, so the genomic indexes are a contiguous ascending run
+        boolean reverse = Strand.REVERSE.equals(tr.getStrand());
+        int first = reverse ? n-1-end : start;
+        int[] exonIndicies = new int[(end-start)+1];
+        for(int i = 0; i < exonIndicies.length; i++) {
+            exonIndicies[i] = first+i;
+        }
+        return exonIndicies;
+    }
+
+    /**
+     * Exon indexes (in genomic order) of a break on an exon boundary which
+     * keeps the reading frame
+     */
+    public int[] sampleExonBoundryBreak(TranscriptRecord tr, boolean cdsOnly, Random rgen) {
+        Table table = getTable(tr, cdsOnly, BOUNDRY);
+        if(table.breaks.size() == 0) {
+            throw new RuntimeException("No valid exon breaks found: \n"+tr.toString());
+        }
+
+        int[] exonIndicies = table.breaks.get(table.sample(rgen)).clone();
+        if(Strand.REVERSE.equals(tr.getStrand())) {
+            for(int i = 0, j = exonIndicies.length-1; i < j; i++, j--) {
+                int tmp = exonIndicies[i];
+                exonIndicies[i] = exonIndicies[j];
+                exonIndicies[j] = tmp;
+            }
+        }
+        return exonIndicies;
+    }
+
+    /**
+     * Frame aligned offset into the exon at which to split it, drawn
+     * uniformly from the multiples of 3 less than the exon length
+     */
+    public static int sampleTrim(int[] exon, Random rgen) {
+        int length = exon[1]-exon[0];
+        return 3*rgen.nextInt((length+2)/3);
+    }
+
+    private Table getTable(TranscriptRecord tr, boolean cdsOnly, int kind) {
+        int slot = (cdsOnly ? 2 : 0) + kind;
+        AtomicReferenceArray<Table> t = tables.get(tr);
+        if(t == null) {
+            AtomicReferenceArray<Table> empty = new AtomicReferenceArray<Table>(4);
+            t = tables.putIfAbsent(tr, empty);
+            if(t == null) t = empty;
+        }
+
+        // Tables are immutable, if two threads build the same table the
+        // first one published is kept
+        Table table = t.get(slot);
+        if(table == null) {
+            table = kind == BREAK ? this.buildBreakTable(tr, cdsOnly) : this.buildBoundryTable(tr, cdsOnly);
+            if(!t.compareAndSet(slot, null, table)) table = t.get(slot);
+        }
+        return table;
+    }
+
+    private Table buildBreakTable(TranscriptRecord tr, boolean cdsOnly) {
+        List<int []> exons = tr.getExons(cdsOnly);
+        int n = exons.size();
+        double[] weights = new double[n];
+        for(int k = 0; k < n; k++) {
+            weights[k] = this.getWeight(tr, exons, k);
+        }
+        return new Table(weights, null);
+    }
+
+    /**
+     * The weight of a boundary break is the weight of the last exon kept
+     */
+    private Table buildBoundryTable(TranscriptRecord tr, boolean cdsOnly) {
+        List<int []> exons = tr.getExons(cdsOnly);
+        List<int []> breaks = tr.getValidExonBoundryBreaks(cdsOnly);
+        double[] weights = new double[breaks.size()];
+        for(int i = 0; i < weights.length; i++) {
+            weights[i] = this.getWeight(tr, exons, breaks.get(i).length-1);
+        }
+        return new Table(weights, breaks);
+    }
+
+    /**
+     * Weight of the k-th exon in transcript order
+     */
+    private double getWeight(TranscriptRecord tr, List<int []> exons, int k) {
+        int n = exons.size();
+        switch(distribution) {
+            case FIVE_PRIME:
+                return n-k;
+            case THREE_PRIME:
+                return k+1;
+            case EXON_LENGTH:
+                int[] exon = exons.get(Strand.REVERSE.equals(tr.getStrand()) ? n-1-k : k);
+                return exon[1]-exon[0];
+            case HOTSPOT:
+                Map<Integer, Double> exonWeights = hotspots.get(tr.getTranscriptId());
+                if(exonWeights == null) exonWeights = hotspots.get(tr.getGeneId());
+                if(exonWeights == null) return 1;
+                Double weight = exonWeights.get(k);
+                return weight == null ? 0 : weight;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Cumulative weights of the breaks of a transcript. If every weight is
+     * zero the breaks are uniform.
+     */
+    private static class Table {
+        public final double[] cumulative;
+        public final List<int []> breaks;
+
+        public Table(double[] weights, List<int []> breaks) {
+            this.breaks = breaks;
+            this.cumulative = new double[weights.length];
+            double total = 0;
+            for(int i = 0; i < weights.length; i++) {
+                total += weights[i];
+                cumulative[i] = total;
+            }
+            if(total <= 0) {
+                for(int i = 0; i < weights.length; i++) {
+                    cumulative[i] = i+1;
+                }
+            }
+        }
+
+        /**
+         * Index of the first cumulative weight above a uniform draw
+         */
+        public int sample(Random rgen) {
+            int n = cumulative.length;
+            double u = rgen.nextDouble()*cumulative[n-1];
+            int lo = 0;
+            int hi = n-1;
+            while(lo < hi) {
+                int mid = (lo+hi) >>> 1;
+                if(cumulative[mid] <= u) {
+                    lo = mid+1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.buffalo.fusim.gtf.Strand;
+
+/**
+ * Replays a catalog of known fusions. The catalog is a tab delimited file
+ * with one fusion per line:
+ *
+ * <pre>
+ *   #5' partner  3' partner  [5' break  3' break]
+ *   BCR          ABL1
+ *   NM_004327    NM_005157   13         2
+ *   TMPRSS2      ERG         chr21:42880008  chr21:39956869
+ * </pre>
+ *
+ * Partners are transcript ids or gene ids (a random transcript of the gene
+ * is used). Breaks are optional and given for both partners or neither:
+ * either the exon number (1-based, in transcript order) of the last exon of
+ * the 5' partner and the first exon of the 3' partner, or a 1-based genomic
+ * position which is snapped to the nearest exon boundary. Fusions without
+ * breaks get random breaks like any other fusion.
+ *
+ * Partners are found with hash indexes of the transcript and gene ids of the
+ * selector's transcripts, built once. The catalog is streamed, each call to
+ * generate() reads the next rows. Rows with partners or breaks not found in
+ * the gene model are skipped with a warning.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class CatalogGenerator implements FusionGenerator {
+    private static Log logger = LogFactory.getLog(CatalogGenerator.class);
+
+    private File catalogFile;
+    private boolean cdsOnly;
+    private GeneSelector selector;
+    private Random random = new Random();
+
+    private Map<String, TranscriptRecord> transcriptIndex;
+    private Map<String, List<TranscriptRecord>> geneIndex;
+    private BufferedReader reader;
+    private boolean done = false;
+    private int lineNumber = 0;
+    private int rows = 0;
+    private int skipped = 0;
+
+    /**
+     * @param catalogFile fusion catalog
+     * @param cdsOnly exon numbers and breaks refer to the coding exons
+     */
+    public CatalogGenerator(File catalogFile, boolean cdsOnly) {
+        this.catalogFile = catalogFile;
+        this.cdsOnly = cdsOnly;
+    }
+
+    /**
+     * Source of the transcripts picked for gene partners, set to reproduce
+     * a run
+     */
+    void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Returns the fusions of the next nFusions rows of the catalog which
+     * could be resolved, fewer at the end of the catalog. The number of
+     * genes of each fusion is given by the catalog, genesPerFusion is
+     * ignored.
+     */
+    public List<FusionGene> generate(int nFusions, int genesPerFusion) {
+        List<FusionGene> list = new ArrayList<FusionGene>();
+        if(done) return list;
+
+        try {
+            if(reader == null) this.open();
+
+            String line = null;
+            while(list.size() < nFusions && (line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#") || line.trim().length() == 0) continue;
+
+                rows++;
+                FusionGene f = this.parseRow(line.split("\t"));
+                if(f == null) {
+                    skipped++;
+                } else {
+                    list.add(f);
+                }
+            }
+            if(line == null) this.close();
+        } catch(IOException e) {
+            this.close();
+            throw new RuntimeException("Failed to read fusion catalog: "+e.getMessage(), e);
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns true once every row of the catalog has been read
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    private void open() throws IOException {
+        transcriptIndex = new HashMap<String, TranscriptRecord>();
+        geneIndex = new HashMap<String, List<TranscriptRecord>>();
+        for(TranscriptRecord tr : selector.select()) {
+            transcriptIndex.put(tr.getTranscriptId(), tr);
+            List<TranscriptRecord> transcripts = geneIndex.get(tr.getGeneId());
+            if(transcripts == null) {
+                transcripts = new ArrayList<TranscriptRecord>(1);
+                geneIndex.put(tr.getGeneId(), transcripts);
+            }
+            transcripts.add(tr);
+        }
+        reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(catalogFile), "UTF-8"));
+    }
+
+    private void close() {
+        if(done) return;
+        done = true;
+        IOUtils.closeQuietly(reader);
+        logger.info("Replayed "+(rows-skipped)+" of "+rows+" fusions from catalog "+catalogFile.getName());
+    }
+
+    private FusionGene parseRow(String[] fields) throws IOException {
+        if(fields.length < 2) {
+            throw new IOException("Invalid fusion catalog line "+lineNumber+", expected at least 2 columns");
+        }
+        String break1 = fields.length > 2 ? fields[2].trim() : "";
+        String break2 = fields.length > 3 ? fields[3].trim() : "";
+        boolean hasBreaks = break1.length() > 0 && !".".equals(break1);
+        if(hasBreaks != (break2.length() > 0 && !".".equals(break2))) {
+            throw new IOException("Invalid fusion catalog line "+lineNumber+", give breaks for both partners or neither");
+        }
+
+        List<TranscriptRecord> partners1 = this.lookup(fields[0].trim());
+        List<TranscriptRecord> partners2 = this.lookup(fields[1].trim());
+        if(partners1 == null || partners2 == null) {
+            logger.warn("Skipping fusion catalog line "+lineNumber+", partner not found in gene model: "
+                        +(partners1 == null ? fields[0] : fields[1]));
+            return null;
+        }
+
+        if(!hasBreaks) {
+            return new FusionGene(partners1.get(random.nextInt(partners1.size())),
+                                  partners2.get(random.nextInt(partners2.size())));
+        }
+
+        // Pick a random transcript of each partner the break is valid for
+        List<TranscriptRecord> valid1 = new ArrayList<TranscriptRecord>();
+        List<int []> breaks1 = new ArrayList<int []>();
+        List<TranscriptRecord> valid2 = new ArrayList<TranscriptRecord>();
+        List<int []> breaks2 = new ArrayList<int []>();
+        for(TranscriptRecord tr : partners1) {
+            int[] exons = this.getBreak(tr, break1, true);
+            if(exons != null) {
+                valid1.add(tr);
+                breaks1.add(exons);
+            }
+        }
+        for(TranscriptRecord tr : partners2) {
+            int[] exons = this.getBreak(tr, break2, false);
+            if(exons != null) {
+                valid2.add(tr);
+                breaks2.add(exons);
+            }
+        }
+        if(valid1.size() == 0 || valid2.size() == 0) {
+            logger.warn("Skipping fusion catalog line "+lineNumber+", break not within the exons of "
+                        +(valid1.size() == 0 ? fields[0]+": "+break1 : fields[1]+": "+break2));
+            return null;
+        }
+
+        int i = random.nextInt(valid1.size());
+        int j = random.nextInt(valid2.size());
+        List<int []> breaks = new ArrayList<int []>();
+        breaks.add(breaks1.get(i));
+        breaks.add(breaks2.get(j));
+        FusionGene f = new FusionGene(valid1.get(i), valid2.get(j));
+        f.setBreaks(breaks);
+        return f;
+    }
+
+    /**
+     * Transcripts of a transcript or gene id, or null if not found
+     */
+    private List<TranscriptRecord> lookup(String id) {
+        TranscriptRecord tr = transcriptIndex.get(id);
+        if(tr != null) {
+            List<TranscriptRecord> list = new ArrayList<TranscriptRecord>(1);
+            list.add(tr);
+            return list;
+        }
+        return geneIndex.get(id);
+    }
+
+    /**
+     * Exon indexes (in genomic order) kept by the break of the transcript,
+     * or null if the break is not valid for the transcript
+     *
+     * @param fivePrime true for the 5' partner, which keeps the exons up to
+     *                  the break, false for the 3' partner which keeps the
+     *                  exons from the break on
+     */
+    private int[] getBreak(TranscriptRecord tr, String token, boolean fivePrime) throws IOException {
+        List<int []> exons = tr.getExons(cdsOnly);
+        int n = exons.size();
+        if(n == 0) return null;
+        boolean reverse = Strand.REVERSE.equals(tr.getStrand());
+
+        int colon = token.indexOf(':');
+        if(colon < 0) {
+            int exon;
+            try {
+                exon = Integer.parseInt(token);
+            } catch(NumberFormatException e) {
+                throw new IOException("Invalid fusion catalog line "+lineNumber+", invalid break: "+token);
+            }
+            if(exon < 1 || exon > n) return null;
+            return fivePrime ? JunctionEnumerator.getPrefixBreak(tr, exon, cdsOnly)
+                             : JunctionEnumerator.getSuffixBreak(tr, exon-1, cdsOnly);
+        }
+
+        // chrom:pos with an optional :strand, as written by most fusion callers
+        String chrom = token.substring(0, colon);
+        String rest = token.substring(colon+1);
+        int strandColon = rest.indexOf(':');
+        if(strandColon >= 0) rest = rest.substring(0, strandColon);
+        int pos;
+        try {
+            pos = Integer.parseInt(rest.replace(",", ""))-1;
+        } catch(NumberFormatException e) {
+            throw new IOException("Invalid fusion catalog line "+lineNumber+", invalid break: "+token);
+        }
+        if(!chrom.equals(tr.getChrom()) || pos < tr.getTxStart() || pos >= tr.getTxEnd()) return null;
+
+        // Snap to the nearest exon boundary. The 5' partner breaks after the
+        // last base of an exon, the 3' partner before the first base.
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for(int k = 0; k < n; k++) {
+            int[] exon = exons.get(reverse ? n-1-k : k);
+            int boundary;
+            if(fivePrime) {
+                boundary = reverse ? exon[0] : exon[1]-1;
+            } else {
+                boundary = reverse ? exon[1]-1 : exon[0];
+            }
+            long distance = Math.abs((long)boundary-pos);
+            if(distance < bestDistance) {
+                best = k;
+                bestDistance = distance;
+            }
+        }
+        return fivePrime ? JunctionEnumerator.getPrefixBreak(tr, best+1, cdsOnly)
+                         : JunctionEnumerator.getSuffixBreak(tr, best, cdsOnly);
+    }
+
+    public void setGeneSelector(GeneSelector selector) {
+        this.selector = selector;
+    }
+
+    public GeneSelector getGeneSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Ignored, the partners of each fusion are named by the catalog
+     */
+    public void setGeneSelectionMethod(GeneSelectionMethod method) {
+    }
+
+    public GeneSelectionMethod getGeneSelectionMethod() {
+        return null;
+    }
+
+    /**
+     * Ignored, the partners of each fusion are named by the catalog
+     */
+    public void setFilters(List<String[]> filters) {
+    }
+
+    public List<String[]> getFilters() {
+        return null;
+    }
+}
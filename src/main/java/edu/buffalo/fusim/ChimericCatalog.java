@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cern.colt.list.IntArrayList;
+
+import edu.buffalo.fusim.io.BamRecordScanner;
+
+/**
+ * Catalog of gene pairs supported by chimeric reads in the background BAM
+ * files, built while the reads are counted. A pair is supported by
+ * discordant reads, whose mate is on another chromosome or not properly
+ * paired and falls in another gene, and by split reads, whose supplementary
+ * alignments (SA tag) fall in another gene. Fusions of these gene pairs may
+ * already be in the sample, so simulating them contaminates the truth set.
+ *
+ * Genes are given compact ids and each pair is packed into a long, so the
+ * counts are kept in primitive maps. Counts are per alignment, a discordant
+ * pair with both ends counted supports the pair twice. Thread safe.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ChimericCatalog {
+    private Map<String, Integer> geneIndex = new HashMap<String, Integer>();
+    private List<String> genes = new ArrayList<String>();
+    private Map<String, Loci> chroms = new HashMap<String, Loci>();
+    private LongIntHashMap discordant = new LongIntHashMap();
+    private LongIntHashMap split = new LongIntHashMap();
+    private LongHashSet[] seen;
+
+    /**
+     * @param model transcripts sorted by chromosome and start
+     * @param nFiles number of BAM files
+     */
+    public ChimericCatalog(List<TranscriptRecord> model, int nFiles) {
+        this.seen = new LongHashSet[nFiles];
+        for(int f = 0; f < nFiles; f++) {
+            seen[f] = new LongHashSet();
+        }
+
+        int i = 0;
+        while(i < model.size()) {
+            String chrom = model.get(i).getChrom();
+            int j = i;
+            while(j < model.size() && chrom.equals(model.get(j).getChrom())) j++;
+
+            Loci loci = new Loci(j-i);
+            int maxEnd = 0;
+            for(int k = i; k < j; k++) {
+                TranscriptRecord tr = model.get(k);
+                Integer gene = geneIndex.get(tr.getGeneId());
+                if(gene == null) {
+                    gene = genes.size();
+                    geneIndex.put(tr.getGeneId(), gene);
+                    genes.add(tr.getGeneId());
+                }
+                maxEnd = Math.max(maxEnd, tr.getTxEnd());
+                loci.starts[k-i] = tr.getTxStart();
+                loci.ends[k-i] = tr.getTxEnd();
+                loci.maxEnds[k-i] = maxEnd;
+                loci.genes[k-i] = gene;
+            }
+            chroms.put(chrom, loci);
+            i = j;
+        }
+    }
+
+    /**
+     * Add the current record of the scanner if it is a discordant or split
+     * read. Each record is only added once per file.
+     */
+    public void add(int file, BamRecordScanner sam) throws IOException {
+        int flag = sam.getFlag();
+        int ref = sam.getReferenceIndex();
+        boolean isDiscordant = (flag & BamRecordScanner.FLAG_PAIRED) != 0
+                               && (flag & BamRecordScanner.FLAG_MATE_UNMAPPED) == 0
+                               && (sam.getMateReferenceIndex() != ref || (flag & BamRecordScanner.FLAG_PROPER_PAIR) == 0);
+        String sa = sam.isClipped() ? sam.getStringTag("SA") : null;
+        if(!isDiscordant && sa == null) return;
+
+        IntArrayList readGenes = new IntArrayList();
+        lookup(sam.getReferenceName(ref), sam.getAlignmentStart(), sam.getAlignmentEnd(), readGenes);
+        if(readGenes.isEmpty()) return;
+
+        IntArrayList mateGenes = new IntArrayList();
+        if(isDiscordant) {
+            int matePos = sam.getMateAlignmentStart();
+            lookup(sam.getReferenceName(sam.getMateReferenceIndex()), matePos, matePos+1, mateGenes);
+        }
+
+        // SA:Z:chrom,pos,strand,CIGAR,mapq,NM; with 1-based positions
+        IntArrayList splitGenes = new IntArrayList();
+        if(sa != null) {
+            for(String alignment : sa.split(";")) {
+                String[] fields = alignment.split(",");
+                if(fields.length < 2) continue;
+                try {
+                    int pos = Integer.parseInt(fields[1])-1;
+                    lookup(fields[0], pos, pos+1, splitGenes);
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid SA tag: "+sa);
+                }
+            }
+        }
+
+        synchronized(this) {
+            if(!seen[file].add(sam.getRecordOffset())) return;
+            addPairs(discordant, readGenes, mateGenes);
+            addPairs(split, readGenes, splitGenes);
+        }
+    }
+
+    /**
+     * Count the pairs of genes, skipping genes found at both ends
+     */
+    private static void addPairs(LongIntHashMap counts, IntArrayList a, IntArrayList b) {
+        for(int i = 0; i < a.size(); i++) {
+            int g = a.getQuick(i);
+            if(b.contains(g)) continue;
+            for(int j = 0; j < b.size(); j++) {
+                int h = b.getQuick(j);
+                if(a.contains(h)) continue;
+                counts.increment(getKey(g, h), 1);
+            }
+        }
+    }
+
+    private static long getKey(int g, int h) {
+        return g < h ? ((long)g << 32) | h : ((long)h << 32) | g;
+    }
+
+    /**
+     * Add the ids of the genes with a transcript overlapping [start, end)
+     */
+    private void lookup(String chrom, int start, int end, IntArrayList out) {
+        Loci loci = chrom == null ? null : chroms.get(chrom);
+        if(loci == null) return;
+
+        // Last transcript starting before the end
+        int lo = 0;
+        int hi = loci.starts.length;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(loci.starts[mid] < end) {
+                lo = mid+1;
+            } else {
+                hi = mid;
+            }
+        }
+        for(int i = lo-1; i >= 0 && loci.maxEnds[i] > start; i--) {
+            if(loci.ends[i] > start && !out.contains(loci.genes[i])) {
+                out.add(loci.genes[i]);
+            }
+        }
+    }
+
+    /**
+     * Number of reads supporting the gene pair, in either order
+     */
+    public synchronized int getSupport(String geneA, String geneB) {
+        Integer g = geneIndex.get(geneA);
+        Integer h = geneIndex.get(geneB);
+        if(g == null || h == null || g.intValue() == h.intValue()) return 0;
+        long key = getKey(g, h);
+        return discordant.get(key)+split.get(key);
+    }
+
+    /**
+     * Returns true if any pair of consecutive genes of the fusion is
+     * supported by chimeric reads
+     */
+    public boolean isSupported(FusionGene f) {
+        for(int i = 1; i < f.size(); i++) {
+            if(getSupport(f.getGene(i-1).getGeneId(), f.getGene(i).getGeneId()) > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of gene pairs supported by chimeric reads
+     */
+    public synchronized int size() {
+        int n = discordant.size();
+        for(long key : split.keys()) {
+            if(!discordant.containsKey(key)) n++;
+        }
+        return n;
+    }
+
+    public synchronized void write(File file) throws IOException {
+        this.write(file, null);
+    }
+
+    /**
+     * Write the catalog
+     *
+     * @param note comment written before the column header, such as why the
+     *             catalog is partial (may be null)
+     */
+    public synchronized void write(File file, String note) throws IOException {
+        LongHashSet written = new LongHashSet(discordant.size()+split.size());
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if(note != null) out.println("# "+note);
+            out.println("#geneA\tgeneB\tdiscordantReads\tsplitReads");
+            for(LongIntHashMap counts : new LongIntHashMap[]{discordant, split}) {
+                for(long key : counts.keys()) {
+                    if(!written.add(key)) continue;
+                    out.println(genes.get((int)(key >>> 32))+"\t"+genes.get((int)key)
+                                +"\t"+discordant.get(key)+"\t"+split.get(key));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Transcripts of a chromosome sorted by start. The running maximum of
+     * the ends bounds the search for transcripts overlapping a position.
+     */
+    private static class Loci {
+        public int[] starts;
+        public int[] ends;
+        public int[] maxEnds;
+        public int[] genes;
+
+        public Loci(int size) {
+            starts = new int[size];
+            ends = new int[size];
+            maxEnds = new int[size];
+            genes = new int[size];
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.util.SequenceUtil;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Library of donor sequences (viral genomes, intronic or intergenic
+ * fragments) for foreign insertions. Each FASTA file is indexed (using its
+ * samtools faidx .fai index, or an index built in memory if there is none)
+ * and memory mapped once, so the donors are never loaded into the heap.
+ * Fragments are sampled uniformly over all donor bases. Each run of bases
+ * on a line is bulk copied from the mapping into a reusable per thread
+ * buffer and appended to the caller's buffer, reverse complemented half of
+ * the time.
+ *
+ * The mappings are read only and can be shared by any number of threads.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class DonorLibrary {
+    private static Log logger = LogFactory.getLog(DonorLibrary.class);
+
+    /**
+     * Size of each mapped segment of a FASTA file
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT)-1;
+
+    private List<Donor> donors = new ArrayList<Donor>();
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    /**
+     * Cumulative number of bases of the donors, used to pick the donor of a
+     * fragment in proportion to its length
+     */
+    private long[] cumulative;
+
+    public DonorLibrary(List<File> fastaFiles) throws IOException {
+        for(File fastaFile : fastaFiles) {
+            this.load(fastaFile);
+        }
+
+        cumulative = new long[donors.size()];
+        long total = 0;
+        for(int i = 0; i < cumulative.length; i++) {
+            total += donors.get(i).length;
+            cumulative[i] = total;
+        }
+        if(total == 0) {
+            throw new IOException("No donor sequences found in FASTA file(s): "+fastaFiles);
+        }
+
+        logger.info("Loaded "+donors.size()+" donor sequences ("+total+" bases) from "+fastaFiles.size()+" FASTA file(s)");
+    }
+
+    private void load(File fastaFile) throws IOException {
+        File indexFile = new File(fastaFile.getAbsolutePath()+".fai");
+        List<Donor> index;
+        if(indexFile.canRead() && indexFile.lastModified() >= fastaFile.lastModified()) {
+            index = readIndex(indexFile);
+        } else {
+            // Donor files may be in a shared or read only directory, the
+            // index is only kept in memory
+            logger.info("No up to date .fai index, indexing donor FASTA file in memory (index it with samtools faidx to skip this): "+fastaFile.getAbsolutePath());
+            index = buildIndex(fastaFile);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(fastaFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int)((size+SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for(int i = 0; i < segments.length; i++) {
+                long start = (long)i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK+1, size-start));
+            }
+
+            for(Donor d : index) {
+                if(d.length == 0) continue;
+                if(d.lineBases <= 0 || d.lineWidth < d.lineBases || d.offset+d.getFileOffset(d.length-1) >= size) {
+                    throw new IOException("Invalid index for donor sequence "+d.name+", reindex "+fastaFile.getAbsolutePath()+" with samtools faidx");
+                }
+                d.segments = segments;
+                donors.add(d);
+            }
+        } finally {
+            // The mappings stay valid after the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Read a samtools faidx index: name, length, offset, line bases, line
+     * width
+     */
+    private static List<Donor> readIndex(File indexFile) throws IOException {
+        List<Donor> index = new ArrayList<Donor>();
+        BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String line = null;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.trim().length() == 0) continue;
+                String[] fields = line.split("\t");
+                if(fields.length < 5) {
+                    throw new IOException("Invalid FASTA index line "+lineNumber+": "+indexFile.getAbsolutePath());
+                }
+                try {
+                    Donor d = new Donor();
+                    d.name = fields[0];
+                    d.length = Long.parseLong(fields[1]);
+                    d.offset = Long.parseLong(fields[2]);
+                    d.lineBases = Integer.parseInt(fields[3]);
+                    d.lineWidth = Integer.parseInt(fields[4]);
+                    index.add(d);
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid FASTA index line "+lineNumber+", can't parse number: "+e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    /**
+     * Index the FASTA file in one pass, the same as samtools faidx. Every
+     * line of a sequence except the last must have the same length.
+     */
+    private static List<Donor> buildIndex(File fastaFile) throws IOException {
+        List<Donor> index = new ArrayList<Donor>();
+        InputStream in = new BufferedInputStream(new FileInputStream(fastaFile), 65536);
+        try {
+            long offset = 0;
+            Donor d = null;
+            boolean lastLine = false;
+            StringBuilder header = new StringBuilder();
+            int c = in.read();
+            while(c != -1) {
+                if(c == '>') {
+                    header.setLength(0);
+                    offset++;
+                    while((c = in.read()) != -1 && c != '\n') {
+                        header.append((char)c);
+                        offset++;
+                    }
+                    if(c == '\n') offset++;
+                    String name = header.toString().trim().split("\\s+")[0];
+                    if(name.length() == 0) {
+                        throw new IOException("Missing sequence name in donor FASTA file: "+fastaFile.getAbsolutePath());
+                    }
+                    d = new Donor();
+                    d.name = name;
+                    d.offset = offset;
+                    index.add(d);
+                    lastLine = false;
+                    c = in.read();
+                    continue;
+                }
+
+                int bases = 0;
+                int width = 0;
+                while(c != -1 && c != '\n') {
+                    if(c != '\r') bases++;
+                    width++;
+                    c = in.read();
+                }
+                boolean terminated = c == '\n';
+                if(terminated) width++;
+                offset += width;
+                if(c != -1) c = in.read();
+
+                if(bases == 0) {
+                    lastLine = d != null && d.lineBases > 0;
+                    continue;
+                }
+                if(d == null) {
+                    throw new IOException("Sequence before the first header in donor FASTA file: "+fastaFile.getAbsolutePath());
+                }
+                if(d.lineBases == 0) {
+                    d.lineBases = bases;
+                    d.lineWidth = width;
+                } else if(lastLine || bases > d.lineBases
+                          || (terminated && width-bases != d.lineWidth-d.lineBases)) {
+                    throw new IOException("Donor sequence "+d.name+" has lines of different lengths: "+fastaFile.getAbsolutePath());
+                }
+                if(bases < d.lineBases) lastLine = true;
+                d.length += bases;
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Append a donor fragment of 1 to maxLen bases to the buffer. Fragments
+     * are never longer than the donor they are drawn from.
+     */
+    public void appendFragment(StringBuilder buf, int maxLen, Random rgen) {
+        int length = rgen.nextInt(maxLen)+1;
+
+        // First donor whose cumulative length is past a random base
+        long pick = (long)(rgen.nextDouble()*cumulative[cumulative.length-1]);
+        int lo = 0;
+        int hi = cumulative.length-1;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(cumulative[mid] <= pick) {
+                lo = mid+1;
+            } else {
+                hi = mid;
+            }
+        }
+        Donor d = donors.get(lo);
+
+        if(length > d.length) length = (int)d.length;
+        long start = Math.min((long)(rgen.nextDouble()*(d.length-length+1)), d.length-length);
+
+        byte[] bases = buffers.get();
+        if(bases.length < length) {
+            bases = new byte[Math.max(length, bases.length*2)];
+            buffers.set(bases);
+        }
+        d.read(bases, start, length);
+
+        buf.ensureCapacity(buf.length()+length);
+        if(rgen.nextBoolean()) {
+            for(int i = length-1; i >= 0; i--) {
+                buf.append((char)SequenceUtil.complement(bases[i]));
+            }
+        } else {
+            for(int i = 0; i < length; i++) {
+                buf.append((char)bases[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return donors.size();
+    }
+
+    /**
+     * One indexed donor sequence
+     */
+    private static class Donor {
+        private String name;
+        private long length;
+        private long offset;
+        private int lineBases;
+        private int lineWidth;
+        private MappedByteBuffer[] segments;
+
+        /**
+         * Offset of the base from the start of the sequence
+         */
+        public long getFileOffset(long base) {
+            return (base/lineBases)*lineWidth + base%lineBases;
+        }
+
+        /**
+         * Copy length bases starting at start into the buffer, one bulk copy
+         * for each run of bases on a line (split where a run crosses a
+         * segment)
+         */
+        public void read(byte[] bases, long start, int length) {
+            long pos = offset+getFileOffset(start);
+            int column = (int)(start%lineBases);
+            int n = 0;
+            while(n < length) {
+                int run = Math.min(lineBases-column, length-n);
+                int segment = (int)(pos >>> SEGMENT_SHIFT);
+                int segmentPos = (int)(pos & SEGMENT_MASK);
+                run = Math.min(run, segments[segment].capacity()-segmentPos);
+
+                // A duplicate has its own position, so the mapping can be
+                // shared between threads
+                ByteBuffer view = segments[segment].duplicate();
+                view.position(segmentPos);
+                view.get(bases, n, run);
+
+                n += run;
+                pos += run;
+                column += run;
+                if(column == lineBases) {
+                    column = 0;
+                    pos += lineWidth-lineBases;
+                }
+            }
+        }
+    }
+}
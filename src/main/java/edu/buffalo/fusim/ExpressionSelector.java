@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Gene selector which reads expression values from an existing
+ * quantification table instead of scanning a BAM file. The table is tab
+ * delimited with a header line and the gene or transcript id in the first
+ * column. Supported formats include featureCounts, salmon (quant.sf) and RSEM
+ * (genes.results/isoforms.results). The expression value is taken from the
+ * FPKM or RPKM column if one exists, otherwise read counts (NumReads in
+ * salmon, est_counts in kallisto) are converted to RPKM using the effective
+ * length (EffectiveLength in salmon, effective_length in RSEM, eff_length in
+ * kallisto) or, if there is none, the Length column. The effective length is
+ * the number of positions a fragment can start at, so it matches how the
+ * counts were estimated. Tables with only a TPM column use the TPM values in
+ * place of RPKM, so the RPKM cutoff (-k) is applied to TPM.
+ *
+ * Transcripts are joined to the table by transcriptId and then geneId,
+ * ignoring any version suffix (ENST00000335137.3). Transcripts not found in
+ * the table or below the cutoff are dropped.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ExpressionSelector implements GeneSelector {
+    private static Log logger = LogFactory.getLog(ExpressionSelector.class);
+
+    private static final String[] VALUE_COLUMNS = new String[]{"FPKM", "RPKM"};
+    private static final String[] COUNT_COLUMNS = new String[]{"expected_count", "NumReads", "est_counts", "count", "counts"};
+    private static final String[] LENGTH_COLUMNS = new String[]{"EffectiveLength", "effective_length", "eff_length", "Length"};
+
+    private StaticSelector geneModel = new StaticSelector();
+    private List<TranscriptRecord> transcripts;
+    private TranscriptOrder order;
+    private File expressionFile;
+    private double rpkmCutoff;
+
+    public ExpressionSelector(File expressionFile, double rpkmCutoff) {
+        this.expressionFile = expressionFile;
+        this.rpkmCutoff = rpkmCutoff;
+    }
+
+    public synchronized List<TranscriptRecord> select() {
+        if(transcripts == null) this.joinExpression();
+        return transcripts;
+    }
+
+    public synchronized TranscriptOrder getOrder() {
+        if(order == null) order = new TranscriptOrder(this.select());
+        return order;
+    }
+
+    public List<TranscriptRecord> select(String[] filter) {
+        if(filter == null || filter.length == 0) return this.select();
+
+        this.select();
+
+        Map<String,Boolean> filterMap = new HashMap<String,Boolean>();
+        for(String f : filter) {
+            filterMap.put(f,true);
+        }
+
+        List<TranscriptRecord> filteredList = new ArrayList<TranscriptRecord>();
+        for(TranscriptRecord r : transcripts) {
+            if(filterMap.containsKey(r.getGeneId())
+               || filterMap.containsKey(r.getChrom())
+               || filterMap.containsKey(r.getTranscriptId())) {
+                filteredList.add(r);
+            }
+        }
+        return filteredList;
+    }
+
+    private void joinExpression() {
+        logger.info("Loading expression table...");
+        long tstart = System.currentTimeMillis();
+
+        Map<String, Double> expression = null;
+        try {
+            expression = parseExpression(expressionFile);
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to read expression file", e);
+        }
+
+        this.transcripts = new ArrayList<TranscriptRecord>();
+        int missing = 0;
+        for(TranscriptRecord t : geneModel.select()) {
+            Double rpkm = lookup(expression, t.getTranscriptId());
+            if(rpkm == null) rpkm = lookup(expression, t.getGeneId());
+            if(rpkm == null) {
+                missing++;
+                continue;
+            }
+
+            if(rpkm > rpkmCutoff) {
+                t.setRPKM(rpkm);
+                t.setRPKMInterval(rpkm, rpkm);
+                transcripts.add(t);
+            }
+        }
+
+        long tend = System.currentTimeMillis();
+        double totalTime = ((tend - tstart)/1000);
+        logger.info("Joined "+transcripts.size()+" transcripts above the RPKM cutoff ("+missing+" not found in expression table) in: "+totalTime + "s");
+        if(transcripts.size() == 0) {
+            throw new RuntimeException("No transcripts found in expression table! Check the ids match the gene model");
+        }
+    }
+
+    /**
+     * Expression values of the table keyed by id (and id without version)
+     */
+    static Map<String, Double> parseExpression(File expressionFile) throws IOException {
+        Map<String, Double> expression = new HashMap<String, Double>();
+        BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(expressionFile), "UTF-8"));
+
+        try {
+            String[] header = null;
+            String line = null;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#") || line.trim().length() == 0) continue;
+                header = line.split("\t");
+                break;
+            }
+            if(header == null) {
+                throw new IOException("Missing header line in expression file");
+            }
+
+            int valueColumn = findColumn(header, VALUE_COLUMNS);
+            int lengthColumn = -1;
+            if(valueColumn >= 0) {
+                logger.info("Using expression values from column: "+header[valueColumn]);
+            } else {
+                // No normalized values, convert read counts to RPKM
+                lengthColumn = findColumn(header, LENGTH_COLUMNS);
+                valueColumn = findColumn(header, COUNT_COLUMNS);
+                int tpmColumn = findColumn(header, new String[]{"TPM"});
+                if(valueColumn < 0 && lengthColumn >= 0 && tpmColumn < 0) {
+                    // featureCounts puts the counts in the last column named after the BAM file
+                    valueColumn = header.length-1;
+                }
+                if(lengthColumn >= 0 && valueColumn >= 0 && valueColumn != lengthColumn) {
+                    logger.info("Converting read counts in column "+header[valueColumn]+" to RPKM using the lengths in column "+header[lengthColumn]);
+                } else if(tpmColumn >= 0) {
+                    // TPM can't be converted to RPKM without read counts
+                    lengthColumn = -1;
+                    valueColumn = tpmColumn;
+                    logger.warn("No FPKM, RPKM or read count column, using TPM in place of RPKM (the RPKM cutoff is applied to TPM)");
+                } else {
+                    throw new IOException("Expression file must have an FPKM, RPKM or TPM column or read counts and a Length column");
+                }
+            }
+
+            List<String> ids = new ArrayList<String>();
+            List<double[]> values = new ArrayList<double[]>();
+            double totalCount = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#") || line.trim().length() == 0) continue;
+
+                String[] fields = line.split("\t");
+                if(fields.length <= Math.max(valueColumn, lengthColumn)) {
+                    throw new IOException("Invalid expression file line "+lineNumber+", expected "+header.length+" columns");
+                }
+                try {
+                    double value = Double.parseDouble(fields[valueColumn]);
+                    double length = lengthColumn >= 0 ? Double.parseDouble(fields[lengthColumn]) : 0;
+                    ids.add(fields[0]);
+                    values.add(new double[]{value, length});
+                    totalCount += value;
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid expression file line "+lineNumber+", can't parse number: "+e.getMessage());
+                }
+            }
+
+            for(int i = 0; i < ids.size(); i++) {
+                double[] v = values.get(i);
+                double rpkm = v[0];
+                if(lengthColumn >= 0) {
+                    rpkm = v[1] > 0 && totalCount > 0 ? (Math.pow(10,9)*v[0])/(totalCount*v[1]) : 0;
+                }
+                String id = ids.get(i);
+                expression.put(id, rpkm);
+                String unversioned = stripVersion(id);
+                if(!expression.containsKey(unversioned)) {
+                    expression.put(unversioned, rpkm);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return expression;
+    }
+
+    private static int findColumn(String[] header, String[] names) {
+        for(String name : names) {
+            for(int i = 1; i < header.length; i++) {
+                if(name.equalsIgnoreCase(header[i].trim())) return i;
+            }
+        }
+        return -1;
+    }
+
+    static Double lookup(Map<String, Double> expression, String id) {
+        Double value = expression.get(id);
+        if(value == null) value = expression.get(stripVersion(id));
+        return value;
+    }
+
+    private static String stripVersion(String id) {
+        int idx = id.lastIndexOf('.');
+        if(idx > 0 && idx < id.length()-1) {
+            for(int i = idx+1; i < id.length(); i++) {
+                if(!Character.isDigit(id.charAt(i))) return id;
+            }
+            return id.substring(0, idx);
+        }
+        return id;
+    }
+
+    public File getGeneModelFile() {
+        return geneModel.getGeneModelFile();
+    }
+
+    public void setGeneModelFile(File geneModelFile) {
+        geneModel.setGeneModelFile(geneModelFile);
+    }
+
+    public GeneModelParser getGeneModelParser() {
+        return geneModel.getGeneModelParser();
+    }
+
+    public void setGeneModelParser(GeneModelParser parser) {
+        geneModel.setGeneModelParser(parser);
+    }
+}
@@ -16,7 +16,9 @@
 
 package edu.buffalo.fusim;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -30,11 +32,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import edu.buffalo.fusim.gtf.Strand;
+import edu.buffalo.fusim.io.TwoBitReader;
 
 public class ExtractSeq {
     private static Log logger = LogFactory.getLog(ExtractSeq.class);
 
-    private static String[] bases = new String[]{"A", "C", "T", "G"};
+    private static final char[] BASES = new char[]{'A', 'C', 'T', 'G'};
     
     private static Map<Character,Character> symbolMap = new HashMap<Character,Character>();
     static {
@@ -49,12 +52,54 @@ public class ExtractSeq {
     }
     
     private ReferenceSequenceFile ref;
+    private TwoBitReader twoBit;
+    private SequenceCache cache;
     
     public ExtractSeq(File path) {
-        this.ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(path); 
+        this(path, null);
+    }
+
+    /**
+     * @param path indexed reference genome (FASTA with a .fai index or a
+     *             UCSC .2bit file)
+     * @param cache optional cache of fetched sequences, may be shared by
+     *              many instances (may be null)
+     */
+    public ExtractSeq(File path, SequenceCache cache) {
+        if(isTwoBit(path)) {
+            try {
+                this.twoBit = new TwoBitReader(path);
+            } catch(IOException e) {
+                throw new RuntimeException("Failed to open 2bit reference: "+path.getAbsolutePath(), e);
+            }
+        } else {
+            this.ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(path); 
+        }
+        this.cache = cache;
     }
     
     public String fetch(String chrom, Strand strand, int start, int stop) {
+        if(cache == null) return this.fetchReference(chrom, strand, start, stop);
+
+        String key = chrom+":"+start+"-"+stop+strand;
+        String seq = cache.get(key);
+        if(seq == null) {
+            seq = this.fetchReference(chrom, strand, start, stop);
+            cache.put(key, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Returns true if the reference is a UCSC .2bit file
+     */
+    public static boolean isTwoBit(File path) {
+        return path.getName().toLowerCase().endsWith(".2bit");
+    }
+
+    private String fetchReference(String chrom, Strand strand, int start, int stop) {
+        if(twoBit != null) return this.fetchTwoBit(chrom, strand, start, stop);
+
         //logger.info("Fetching sequence contig: "+chrom+":"+start+"-"+stop+" "+strand);
         StringBuilder buff = new StringBuilder();
         
@@ -69,6 +114,38 @@ public class ExtractSeq {
         return buff.toString();
     }
     
+    private String fetchTwoBit(String chrom, Strand strand, int start, int stop) {
+        int n;
+        try {
+            n = twoBit.read(chrom, start-1, stop);
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to read 2bit reference: "+chrom+":"+start+"-"+stop, e);
+        }
+
+        // Decoded in place in the reader's buffer, the only allocation is
+        // the returned sequence
+        byte[] bases = twoBit.getBuffer();
+        char[] seq = new char[n];
+        if(Strand.REVERSE.equals(strand)) {
+            for(int i = 0; i < n; i++) {
+                seq[i] = (char)SequenceUtil.complement(bases[n-1-i]);
+            }
+        } else {
+            for(int i = 0; i < n; i++) {
+                seq[i] = (char)bases[i];
+            }
+        }
+        return new String(seq);
+    }
+
+    /**
+     * Close the reference files opened by this instance
+     */
+    public void close() throws IOException {
+        if(twoBit != null) twoBit.close();
+        if(ref instanceof Closeable) ((Closeable)ref).close();
+    }
+
     public static StringBuffer reverseComplement(StringBuffer seq) {
         StringBuffer revc = new StringBuffer();
         
@@ -81,17 +158,21 @@ public class ExtractSeq {
     }
 
     public static StringBuffer randomSequence(int maxLen) {
-        Random r = new Random();
+        StringBuilder seq = new StringBuilder();
+        appendRandomSequence(seq, maxLen, new Random());
+        return new StringBuffer(seq);
+    }
 
+    /**
+     * Append a random sequence of 1 to maxLen bases to a (reusable) buffer
+     */
+    public static void appendRandomSequence(StringBuilder seq, int maxLen, Random r) {
         // Chose a random length
         int length = r.nextInt(maxLen)+1;
 
-        StringBuffer seq = new StringBuffer();
         for(int i = 0; i < length; i++) {
-            seq.append(bases[r.nextInt(bases.length)]);
+            seq.append(BASES[r.nextInt(BASES.length)]);
         }
-
-        return seq;
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GeneSelector view which only returns transcripts valid for the given cds
+ * only and keep exon boundry settings. This allows a single loaded gene model
+ * to be shared by runs with different fusion options.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FilteredSelector implements GeneSelector {
+    private GeneSelector selector;
+    private UCSCRefFlatParser filter;
+    private List<TranscriptRecord> transcripts;
+    private TranscriptOrder order;
+
+    public FilteredSelector(GeneSelector selector, boolean keepExonBoundries, boolean cdsOnly) {
+        this.selector = selector;
+        this.filter = new UCSCRefFlatParser(keepExonBoundries, cdsOnly, null);
+    }
+
+    public synchronized List<TranscriptRecord> select() {
+        if(transcripts == null) {
+            transcripts = this.filter(selector.select());
+        }
+        return transcripts;
+    }
+
+    public synchronized TranscriptOrder getOrder() {
+        if(order == null) order = new TranscriptOrder(this.select());
+        return order;
+    }
+
+    public List<TranscriptRecord> select(String[] filter) {
+        if(filter == null || filter.length == 0) return this.select();
+
+        List<TranscriptRecord> filteredList = this.filter(selector.select(filter));
+        if(filteredList.size() == 0) {
+            throw new RuntimeException("No transcripts found using filter: "+Arrays.toString(filter));
+        }
+        return filteredList;
+    }
+
+    private List<TranscriptRecord> filter(List<TranscriptRecord> list) {
+        List<TranscriptRecord> filteredList = new ArrayList<TranscriptRecord>();
+        for(TranscriptRecord r : list) {
+            if(filter.accept(r)) filteredList.add(r);
+        }
+        return filteredList;
+    }
+
+    public File getGeneModelFile() {
+        return selector.getGeneModelFile();
+    }
+
+    public void setGeneModelFile(File geneModelFile) {
+        selector.setGeneModelFile(geneModelFile);
+    }
+
+    public GeneModelParser getGeneModelParser() {
+        return selector.getGeneModelParser();
+    }
+
+    public void setGeneModelParser(GeneModelParser parser) {
+        selector.setGeneModelParser(parser);
+    }
+}
@@ -16,18 +16,18 @@
 
 package edu.buffalo.fusim;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
 
 import net.sf.picard.sam.MergeSamFiles;
 
@@ -39,10 +39,15 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.buffalo.fusim.io.BgzfOutputStream;
+import edu.buffalo.fusim.io.ChannelWriter;
+import edu.buffalo.fusim.io.FastaWriter;
+import edu.buffalo.fusim.io.SamtoolsView;
+
 /**
  * Fusim
  * 
@@ -51,7 +56,27 @@ import org.apache.commons.logging.LogFactory;
  */
 public class Fusim {
     private static Log logger = LogFactory.getLog(Fusim.class);
+
+    /**
+     * Default number of reference bases cached in batch and daemon mode
+     */
+    public static final long DEFAULT_REFERENCE_CACHE = 50000000L;
     private Options options;
+    private double sampleFraction = 1.0;
+    private File backgroundReport;
+    private File chimericReport;
+    private File expressionFile;
+    private BackgroundCombineMethod combineMethod = BackgroundCombineMethod.MEAN;
+    private int minMappingQuality = 0;
+    private boolean excludeDuplicates = false;
+    private boolean excludeSecondary = false;
+    private File sequenceStoreFile;
+    private List<File> donorFiles;
+    private int reservoirSize = 0;
+    private boolean reservoirWeighted = false;
+    private File targetsFile;
+    private File cramReference;
+    private TargetRegions targetRegions;
 
     public static void main(String[] args) {
         Fusim fusim = new Fusim();
@@ -112,170 +137,271 @@ public class Fusim {
             printHelpAndExit(options, "Can't read Gene Model file");
         }
         
-        PrintWriter textOutput = null;
-        if(cmd.hasOption("t")) {
-            if("-".equals(cmd.getOptionValue("t"))) {
-                textOutput = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
-            } else {
-                textOutput = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cmd.getOptionValue("t")), "UTF-8"));
-            }
-        } 
-        
-        PrintWriter fastaOutput = null;
-        if(cmd.hasOption("f")) {
-            if("-".equals(cmd.getOptionValue("f"))) {
-                fastaOutput = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
-            } else {
-                fastaOutput = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cmd.getOptionValue("f")), "UTF-8"));
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption("p")) {
+            try {
+                nThreads = Integer.parseInt(cmd.getOptionValue("p"));
+            } catch(NumberFormatException e) {
+                printHelpAndExit(options, "Number of threads to spawn (-p) must be a number");
             }
         }
-        
-        // Default to TXT output
-        if(fastaOutput == null && textOutput == null) {
-            textOutput = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
-        }
-
-        if(cmd.hasOption("f") && !cmd.hasOption("r")) {
-            printHelpAndExit(options, "You must provide an indexed (.fai) genome reference file for FASTA output using option \"-r\".");
-        }
 
         File referenceFile = null;
         if(cmd.hasOption("r")) {
             referenceFile = new File(cmd.getOptionValue("r"));
         }
-        if(cmd.hasOption("f") && !referenceFile.canRead()) {
-            printHelpAndExit(options, "Please provide a valid reference file in fasta format");
-        } 
-        if(cmd.hasOption("f")) {
+        if((cmd.hasOption("f") || cmd.hasOption("daemon") || cmd.hasOption("batch")) && referenceFile != null) {
+            if(!referenceFile.canRead()) {
+                printHelpAndExit(options, "Please provide a valid reference file in fasta format");
+            }
             File referenceIndexFile = new File(referenceFile.getAbsolutePath() + ".fai");
-            if(!referenceIndexFile.canRead()) {
+            if(!ExtractSeq.isTwoBit(referenceFile) && !referenceIndexFile.canRead()) {
                 fatalError("Missing index file. Please index your fasta file with: samtools faidx my_genome.fa");
             }
         }
 
-        
-        int nFusions = 0;
-        if(cmd.hasOption("n")) {
-            try {
-                nFusions = Integer.parseInt(cmd.getOptionValue("n"));
-            } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of fusions (-n) must be a number");
+        if(cmd.hasOption("sequence-store")) {
+            sequenceStoreFile = new File(cmd.getOptionValue("sequence-store"));
+            if(!sequenceStoreFile.exists() && referenceFile == null) {
+                printHelpAndExit(options, "Building a sequence store (--sequence-store) requires a reference genome (-r)");
             }
         }
 
-        int nReadThrough = 0;
-        if(cmd.hasOption("x")) {
-            try {
-                nReadThrough = Integer.parseInt(cmd.getOptionValue("x"));
-            } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of read through fusion genes (-x) must be a number");
+        if(cmd.hasOption("donors")) {
+            donorFiles = new ArrayList<File>();
+            for(String path : cmd.getOptionValue("donors").split(",")) {
+                File donorFile = new File(path);
+                if(!donorFile.canRead()) {
+                    printHelpAndExit(options, "Please provide a valid donor FASTA file: "+path);
+                }
+                donorFiles.add(donorFile);
             }
         }
 
-        int nTriFusion = 0;
-        if(cmd.hasOption("j")) {
+        double rpkmCutoff = 0.2;
+        if(cmd.hasOption("k")) {
             try {
-                nTriFusion = Integer.parseInt(cmd.getOptionValue("j"));
+                rpkmCutoff = Double.parseDouble(cmd.getOptionValue("k"));
+                if(rpkmCutoff < 0 || rpkmCutoff > 1) throw new NumberFormatException();
             } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of tri-fusions (-j) must be a number");
+                printHelpAndExit(options, "RPKM cutoff (-k) must be 0 < cutoff < 1");
             }
         }
 
-        int nIntraChromFusion = 0;
-        if(cmd.hasOption("y")) {
-            try {
-                nIntraChromFusion = Integer.parseInt(cmd.getOptionValue("y"));
-            } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of intra-chromosome fusions (-y) must be a number");
+        Map<String, Boolean> limit = null;
+        if(cmd.hasOption("l")) {
+            limit = new HashMap<String,Boolean>();
+            String[] limits = cmd.getOptionValue("l").split(",");
+            if(limits.length < 1) {
+                printHelpAndExit(options, "Must provide a limit of at least one genes (ex. gene1,gene2,..): "+cmd.getOptionValue("l"));
+            }
+            for(int i = 0; i < limits.length; i++) {
+                limit.put(limits[i], true);
             }
         }
 
-        int nSelfFusion = 0;
-        if(cmd.hasOption("s")) {
-            try {
-                nSelfFusion = Integer.parseInt(cmd.getOptionValue("s"));
-            } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of self-fusions (-s) must be a number");
+        List<File> bamFiles = null;
+        if(cmd.hasOption("b")) {
+            bamFiles = new ArrayList<File>();
+            for(String path : cmd.getOptionValue("b").split(",")) {
+                File bamFile = new File(path);
+                if(!bamFile.canRead()) {
+                    printHelpAndExit(options, "Please provide a valid BAM file: "+path);
+                }
+                bamFiles.add(bamFile);
+                if(SamtoolsView.isCram(bamFile)) {
+                    if(referenceFile == null || !referenceFile.canRead() || ExtractSeq.isTwoBit(referenceFile)) {
+                        printHelpAndExit(options, "Reading a CRAM file (-b) requires the reference genome in fasta format (-r): "+path);
+                    }
+                    cramReference = referenceFile;
+                }
             }
         }
 
-        int foreignInsertionLen = 0;
-        if(cmd.hasOption("u")) {
+        if(cmd.hasOption("background-combine")) {
+            combineMethod = BackgroundCombineMethod.fromString(cmd.getOptionValue("background-combine"));
+            if(combineMethod == null) {
+                printHelpAndExit(options, "Invalid background combine method: "+cmd.getOptionValue("background-combine"));
+            }
+        }
+
+        if(cmd.hasOption("expression")) {
+            if(bamFiles != null) {
+                printHelpAndExit(options, "Please provide either a background BAM file (-b) or an expression table (--expression), not both");
+            }
+            expressionFile = new File(cmd.getOptionValue("expression"));
+            if(!expressionFile.canRead()) {
+                printHelpAndExit(options, "Can't read expression file");
+            }
+        }
+
+        if(cmd.hasOption("reservoir")) {
+            if(bamFiles != null) {
+                printHelpAndExit(options, "Sampling the gene model (--reservoir) can't be used with background BAM files (-b)");
+            }
+            if(cmd.hasOption("batch") || cmd.hasOption("daemon")) {
+                printHelpAndExit(options, "Sampling the gene model (--reservoir) is only supported for single runs");
+            }
             try {
-                foreignInsertionLen = Integer.parseInt(cmd.getOptionValue("u"));
+                reservoirSize = Integer.parseInt(cmd.getOptionValue("reservoir"));
+                if(reservoirSize < 1) throw new NumberFormatException();
             } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Foreign insertion length (-u) must be a number");
+                printHelpAndExit(options, "Reservoir sample size (--reservoir) must be a positive number");
             }
         }
-        
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        if(cmd.hasOption("p")) {
+        if(cmd.hasOption("reservoir-weighted")) {
+            if(reservoirSize == 0 || expressionFile == null) {
+                printHelpAndExit(options, "Weighted sampling (--reservoir-weighted) requires --reservoir and an expression table (--expression)");
+            }
+            reservoirWeighted = true;
+        }
+
+        if(cmd.hasOption("targets")) {
+            targetsFile = new File(cmd.getOptionValue("targets"));
+            if(!targetsFile.canRead()) {
+                printHelpAndExit(options, "Can't read target regions BED file");
+            }
+            targetRegions = new TargetRegions(targetsFile);
+            logger.info("Loaded "+targetRegions.size()+" merged target regions covering "+targetRegions.getBases()+" bases");
+        }
+
+        if(cmd.hasOption("min-mapq")) {
             try {
-                nThreads = Integer.parseInt(cmd.getOptionValue("p"));
+                minMappingQuality = Integer.parseInt(cmd.getOptionValue("min-mapq"));
+                if(minMappingQuality < 0) throw new NumberFormatException();
             } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Number of threads to spawn (-p) must be a number");
+                printHelpAndExit(options, "Minimum mapping quality (--min-mapq) must be a positive number");
             }
         }
+        excludeDuplicates = cmd.hasOption("exclude-duplicates");
+        excludeSecondary = cmd.hasOption("exclude-secondary");
 
-        double rpkmCutoff = 0.2;
-        if(cmd.hasOption("k")) {
+        if(cmd.hasOption("background-sample")) {
             try {
-                rpkmCutoff = Double.parseDouble(cmd.getOptionValue("k"));
-                if(rpkmCutoff < 0 || rpkmCutoff > 1) throw new NumberFormatException();
+                sampleFraction = Double.parseDouble(cmd.getOptionValue("background-sample"));
+                if(sampleFraction <= 0 || sampleFraction > 1) throw new NumberFormatException();
             } catch(NumberFormatException e) {
-                printHelpAndExit(options, "RPKM cutoff (-k) must be 0 < cutoff < 1");
+                printHelpAndExit(options, "Background sample fraction (--background-sample) must be 0 < fraction <= 1");
             }
         }
+        if(cmd.hasOption("background-report")) {
+            backgroundReport = new File(cmd.getOptionValue("background-report"));
+        }
+        if(cmd.hasOption("chimeric-report")) {
+            if(bamFiles == null) {
+                printHelpAndExit(options, "Writing a chimeric read report (--chimeric-report) requires background reads (-b)");
+            }
+            chimericReport = new File(cmd.getOptionValue("chimeric-report"));
+        }
 
-        double foreignInsertionPct = 0.0;
-        if(cmd.hasOption("w")) {
+        long cacheBases = DEFAULT_REFERENCE_CACHE;
+        if(cmd.hasOption("reference-cache")) {
             try {
-                foreignInsertionPct = Double.parseDouble(cmd.getOptionValue("w"));
-                if(foreignInsertionPct < 0 || foreignInsertionPct > 1) throw new NumberFormatException();
+                cacheBases = Long.parseLong(cmd.getOptionValue("reference-cache"));
+                if(cacheBases < 0) throw new NumberFormatException();
             } catch(NumberFormatException e) {
-                printHelpAndExit(options, "Foreign insertion percent (-w) must be 0 < x < 1");
+                printHelpAndExit(options, "Reference cache size (--reference-cache) must be a positive number");
             }
         }
-        
-        GeneSelectionMethod geneSelectioMethod = GeneSelectionMethod.UNIFORM;
-        if(cmd.hasOption("m")) {
-            GeneSelectionMethod sm = GeneSelectionMethod.fromString(cmd.getOptionValue("m"));
-            if(sm == null) {
-                printHelpAndExit(options, "Invalid gene selection method: "+cmd.getOptionValue("m"));
+
+        if(cmd.hasOption("batch")) {
+            File manifest = new File(cmd.getOptionValue("batch"));
+            if(!manifest.canRead()) {
+                printHelpAndExit(options, "Can't read batch manifest file");
             }
-            geneSelectioMethod = sm;
-        }
 
-        Map<String, Boolean> limit = null;
-        if(cmd.hasOption("l")) {
-            limit = new HashMap<String,Boolean>();
-            String[] limits = cmd.getOptionValue("l").split(",");
-            if(limits.length < 1) {
-                printHelpAndExit(options, "Must provide a limit of at least one genes (ex. gene1,gene2,..): "+cmd.getOptionValue("l"));
+            // Load the full gene model. The cds only and exon boundry
+            // settings are applied per run
+            UCSCRefFlatParser parser = new UCSCRefFlatParser(false, false, limit);
+            parser.setTargetRegions(targetRegions);
+            GeneSelector selector = createSelector(geneModelFile, parser, bamFiles, null, rpkmCutoff, nThreads);
+            SequenceCache cache = cacheBases > 0 ? new SequenceCache(cacheBases) : null;
+            TranscriptSequenceStore store = openSequenceStore(selector, referenceFile);
+            FusimSession session = new FusimSession(selector, referenceFile, bamFiles != null || expressionFile != null, cache, store, openDonorLibrary());
+
+            FusimBatch batch = new FusimBatch(this, session, nThreads);
+            int failed = 0;
+            try {
+                failed = batch.run(manifest);
+            } finally {
+                session.close();
             }
-            for(int i = 0; i < limits.length; i++) {
-                limit.put(limits[i], true);
+            if(failed > 0) {
+                fatalError(failed+" batch runs failed");
             }
+            logger.info("Fusim batch complete. Goodbye!");
+            return;
         }
 
-        List<String[]> filters = new ArrayList<String[]>();
-        for(String filterOption : new String[]{"1","2","3"}) {
-            if(cmd.hasOption(filterOption)) {
-                filters.add(cmd.getOptionValue(filterOption).split(","));
-            } else {
-                filters.add(null);
+        if(cmd.hasOption("daemon")) {
+            int port = FusimServer.DEFAULT_PORT;
+            if(cmd.hasOption("port")) {
+                try {
+                    port = Integer.parseInt(cmd.getOptionValue("port"));
+                } catch(NumberFormatException e) {
+                    printHelpAndExit(options, "Daemon port (--port) must be a number");
+                }
+            }
+
+            // Load the full gene model. The cds only and exon boundry
+            // settings are applied per request
+            UCSCRefFlatParser parser = new UCSCRefFlatParser(false, false, limit);
+            parser.setTargetRegions(targetRegions);
+            GeneSelector selector = createSelector(geneModelFile, parser, bamFiles, null, rpkmCutoff, nThreads);
+            SequenceCache cache = cacheBases > 0 ? new SequenceCache(cacheBases) : null;
+            TranscriptSequenceStore store = openSequenceStore(selector, referenceFile);
+            FusimSession session = new FusimSession(selector, referenceFile, bamFiles != null || expressionFile != null, cache, store, openDonorLibrary());
+
+            File dataDir = null;
+            if(cmd.hasOption("data-dir")) {
+                dataDir = new File(cmd.getOptionValue("data-dir"));
+                if(!dataDir.isDirectory()) {
+                    printHelpAndExit(options, "Daemon data directory (--data-dir) must be a directory");
+                }
             }
+
+            FusimServer server = new FusimServer(this, session, nThreads);
+            server.setDataDir(dataDir);
+            try {
+                server.listen(port);
+            } finally {
+                session.close();
+            }
+            return;
         }
+
+        FusionSpec spec = null;
+        int lineWidth = 0;
+        try {
+            spec = parseFusionSpec(cmd);
+            lineWidth = parseLineWidth(cmd);
+        } catch(ParseException e) {
+            printHelpAndExit(options, e.getMessage());
+        }
+
+        if(cmd.hasOption("f") && !cmd.hasOption("r") && (sequenceStoreFile == null || !sequenceStoreFile.exists())) {
+            printHelpAndExit(options, "You must provide an indexed (.fai) or .2bit genome reference file for FASTA output using option \"-r\".");
+        }
+
+        // Outputs are always closed (writing the BGZF EOF block and
+        // stopping the compression threads) but must not close stdout
+        OutputStream stdout = new CloseShieldOutputStream(System.out);
+
+        ChannelWriter textOutput = null;
+        if(cmd.hasOption("t")) {
+            textOutput = openTextOutput(cmd.getOptionValue("t"), stdout);
+        } 
         
-        File bamFile = null;
-        if(cmd.hasOption("b")) {
-            bamFile = new File(cmd.getOptionValue("b"));
-        
-            if(!bamFile.canRead()) {
-                printHelpAndExit(options, "Please provide a valid BAM file");
-            }
+        FastaWriter fastaOutput = null;
+        if(cmd.hasOption("f")) {
+            fastaOutput = openFastaOutput(cmd.getOptionValue("f"), stdout, cmd.hasOption("bgzf"), lineWidth, nThreads);
         }
         
+        // Default to TXT output
+        if(fastaOutput == null && textOutput == null) {
+            textOutput = new ChannelWriter(stdout);
+        }
+
         logger.info("========================================================================");
         logger.info("Running Fusim with the following settings:");
         logger.info("========================================================================");
@@ -286,6 +412,15 @@ public class Fusim {
         if(cmd.hasOption("f")) {
             logger.info("Fasta Output: "+("-".equals(cmd.getOptionValue("f")) ? "<stdout>" : cmd.getOptionValue("f")));
         }
+        if(cmd.hasOption("bgzf")) {
+            logger.info("Fasta Compression: BGZF");
+        }
+        if(lineWidth > 0) {
+            logger.info("Fasta Line Width: "+lineWidth);
+        }
+        if(sequenceStoreFile != null) {
+            logger.info("Sequence Store: "+sequenceStoreFile.getAbsolutePath());
+        }
         if(!cmd.hasOption("f") && !cmd.hasOption("t")) {
             logger.info("Text Output: <stdout>");
         }
@@ -295,202 +430,393 @@ public class Fusim {
         logger.info("------------------");
         if(cmd.hasOption("b")) {
             logger.info("Mode: background reads");
-            logger.info("BAM file: "+bamFile.getAbsolutePath());
+            for(File bamFile : bamFiles) {
+                logger.info("BAM file: "+bamFile.getAbsolutePath());
+            }
+            if(bamFiles.size() > 1) {
+                logger.info("Combine RPKM values using: "+combineMethod.toString());
+            }
+            if(minMappingQuality > 0) {
+                logger.info("Minimum mapping quality: "+minMappingQuality);
+            }
+            logger.info("Exclude duplicates: "+(excludeDuplicates ? "yes" : "no"));
+            logger.info("Exclude secondary alignments: "+(excludeSecondary ? "yes" : "no"));
             logger.info("RPKM cutoff: "+rpkmCutoff);
+            if(sampleFraction < 1.0) {
+                logger.info("RPKM estimated from sampled fraction: "+sampleFraction);
+            }
             logger.info("Number of threads: "+nThreads);
-            logger.info("Gene selection method: "+geneSelectioMethod.toString());
+            logger.info("Gene selection method: "+spec.getGeneSelectionMethod().toString());
+        } else if(expressionFile != null) {
+            logger.info("Mode: expression table");
+            logger.info("Expression file: "+expressionFile.getAbsolutePath());
+            logger.info("RPKM cutoff: "+rpkmCutoff);
+            logger.info("Gene selection method: "+spec.getGeneSelectionMethod().toString());
         } else {
             logger.info("Mode: gene model");
         }
+        if(targetsFile != null) {
+            logger.info("Target regions: "+targetsFile.getAbsolutePath());
+        }
+        if(reservoirSize > 0) {
+            logger.info("Reservoir sample size: "+reservoirSize+(reservoirWeighted ? " (weighted by RPKM)" : ""));
+        }
         logger.info("");
         logger.info("------------------");
         logger.info("Type of fusions");
         logger.info("------------------");
-        logger.info("Hybrid: "+nFusions);
-        logger.info("Self: "+nSelfFusion);
-        logger.info("Complex: "+nTriFusion);
-        logger.info("Intra-chromosome: "+nIntraChromFusion);
-        logger.info("Read through: "+nReadThrough);
+        if(spec.isEnumerateJunctions()) {
+            logger.info("Enumerate junctions: "+(spec.getMaxJunctions() > 0 ? "up to "+spec.getMaxJunctions() : "all"));
+        }
+        if(spec.getCatalogFile() != null) {
+            logger.info("Fusion catalog: "+spec.getCatalogFile().getAbsolutePath());
+        }
+        logger.info("Hybrid: "+spec.getFusions());
+        logger.info("Self: "+spec.getSelfFusion());
+        logger.info("Complex: "+spec.getTriFusion());
+        logger.info("Intra-chromosome: "+spec.getIntraChromFusion());
+        logger.info("Read through: "+spec.getReadThrough());
         logger.info("");
         logger.info("------------------");
         logger.info("Fusion options");
         logger.info("------------------");
-        logger.info("CDS only: "+(cmd.hasOption("c") ? "yes" : "no"));
-        logger.info("Auto-correct orientation: "+(cmd.hasOption("a") ? "yes" : "no"));
-        logger.info("Allow fusions outside of ORF: "+(cmd.hasOption("d") ? "yes" : "no"));
-        logger.info("Force fusion breaks on exon boundries: "+(cmd.hasOption("e") ? "yes" : "no"));
+        logger.info("CDS only: "+(spec.isCdsOnly() ? "yes" : "no"));
+        logger.info("Auto-correct orientation: "+(spec.isAutoCorrectOrientation() ? "yes" : "no"));
+        logger.info("Allow fusions outside of ORF: "+(spec.isOutOfFrame() ? "yes" : "no"));
+        logger.info("Force fusion breaks on exon boundries: "+(spec.isKeepExonBoundry() ? "yes" : "no"));
+        logger.info("Breakpoint distribution: "+spec.getBreakpointDistribution()
+                    +(spec.getHotspotFile() != null ? " ("+spec.getHotspotFile().getAbsolutePath()+")" : ""));
+        logger.info("Unique fusions: "+(spec.isUnique() ? "yes" : (spec.isUniqueBreaks() ? "breaks" : "no")));
+        if(spec.isExcludeChimeric()) {
+            logger.info("Exclude gene pairs supported by chimeric reads: yes");
+        }
         if(cmd.hasOption("u")) {
-            logger.info("Foreign insertion max length: "+foreignInsertionLen);
-            logger.info("Foreign insertion percent: "+foreignInsertionPct);
+            logger.info("Foreign insertion max length: "+spec.getForeignInsertionLength());
+            logger.info("Foreign insertion percent: "+spec.getForeignInsertionPercent());
+            if(donorFiles != null) {
+                for(File donorFile : donorFiles) {
+                    logger.info("Foreign insertion donors: "+donorFile.getAbsolutePath());
+                }
+            }
         }
         logger.info("========================================================================");
         
-        GeneModelParser parser = new UCSCRefFlatParser(cmd.hasOption("e"), cmd.hasOption("c"), limit);
-        GeneSelector selector = null;
-        FusionGenerator fg = null;
-        
-        if(cmd.hasOption("b")) {
-            selector = new BackgroundSelector(bamFile, rpkmCutoff, nThreads);
-            fg = new BackgroundGenerator();
-        } else {
-            selector = new StaticSelector();
-            fg = new RandomGenerator();
-        }
+        int nSimulated = 0;
+        FusimSession session = null;
+        try {
+            UCSCRefFlatParser parser = new UCSCRefFlatParser(spec.isKeepExonBoundry(), spec.isCdsOnly(), limit);
+            parser.setTargetRegions(targetRegions);
+            GeneSelector selector = createSelector(geneModelFile, parser, bamFiles, spec.getFilters(), rpkmCutoff, nThreads);
+            TranscriptSequenceStore store = fastaOutput != null ? openSequenceStore(selector, referenceFile) : null;
+            DonorLibrary donors = fastaOutput != null ? openDonorLibrary() : null;
+            session = new FusimSession(selector, referenceFile, bamFiles != null || expressionFile != null, null, store, donors);
 
-        selector.setGeneModelFile(geneModelFile);
-        selector.setGeneModelParser(parser);
+            nSimulated = simulate(session, spec, textOutput, fastaOutput);
+        } finally {
+            if(textOutput != null) textOutput.close();
+            if(fastaOutput != null) fastaOutput.close();
+            System.out.flush();
+            if(session != null) session.close();
+        }
 
-        fg.setGeneSelector(selector);
-        fg.setGeneSelectionMethod(geneSelectioMethod);
-        fg.setFilters(filters);
-        
-        List<FusionGene> fusions = new ArrayList<FusionGene>();
-        
-        if(nFusions > 0) {
-            fusions.addAll(fg.generate(nFusions, 2));
+        if(nSimulated == 0) {
+            fatalError("No fusions to simulate! Check to be sure you have -j,-n,-s,-x,-y, --enumerate or --catalog specified and your filters are correct.");    
         }
-        
-        // Generate any read through fusion genes
-        if(nReadThrough > 0) {
-            logger.info("Generating read through genes...");
-            ReadThroughGenerator rt = new ReadThroughGenerator();
-            rt.setGeneSelector(selector);
-            rt.setGeneSelectionMethod(geneSelectioMethod);
 
-            List<FusionGene> rtFusions = rt.generate(nReadThrough, 2);
-            for(FusionGene g : rtFusions) {
-                g.setFusionType(FusionType.READ_THROUGH);
+        logger.info("Fusim run complete. Goodbye!");
+    }
+
+    /**
+     * Parse the options which can change from run to run without re-loading
+     * the gene model or background reads
+     */
+    FusionSpec parseFusionSpec(CommandLine cmd) throws ParseException {
+        return parseFusionSpec(cmd, null);
+    }
+
+    /**
+     * Parse the options which can change from run to run. The hotspot and
+     * catalog files are resolved against dataDir if not null.
+     */
+    FusionSpec parseFusionSpec(CommandLine cmd, File dataDir) throws ParseException {
+        FusionSpec spec = new FusionSpec();
+
+        if(cmd.hasOption("n")) {
+            try {
+                spec.setFusions(Integer.parseInt(cmd.getOptionValue("n")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Number of fusions (-n) must be a number");
             }
-            fusions.addAll(rtFusions);
         }
-        
-        // Generate any tri-fusions
-        if(nTriFusion > 0) {
-            logger.info("Generating tri-fusion genes...");
-            List<FusionGene> tfusions = fg.generate(nTriFusion, 3);
-            for(FusionGene g : tfusions) {
-                g.setFusionType(FusionType.TRI_FUSION);
+
+        if(cmd.hasOption("x")) {
+            try {
+                spec.setReadThrough(Integer.parseInt(cmd.getOptionValue("x")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Number of read through fusion genes (-x) must be a number");
             }
-            fusions.addAll(tfusions);
         }
-        
-        // Generate any intra chromosome fusions
-        if(nIntraChromFusion > 0) {
-            logger.info("Generating intra-chromosome fusions...");
-            IntraChromGenerator ig = new IntraChromGenerator();
-            ig.setGeneSelector(selector);
-            ig.setGeneSelectionMethod(geneSelectioMethod);
 
-            List<FusionGene> ifusions = ig.generate(nIntraChromFusion, 2);
-            for(FusionGene g : ifusions) {
-                g.setFusionType(FusionType.INTRA_CHROMOSOME);
+        if(cmd.hasOption("j")) {
+            try {
+                spec.setTriFusion(Integer.parseInt(cmd.getOptionValue("j")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Number of tri-fusions (-j) must be a number");
             }
-            fusions.addAll(ifusions);
         }
-        
-        // Generate any self-fusions
-        if(nSelfFusion > 0) {
-            logger.info("Generating self-fusion genes...");
-            List<FusionGene> sfusions = fg.generate(nSelfFusion, 1);
-            for(FusionGene g : sfusions) {
-                g.setFusionType(FusionType.SELF_FUSION);
+
+        if(cmd.hasOption("y")) {
+            try {
+                spec.setIntraChromFusion(Integer.parseInt(cmd.getOptionValue("y")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Number of intra-chromosome fusions (-y) must be a number");
             }
-            fusions.addAll(sfusions);
         }
 
-        if(fusions.size() == 0) {
-            fatalError("No fusions to simulate! Check to be sure you have -j,-n,-s,-x,-y specified and your filters are correct.");    
+        if(cmd.hasOption("s")) {
+            try {
+                spec.setSelfFusion(Integer.parseInt(cmd.getOptionValue("s")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Number of self-fusions (-s) must be a number");
+            }
         }
-        
-        if(textOutput != null) {
-            textOutput.println(StringUtils.join(FusionGene.getHeader(), "\t"));
+
+        if(cmd.hasOption("u")) {
+            try {
+                spec.setForeignInsertionLength(Integer.parseInt(cmd.getOptionValue("u")));
+            } catch(NumberFormatException e) {
+                throw new ParseException("Foreign insertion length (-u) must be a number");
+            }
         }
 
-        int foreignInsertionCutoff = (int)(foreignInsertionPct*fusions.size());
+        if(cmd.hasOption("w")) {
+            try {
+                double foreignInsertionPct = Double.parseDouble(cmd.getOptionValue("w"));
+                if(foreignInsertionPct < 0 || foreignInsertionPct > 1) throw new NumberFormatException();
+                spec.setForeignInsertionPercent(foreignInsertionPct);
+            } catch(NumberFormatException e) {
+                throw new ParseException("Foreign insertion percent (-w) must be 0 < x < 1");
+            }
+        }
         
-        Random rgen = new Random();
-        for(int g = 0; g < fusions.size(); g++) {
-            FusionGene f = fusions.get(g);
+        spec.setUnique(cmd.hasOption("unique"));
+        spec.setUniqueBreaks(cmd.hasOption("unique-breaks"));
+        spec.setExcludeChimeric(cmd.hasOption("exclude-chimeric"));
 
-            //out.println(f);
-            List<int []> breaks = new ArrayList<int []>();
-            
-            // First half of gene 1
-            breaks.add(f.getGene(0).generateExonBreak(true, cmd.hasOption("c")));
-            
-            if(f.size() == 2) {
-                // Second half of gene2
-                breaks.add(f.getGene(1).generateExonBreak(false, cmd.hasOption("c")));
-            } else if(f.size() == 3) {
-                // Second half of gene2
-                breaks.add(f.getGene(1).generateExonBreak(false, cmd.hasOption("c")));
-                
-                // Second half of gene3
-                breaks.add(f.getGene(2).generateExonBreak(false, cmd.hasOption("c")));
-            }
-
-            // Keep ORF (don't allow out of frame) and allow splitting of exons
-            if(!cmd.hasOption("d") && !cmd.hasOption("e")) {
-                // Split last exon in half and ensure within ORF
-                for(int i = 0; i < breaks.size(); i++) {
-                    int[] exons = breaks.get(i);
-                    int[] lastExon = f.getGene(i).getExons(cmd.hasOption("c")).get(exons[exons.length-1]);
-                    int randIndex = rgen.nextInt(lastExon[1]-lastExon[0]);
-                    while(randIndex % 3 != 0) {
-                        randIndex--;
-                    }
-                    f.getGene(i).getExons(cmd.hasOption("c")).get(exons[exons.length-1])[1] -= randIndex;
-                }
-            } else if(cmd.hasOption("e") && !cmd.hasOption("d")) {
-                breaks.clear();
-                // Keep ORF (don't allow out of frame) and don't allow splitting of exons (keep exon boundries)
-                // Break genes on exons boundries
-                breaks.add(f.getGene(0).generateExonBoundryBreak(cmd.hasOption("c")));
-                
-                if(f.size() == 2) {
-                    breaks.add(f.getGene(1).generateExonBoundryBreak(cmd.hasOption("c")));
-                } else if(f.size() == 3) {
-                    breaks.add(f.getGene(2).generateExonBoundryBreak(cmd.hasOption("c")));
-                    breaks.add(f.getGene(3).generateExonBoundryBreak(cmd.hasOption("c")));
-                }
+        if(cmd.hasOption("enumerate")) {
+            try {
+                long maxJunctions = Long.parseLong(cmd.getOptionValue("enumerate"));
+                if(maxJunctions < 0) throw new NumberFormatException();
+                spec.setEnumerateJunctions(true);
+                spec.setMaxJunctions(maxJunctions);
+            } catch(NumberFormatException e) {
+                throw new ParseException("Maximum number of junctions (--enumerate) must be a positive number");
             }
+        }
 
-            // Set options for output
-            if(cmd.hasOption("a")) {
-                f.addOption(FusionOption.AUTO_CORRECT_ORIENTATION);
+        if(cmd.hasOption("breakpoints")) {
+            BreakpointDistribution bd = BreakpointDistribution.fromString(cmd.getOptionValue("breakpoints"));
+            if(bd == null) {
+                throw new ParseException("Invalid breakpoint distribution: "+cmd.getOptionValue("breakpoints"));
             }
-            if(cmd.hasOption("c")) {
-                f.addOption(FusionOption.CDS_ONLY);
+            spec.setBreakpointDistribution(bd);
+        }
+        if(cmd.hasOption("hotspots")) {
+            File hotspotFile = new File(dataDir, cmd.getOptionValue("hotspots"));
+            if(!hotspotFile.canRead()) {
+                throw new ParseException("Can't read hotspot file: "+hotspotFile.getPath());
+            }
+            spec.setHotspotFile(hotspotFile);
+            spec.setBreakpointDistribution(BreakpointDistribution.HOTSPOT);
+        } else if(spec.getBreakpointDistribution() == BreakpointDistribution.HOTSPOT) {
+            throw new ParseException("The hotspot breakpoint distribution requires a hotspot file (--hotspots)");
+        }
+
+        if(cmd.hasOption("catalog")) {
+            if(spec.isEnumerateJunctions()) {
+                throw new ParseException("Please provide either a fusion catalog (--catalog) or --enumerate, not both");
+            }
+            if(spec.isUnique() || spec.isUniqueBreaks() || spec.isExcludeChimeric()) {
+                throw new ParseException("A fusion catalog (--catalog) is replayed as is and can't be used with --unique, --unique-breaks or --exclude-chimeric");
+            }
+            File catalogFile = new File(dataDir, cmd.getOptionValue("catalog"));
+            if(!catalogFile.canRead()) {
+                throw new ParseException("Can't read fusion catalog: "+catalogFile.getPath());
+            }
+            spec.setCatalogFile(catalogFile);
+        }
+
+        if(cmd.hasOption("m")) {
+            GeneSelectionMethod sm = GeneSelectionMethod.fromString(cmd.getOptionValue("m"));
+            if(sm == null) {
+                throw new ParseException("Invalid gene selection method: "+cmd.getOptionValue("m"));
             }
-            if(cmd.hasOption("d")) {
-                f.addOption(FusionOption.OUT_OF_FRAME);
+            spec.setGeneSelectionMethod(sm);
+        }
+
+        List<String[]> filters = new ArrayList<String[]>();
+        for(String filterOption : new String[]{"1","2","3"}) {
+            if(cmd.hasOption(filterOption)) {
+                filters.add(cmd.getOptionValue(filterOption).split(","));
             } else {
-                f.addOption(FusionOption.SYMMETRICAL_EXONS);
+                filters.add(null);
+            }
+        }
+        spec.setFilters(filters);
+
+        spec.setCdsOnly(cmd.hasOption("c"));
+        spec.setKeepExonBoundry(cmd.hasOption("e"));
+        spec.setOutOfFrame(cmd.hasOption("d"));
+        spec.setAutoCorrectOrientation(cmd.hasOption("a"));
+
+        return spec;
+    }
+
+    int parseLineWidth(CommandLine cmd) throws ParseException {
+        int lineWidth = cmd.hasOption("bgzf") ? 60 : 0;
+        if(cmd.hasOption("line-width")) {
+            try {
+                lineWidth = Integer.parseInt(cmd.getOptionValue("line-width"));
+                if(lineWidth < 0) throw new NumberFormatException();
+            } catch(NumberFormatException e) {
+                throw new ParseException("FASTA line width (--line-width) must be a positive number");
+            }
+        }
+        return lineWidth;
+    }
+
+    /**
+     * Open text output. The path "-" writes to the given stream.
+     */
+    ChannelWriter openTextOutput(String path, OutputStream stdout) throws IOException {
+        if("-".equals(path)) {
+            return new ChannelWriter(stdout);
+        }
+        return new ChannelWriter(new FileOutputStream(path));
+    }
+
+    /**
+     * Open FASTA output. The path "-" writes to the given stream.
+     */
+    FastaWriter openFastaOutput(String path, OutputStream stdout, boolean bgzf, int lineWidth, int nThreads) throws IOException {
+        if("-".equals(path)) {
+            OutputStream out = stdout;
+            if(bgzf) {
+                out = new BgzfOutputStream(new BufferedOutputStream(stdout), nThreads, null);
             }
-            if(cmd.hasOption("e")) {
-                f.addOption(FusionOption.KEEP_EXON_BOUNDRY);
+            return new FastaWriter(out, lineWidth, null);
+        } else if(bgzf) {
+            OutputStream out = new BgzfOutputStream(new BufferedOutputStream(new FileOutputStream(path)), nThreads, new File(path+".gzi"));
+            return new FastaWriter(out, lineWidth, new File(path+".fai"));
+        }
+        return new FastaWriter(new FileOutputStream(path), lineWidth, null);
+    }
+
+    private GeneSelector createSelector(File geneModelFile, GeneModelParser parser, List<File> bamFiles, List<String[]> filters, double rpkmCutoff, int nThreads) {
+        GeneSelector selector = null;
+        if(bamFiles != null) {
+            BackgroundSelector background = new BackgroundSelector(bamFiles, rpkmCutoff, nThreads);
+            background.setCombineMethod(combineMethod);
+            background.setMinMappingQuality(minMappingQuality);
+            background.setExcludeDuplicates(excludeDuplicates);
+            background.setExcludeSecondary(excludeSecondary);
+            background.setSampleFraction(sampleFraction);
+            background.setReportFile(backgroundReport);
+            background.setChimericReportFile(chimericReport);
+            background.setTargetRegions(targetRegions);
+            background.setReferenceFile(cramReference);
+            selector = background;
+        } else if(reservoirSize > 0) {
+            ReservoirSelector reservoir = new ReservoirSelector(reservoirSize, filters);
+            if(expressionFile != null) {
+                reservoir.setExpression(expressionFile, rpkmCutoff, reservoirWeighted);
             }
+            selector = reservoir;
+        } else if(expressionFile != null) {
+            selector = new ExpressionSelector(expressionFile, rpkmCutoff);
+        } else {
+            selector = new StaticSelector();
+        }
+
+        selector.setGeneModelFile(geneModelFile);
+        selector.setGeneModelParser(parser);
+        return selector;
+    }
+
+    /**
+     * Open the transcript sequence store, building it from the gene model
+     * and reference if it doesn't exist yet. Returns null if no store was
+     * requested.
+     */
+    private TranscriptSequenceStore openSequenceStore(GeneSelector selector, File referenceFile) throws IOException {
+        if(sequenceStoreFile == null) return null;
+
+        if(sequenceStoreFile.exists()) {
+            return new TranscriptSequenceStore(sequenceStoreFile);
+        }
+        return TranscriptSequenceStore.build(sequenceStoreFile, selector.select(), referenceFile);
+    }
+
+    /**
+     * Open the donor sequence library for foreign insertions. Returns null
+     * if no donors were given.
+     */
+    private DonorLibrary openDonorLibrary() throws IOException {
+        if(donorFiles == null) return null;
+
+        return new DonorLibrary(donorFiles);
+    }
+
+    /**
+     * Generate fusions according to the given spec and write them to the
+     * text and/or FASTA output. Returns the number of fusions written.
+     */
+    int simulate(FusimSession session, FusionSpec spec, ChannelWriter textOutput, FastaWriter fastaOutput) throws IOException {
+        return simulate(session, spec, session.generate(spec), textOutput, fastaOutput);
+    }
+
+    /**
+     * Write fusions already generated by the session for the given spec
+     */
+    int simulate(FusimSession session, FusionSpec spec, Iterator<FusionGene> fusions, ChannelWriter textOutput, FastaWriter fastaOutput) throws IOException {
+        if(!fusions.hasNext()) {
+            return 0;
+        }
+        
+        if(textOutput != null) {
+            FusionGene.writeHeader(textOutput);
+        }
+
+        // Reused for every fusion
+        StringBuilder header = new StringBuilder();
+        StringBuilder seq = new StringBuilder();
+
+        int n = 0;
+        while(fusions.hasNext()) {
+            FusionGene f = fusions.next();
             
             if(textOutput != null) {
-                textOutput.print(f.outputText(breaks, cmd.hasOption("c")));
+                f.writeText(textOutput, spec.isCdsOnly());
             }
             
             if(fastaOutput != null) {
-                if(foreignInsertionLen > 0 && foreignInsertionCutoff > 0 && g <= foreignInsertionCutoff) {
-                    f.addOption(FusionOption.FOREIGN_INSERTION);
-                    fastaOutput.println(f.outputFasta(breaks, referenceFile, cmd.hasOption("c"), cmd.hasOption("a"), foreignInsertionLen));
-                } else {
-                    fastaOutput.println(f.outputFasta(breaks, referenceFile, cmd.hasOption("c"), cmd.hasOption("a")));
-                }
+                // Insertions are only part of the sequence, so only the
+                // FASTA header lists them
+                if(f.isForeignInsertion()) f.addOption(FusionOption.FOREIGN_INSERTION);
+                header.setLength(0);
+                seq.setLength(0);
+                f.appendFastaHeader(header);
+                session.appendFastaSequence(seq, f, spec);
+                fastaOutput.write(header, seq);
             }
+            n++;
         }
-        
- 
-        
-        if(textOutput != null) textOutput.flush();
-        if(fastaOutput != null) fastaOutput.flush();
 
-        logger.info("Fusim run complete. Goodbye!");
+        return n;
+    }
+
+    Options getOptions() {
+        return options;
     }
 
     @SuppressWarnings("static-access")
@@ -510,13 +836,13 @@ public class Fusim {
         );
         options.addOption(
                 OptionBuilder.withLongOpt("reference")
-                             .withDescription("Path to indexed reference genome fasta file (.fai)")
+                             .withDescription("Path to indexed reference genome fasta file (.fai) or UCSC .2bit file")
                              .hasArg()
                              .create("r")
             );
         options.addOption(
                 OptionBuilder.withLongOpt("background-reads")
-                             .withDescription("Path to BAM file containing background reads. Genes will be selected for fusions according to the read profile of the background reads.")
+                             .withDescription("Path to BAM or CRAM file containing background reads. Genes will be selected for fusions according to the read profile of the background reads. Separate multiple files with commas. CRAM files are decoded with samtools using the reference genome (-r).")
                              .hasArg()
                              .create("b")
             );
@@ -538,6 +864,23 @@ public class Fusim {
                              .hasArg()
                              .create("f")
             );
+        options.addOption(
+                OptionBuilder.withLongOpt("sequence-store")
+                             .withDescription("Path to a transcript sequence store used for FASTA output. Built from the gene model and reference if it doesn't exist")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("bgzf")
+                             .withDescription("Compress FASTA output with BGZF and write .fai and .gzi indexes")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("line-width")
+                             .withDescription("Wrap FASTA sequence lines at this width. Defaults to 60 with --bgzf, otherwise no wrapping")
+                             .hasArg()
+                             .create()
+            );
         options.addOption(
                 OptionBuilder.withLongOpt("cds-only")
                              .withDescription("Only include CDS exons")
@@ -567,12 +910,114 @@ public class Fusim {
                              .hasArg()
                              .create("y")
             );
+        options.addOption(
+                OptionBuilder.withLongOpt("unique")
+                             .withDescription("Don't generate more than one fusion of the same transcripts")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("unique-breaks")
+                             .withDescription("Don't generate more than one fusion of the same transcripts with the same breaks")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("exclude-chimeric")
+                             .withDescription("Don't generate fusions of gene pairs supported by discordant or split reads in the background reads (-b)")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("breakpoints")
+                             .withDescription("Distribution of fusion breaks over the exons of each transcript: uniform|5prime|3prime|exon-length|hotspot")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("hotspots")
+                             .withDescription("Draw fusion breaks from the hotspots in this file (gene or transcript id, exon number, optional weight)")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("catalog")
+                             .withDescription("Replay the known fusions of a tab delimited catalog (5' partner, 3' partner, optional 5' and 3' breaks as exon numbers or chrom:pos). Partners are gene or transcript ids. With -n only the first n fusions are replayed.")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("enumerate")
+                             .withDescription("Enumerate every exon boundary junction between the gene1 (-1) and gene2 (-2) partners, up to this many junctions (0 for no limit)")
+                             .hasArg()
+                             .create()
+            );
         options.addOption(
                 OptionBuilder.withLongOpt("rpkm-cutoff")
                              .withDescription("RPKM cutoff when using background BAM file. Genes below the cutoff will be ignored")
                              .hasArg()
                              .create("k")
             );
+        options.addOption(
+                OptionBuilder.withLongOpt("expression")
+                             .withDescription("Path to expression table (featureCounts, salmon, kallisto or RSEM). Genes will be selected for fusions according to the expression values instead of background reads. Tables with only TPM values use TPM in place of RPKM.")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("targets")
+                             .withDescription("BED file of target regions (a gene panel). Only transcripts with exons overlapping a target are used and background reads are only counted inside the targets")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("reservoir")
+                             .withDescription("Stream the gene model and only keep a random sample of this many transcripts (and this many matching each of -1/-2/-3)")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("reservoir-weighted")
+                             .withDescription("Sample transcripts for --reservoir in proportion to their expression values (requires --expression)")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("background-combine")
+                             .withDescription("Method to combine the RPKM values of multiple background BAM files: mean|median")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("min-mapq")
+                             .withDescription("Only count background reads with at least this mapping quality")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("exclude-duplicates")
+                             .withDescription("Don't count background reads flagged as duplicates")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("exclude-secondary")
+                             .withDescription("Don't count secondary or supplementary alignments of background reads")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("background-sample")
+                             .withDescription("Estimate RPKM values by counting reads in a random fraction of genomic tiles (0 < fraction <= 1)")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("background-report")
+                             .withDescription("Write the read counts, RPKM values and 95% confidence intervals of each transcript to this file")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("chimeric-report")
+                             .withDescription("Write the gene pairs supported by discordant or split background reads to this file. Only reads counted are scanned, so the report is partial with --background-sample or --targets")
+                             .hasArg()
+                             .create()
+            );
         options.addOption(
                 OptionBuilder.withLongOpt("threads")
                              .withDescription("Number of threads to spawn when processing background BAM file")
@@ -598,7 +1043,7 @@ public class Fusim {
             );
         options.addOption(
                 OptionBuilder.withLongOpt("gene-selection-method")
-                             .withDescription("Method to use when selecting genes for fusions: uniform|binned|empirical|empirical-sturges")
+                             .withDescription("Method to use when selecting genes for fusions: uniform|binned|empirical|empirical-sturges|empirical-fd")
                              .hasArg()
                              .create("m")
             );
@@ -653,6 +1098,41 @@ public class Fusim {
                              .hasArg()
                              .create("w")
             );
+        options.addOption(
+                OptionBuilder.withLongOpt("donors")
+                             .withDescription("Comma separated list of FASTA files of donor sequences (e.g. viral genomes) to draw foreign insertions from instead of random bases")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("daemon")
+                             .withDescription("Load the gene model, reference and background reads once and serve fusion requests over HTTP on localhost")
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("port")
+                             .withDescription("Port to listen on when running with --daemon (default "+FusimServer.DEFAULT_PORT+")")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("data-dir")
+                             .withDescription("Directory of the hotspot and catalog files daemon requests may name with --hotspots and --catalog")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("batch")
+                             .withDescription("Load the gene model, reference and background reads once and run each simulation listed in a tab delimited manifest file")
+                             .hasArg()
+                             .create()
+            );
+        options.addOption(
+                OptionBuilder.withLongOpt("reference-cache")
+                             .withDescription("Number of reference bases to cache in --batch and --daemon mode (default "+DEFAULT_REFERENCE_CACHE+", 0 disables)")
+                             .hasArg()
+                             .create()
+            );
         options.addOption(
                 OptionBuilder.withLongOpt("version")
                              .withDescription("Display version info")
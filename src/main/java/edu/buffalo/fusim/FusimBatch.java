@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.buffalo.fusim.io.ChannelWriter;
+import edu.buffalo.fusim.io.FastaWriter;
+
+/**
+ * Run many fusion simulations against a single loaded session. The manifest
+ * is a tab delimited file with one run per line: a run name followed by the
+ * fusion options for that run. Blank lines and lines starting with # are
+ * ignored. For example:
+ *
+ *   # name       options
+ *   hybrid-10    -n 10 -t hybrid-10.txt -f hybrid-10.fa
+ *   cds-exon     -n 50 -c -e -t cds-exon.txt
+ *   foreign      -n 20 -u 30 -w 0.5
+ *
+ * Runs with no output options write their text output to name.txt. The
+ * options which load the gene model, reference and background reads are set
+ * once on the command line and can't be changed per run.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FusimBatch {
+    private static Log logger = LogFactory.getLog(FusimBatch.class);
+
+    private Fusim fusim;
+    private FusimSession session;
+    private int threads;
+
+    public FusimBatch(Fusim fusim, FusimSession session, int threads) {
+        this.fusim = fusim;
+        this.session = session;
+        this.threads = threads;
+    }
+
+    /**
+     * Run all the jobs in the manifest. A failed run is logged and does not
+     * stop the remaining runs. Returns the number of runs which failed.
+     */
+    public int run(File manifest) throws IOException, InterruptedException {
+        List<String[]> jobs = this.parseManifest(manifest);
+        logger.info("Running "+jobs.size()+" jobs from manifest: "+manifest.getAbsolutePath());
+
+        final AtomicInteger failed = new AtomicInteger(0);
+        long tstart = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        for(final String[] job : jobs) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runJob(job[0], job[1]);
+                    } catch(Exception e) {
+                        failed.incrementAndGet();
+                        logger.fatal("Run '"+job[0]+"' failed: "+e.getMessage());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        long tend = System.currentTimeMillis();
+        logger.info("Completed "+(jobs.size()-failed.get())+" of "+jobs.size()+" runs in "+(tend-tstart)+"ms");
+        SequenceCache cache = session.getSequenceCache();
+        if(cache != null) {
+            logger.info("Reference cache hits: "+cache.getHits()+" misses: "+cache.getMisses());
+        }
+        TranscriptSequenceStore store = session.getSequenceStore();
+        if(store != null) {
+            logger.info("Sequence store hits: "+store.getHits()+" misses: "+store.getMisses());
+        }
+
+        return failed.get();
+    }
+
+    private List<String[]> parseManifest(File manifest) throws IOException {
+        List<String[]> jobs = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line = null;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) continue;
+
+                String[] fields = line.split("\t", 2);
+                if(fields.length != 2 || fields[0].trim().length() == 0) {
+                    throw new IOException("Invalid manifest line "+lineNumber+", expected: name<TAB>options");
+                }
+                jobs.add(new String[]{fields[0].trim(), fields[1].trim()});
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    private void runJob(String name, String args) throws IOException, ParseException {
+        long tstart = System.currentTimeMillis();
+
+        CommandLine cmd = new PosixParser().parse(fusim.getOptions(), args.length() == 0 ? new String[0] : args.split("\\s+"));
+        for(String opt : FusimServer.LOAD_OPTIONS) {
+            if(cmd.hasOption(opt)) {
+                throw new ParseException("Option '"+opt+"' is fixed for the whole batch and can't be set per run");
+            }
+        }
+        if("-".equals(cmd.getOptionValue("t")) || "-".equals(cmd.getOptionValue("f"))) {
+            throw new ParseException("Batch runs can't write to standard output");
+        }
+
+        FusionSpec spec = fusim.parseFusionSpec(cmd);
+        int lineWidth = fusim.parseLineWidth(cmd);
+        if(cmd.hasOption("f") && session.getReferenceFile() == null && session.getSequenceStore() == null) {
+            throw new ParseException("FASTA output requires the batch to be run with a reference (-r)");
+        }
+        if(spec.getTotalFusions() == 0 && !spec.isEnumerateJunctions() && spec.getCatalogFile() == null) {
+            throw new ParseException("No fusions to simulate! Check to be sure you have -j,-n,-s,-x,-y specified (or --enumerate, --catalog)");
+        }
+
+        ChannelWriter textOutput = null;
+        FastaWriter fastaOutput = null;
+        int n = 0;
+        try {
+            if(cmd.hasOption("t")) {
+                textOutput = fusim.openTextOutput(cmd.getOptionValue("t"), null);
+            }
+            if(cmd.hasOption("f")) {
+                // Runs are already spread across the pool so compress in this thread
+                fastaOutput = fusim.openFastaOutput(cmd.getOptionValue("f"), null, cmd.hasOption("bgzf"), lineWidth, 1);
+            }
+            if(textOutput == null && fastaOutput == null) {
+                textOutput = fusim.openTextOutput(name+".txt", null);
+            }
+
+            n = fusim.simulate(session, spec, textOutput, fastaOutput);
+        } finally {
+            if(textOutput != null) textOutput.close();
+            if(fastaOutput != null) fastaOutput.close();
+        }
+
+        long tend = System.currentTimeMillis();
+        logger.info("Run '"+name+"' generated "+n+" fusions in "+(tend-tstart)+"ms");
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.buffalo.fusim.io.ChannelWriter;
+import edu.buffalo.fusim.io.FastaWriter;
+
+/**
+ * Minimal HTTP server used when running Fusim as a daemon. The gene model,
+ * reference and background reads are loaded once and kept in memory. Each
+ * request carries the same fusion options as the command line and the
+ * results are streamed back in the response. For example:
+ *
+ *   curl --data "-n 10 -c -e" http://localhost:7171/generate
+ *   curl "http://localhost:7171/generate?args=-n+10+-f+-"
+ *
+ * Output is always written to the response body. Output options may only be
+ * set to "-", so clients can't create or overwrite files on the server.
+ * Hotspot and catalog files are named relative to the data directory given
+ * when the daemon starts, so clients can't read other files on the server.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FusimServer {
+    private static Log logger = LogFactory.getLog(FusimServer.class);
+
+    public static final int DEFAULT_PORT = 7171;
+
+    /**
+     * Largest request body accepted. The body only carries fusion options.
+     */
+    static final int MAX_REQUEST_BODY = 65536;
+
+    /**
+     * Longest request or header line and most header lines accepted
+     */
+    static final int MAX_LINE = 8192;
+    static final int MAX_HEADERS = 100;
+
+    /**
+     * Milliseconds to wait for the client while reading a request
+     */
+    static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Options fixed when the daemon starts which can't be changed per request
+     */
+    static final String[] LOAD_OPTIONS = new String[]{
+        "g", "r", "b", "k", "l", "p", "z", "i", "o", "h", "v", "daemon", "port",
+        "batch", "reference-cache", "background-sample", "background-report",
+        "expression", "background-combine", "min-mapq", "exclude-duplicates",
+        "exclude-secondary", "sequence-store", "reservoir", "reservoir-weighted",
+        "targets", "chimeric-report", "donors", "data-dir"
+    };
+
+    private Fusim fusim;
+    private FusimSession session;
+    private int threads;
+    private File dataDir;
+
+    public FusimServer(Fusim fusim, FusimSession session, int threads) {
+        this.fusim = fusim;
+        this.session = session;
+        this.threads = threads;
+    }
+
+    /**
+     * Directory of the hotspot and catalog files requests may use. Requests
+     * can't use hotspot or catalog files if null.
+     */
+    public void setDataDir(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        logger.info("Fusim daemon listening on 127.0.0.1:"+port);
+
+        try {
+            while(true) {
+                final Socket socket = server.accept();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            server.close();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            try {
+                String requestLine = null;
+                try {
+                    requestLine = readLine(in);
+                } catch(LineTooLongException e) {
+                    sendError(out, 414, "Request-URI Too Long", "Request line is limited to "+MAX_LINE+" bytes");
+                    return;
+                }
+                if(requestLine == null) return;
+
+                String[] request = requestLine.split(" ");
+                if(request.length < 2) {
+                    sendError(out, 400, "Bad Request", "Malformed request line");
+                    return;
+                }
+
+                int contentLength = 0;
+                int headers = 0;
+                while(true) {
+                    String header = null;
+                    try {
+                        header = readLine(in);
+                    } catch(LineTooLongException e) {
+                        sendError(out, 431, "Request Header Fields Too Large", "Header lines are limited to "+MAX_LINE+" bytes");
+                        return;
+                    }
+                    if(header == null || header.length() == 0) break;
+                    if(++headers > MAX_HEADERS) {
+                        sendError(out, 431, "Request Header Fields Too Large", "Requests are limited to "+MAX_HEADERS+" headers");
+                        return;
+                    }
+                    int idx = header.indexOf(':');
+                    if(idx > 0 && "content-length".equalsIgnoreCase(header.substring(0, idx).trim())) {
+                        try {
+                            contentLength = Integer.parseInt(header.substring(idx+1).trim());
+                            if(contentLength < 0) throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            sendError(out, 400, "Bad Request", "Invalid Content-Length");
+                            return;
+                        }
+                    }
+                }
+                if(contentLength > MAX_REQUEST_BODY) {
+                    sendError(out, 413, "Request Entity Too Large", "Request body is limited to "+MAX_REQUEST_BODY+" bytes");
+                    return;
+                }
+
+                String path = request[1];
+                String query = null;
+                int q = path.indexOf('?');
+                if(q >= 0) {
+                    query = path.substring(q+1);
+                    path = path.substring(0, q);
+                }
+
+                if("/status".equals(path)) {
+                    sendHeader(out, 200, "OK");
+                    out.write(("ok transcripts="+session.getGeneSelector().select().size()+"\n").getBytes("UTF-8"));
+                } else if("/generate".equals(path)) {
+                    String args = "";
+                    if(query != null) {
+                        args = queryParameter(query, "args");
+                    }
+                    if(contentLength > 0) {
+                        byte[] body = new byte[contentLength];
+                        int read = 0;
+                        while(read < contentLength) {
+                            int n = in.read(body, read, contentLength-read);
+                            if(n < 0) break;
+                            read += n;
+                        }
+                        args = args+" "+new String(body, 0, read, "UTF-8");
+                    }
+                    generate(args.trim(), out);
+                } else {
+                    sendError(out, 404, "Not Found", "Unknown path: "+path);
+                }
+            } finally {
+                out.flush();
+                socket.close();
+            }
+        } catch(SocketTimeoutException e) {
+            logger.warn("Timed out reading request from "+socket.getInetAddress());
+        } catch(Exception e) {
+            logger.fatal("Failed to handle request: "+e.getMessage());
+        }
+    }
+
+    private void generate(String args, OutputStream out) throws IOException {
+        long tstart = System.currentTimeMillis();
+
+        FusionSpec spec = null;
+        CommandLine cmd = null;
+        int lineWidth = 0;
+        try {
+            cmd = new PosixParser().parse(fusim.getOptions(), args.length() == 0 ? new String[0] : args.split("\\s+"));
+            for(String opt : LOAD_OPTIONS) {
+                if(cmd.hasOption(opt)) {
+                    throw new ParseException("Option '"+opt+"' is fixed when the daemon starts and can't be set per request");
+                }
+            }
+            for(String opt : new String[]{"t", "f"}) {
+                if(cmd.hasOption(opt) && !"-".equals(cmd.getOptionValue(opt))) {
+                    throw new ParseException("Option '"+opt+"' must be \"-\", the daemon only writes output to the response");
+                }
+            }
+            for(String opt : new String[]{"hotspots", "catalog"}) {
+                if(!cmd.hasOption(opt)) continue;
+                if(dataDir == null) {
+                    throw new ParseException("Option '"+opt+"' requires the daemon to be started with a data directory (--data-dir)");
+                }
+                String name = cmd.getOptionValue(opt);
+                if(name.startsWith(".") || !new File(name).getName().equals(name)) {
+                    throw new ParseException("Option '"+opt+"' must be the name of a file in the daemon data directory");
+                }
+            }
+            spec = fusim.parseFusionSpec(cmd, dataDir);
+            lineWidth = fusim.parseLineWidth(cmd);
+            if(cmd.hasOption("f") && session.getReferenceFile() == null && session.getSequenceStore() == null) {
+                throw new ParseException("FASTA output requires the daemon to be started with a reference (-r)");
+            }
+            if(spec.getTotalFusions() == 0 && !spec.isEnumerateJunctions() && spec.getCatalogFile() == null) {
+                throw new ParseException("No fusions to simulate! Check to be sure you have -j,-n,-s,-x,-y specified (or --enumerate, --catalog)");
+            }
+        } catch(ParseException e) {
+            sendError(out, 400, "Bad Request", e.getMessage());
+            return;
+        }
+
+        // Generate the first fusion before sending the header, so an
+        // impossible spec or a bad catalog is reported as an error and not
+        // as an empty response
+        Iterator<FusionGene> fusions = null;
+        try {
+            fusions = new PrimedIterator(session.generate(spec));
+        } catch(IllegalArgumentException e) {
+            sendError(out, 400, "Bad Request", e.getMessage());
+            return;
+        } catch(IllegalStateException e) {
+            sendError(out, 400, "Bad Request", e.getMessage());
+            return;
+        } catch(RuntimeException e) {
+            logger.fatal("Failed to generate fusions: "+e.getMessage());
+            sendError(out, 500, "Internal Server Error", "Failed to generate fusions: "+e.getMessage());
+            return;
+        }
+
+        ChannelWriter textOutput = null;
+        FastaWriter fastaOutput = null;
+
+        sendHeader(out, 200, "OK");
+
+        // Outputs written to the response must not close the socket
+        OutputStream body = new CloseShieldOutputStream(out);
+        if(cmd.hasOption("t")) {
+            textOutput = fusim.openTextOutput(cmd.getOptionValue("t"), body);
+        }
+        if(cmd.hasOption("f")) {
+            fastaOutput = fusim.openFastaOutput(cmd.getOptionValue("f"), body, cmd.hasOption("bgzf"), lineWidth, 1);
+        }
+        if(textOutput == null && fastaOutput == null) {
+            textOutput = new ChannelWriter(body);
+        }
+
+        int n = 0;
+        try {
+            n = fusim.simulate(session, spec, fusions, textOutput, fastaOutput);
+        } finally {
+            if(textOutput != null) textOutput.close();
+            if(fastaOutput != null) fastaOutput.close();
+        }
+
+        long tend = System.currentTimeMillis();
+        logger.info("Generated "+n+" fusions in "+(tend-tstart)+"ms: "+args);
+    }
+
+    private static void sendHeader(OutputStream out, int code, String reason) throws IOException {
+        out.write(("HTTP/1.0 "+code+" "+reason+"\r\n"
+                   +"Content-Type: text/plain; charset=UTF-8\r\n"
+                   +"Connection: close\r\n\r\n").getBytes("UTF-8"));
+    }
+
+    private static void sendError(OutputStream out, int code, String reason, String message) throws IOException {
+        sendHeader(out, code, reason);
+        out.write((message+"\n").getBytes("UTF-8"));
+    }
+
+    private static String queryParameter(String query, String name) throws UnsupportedEncodingException {
+        for(String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            if(idx > 0 && name.equals(param.substring(0, idx))) {
+                return URLDecoder.decode(param.substring(idx+1), "UTF-8");
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Read a line of the request, throws LineTooLongException if the line
+     * is longer than MAX_LINE
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while((c = in.read()) != -1) {
+            if(c == '\n') break;
+            if(c == '\r') continue;
+            if(line.size() == MAX_LINE) throw new LineTooLongException();
+            line.write(c);
+        }
+        if(c == -1 && line.size() == 0) return null;
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Fusions of a session with the first one already generated
+     */
+    private static class PrimedIterator implements Iterator<FusionGene> {
+        private Iterator<FusionGene> fusions;
+        private FusionGene first;
+
+        public PrimedIterator(Iterator<FusionGene> fusions) {
+            this.fusions = fusions;
+            this.first = fusions.hasNext() ? fusions.next() : null;
+        }
+
+        public boolean hasNext() {
+            return first != null || fusions.hasNext();
+        }
+
+        public FusionGene next() {
+            if(first == null) return fusions.next();
+
+            FusionGene f = first;
+            first = null;
+            return f;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
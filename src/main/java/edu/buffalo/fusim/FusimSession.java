@@ -0,0 +1,741 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A loaded gene model, reference and optional background profile which can
+ * be used to generate fusions over and over again without re-loading any of
+ * the inputs. Sessions are immutable once created and generate() can be
+ * called concurrently from multiple threads. Example usage:
+ *
+ * <pre>
+ *   GeneSelector selector = new StaticSelector();
+ *   selector.setGeneModelFile(new File("refFlat.txt"));
+ *   selector.setGeneModelParser(new UCSCRefFlatParser());
+ *   FusimSession session = new FusimSession(selector, new File("hg19.fa"), false);
+ *
+ *   FusionSpec spec = new FusionSpec();
+ *   spec.setFusions(10);
+ *   Iterator&lt;FusionGene&gt; it = session.generate(spec);
+ *   while(it.hasNext()) {
+ *       FusionGene f = it.next();
+ *       String seq = session.getFastaSequence(f, spec);
+ *   }
+ * </pre>
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FusimSession {
+    private static Log logger = LogFactory.getLog(FusimSession.class);
+
+    /**
+     * Bits of a fusion key used for the index of each transcript
+     */
+    private static final int KEY_BITS = 21;
+
+    /**
+     * Number of rounds of re-sampling which find no new fusions before
+     * giving up on generating unique fusions
+     */
+    private static final int MAX_STALE_ROUNDS = 10;
+
+    /**
+     * Number of times the breaks of a fusion are re-generated to find a
+     * unique set of breaks
+     */
+    private static final int MAX_BREAK_ATTEMPTS = 100;
+
+    /**
+     * Number of rows of a fusion catalog read at a time
+     */
+    private static final int CATALOG_BATCH = 1024;
+
+    /**
+     * Most breakpoint models kept, the least recently used are dropped
+     */
+    private static final int MAX_BREAKPOINT_MODELS = 16;
+
+    private final GeneSelector selector;
+    private final File referenceFile;
+    private final boolean background;
+    private final SequenceCache sequenceCache;
+    private final TranscriptSequenceStore sequenceStore;
+    private final ChimericCatalog chimericCatalog;
+    private final DonorLibrary donorLibrary;
+    private final Map<String, GeneSelector> views = new HashMap<String, GeneSelector>();
+    private final Map<String, BreakpointModel> breakpointModels = new LinkedHashMap<String, BreakpointModel>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, BreakpointModel> eldest) {
+            return size() > MAX_BREAKPOINT_MODELS;
+        }
+    };
+    private final Map<TranscriptRecord, Integer> transcriptIndex = new IdentityHashMap<TranscriptRecord, Integer>();
+    private final List<ExtractSeq> references = new ArrayList<ExtractSeq>();
+    private final ThreadLocal<ExtractSeq> extractSeq = new ThreadLocal<ExtractSeq>() {
+        protected ExtractSeq initialValue() {
+            ExtractSeq ref = new ExtractSeq(referenceFile, sequenceCache);
+            synchronized(references) {
+                references.add(ref);
+            }
+            return ref;
+        }
+    };
+    private final ThreadLocal<Random> insertionRandom = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * Create a new session. This loads the gene model (and computes the
+     * background profile for a BackgroundSelector) before returning.
+     *
+     * @param selector gene selector to draw transcripts from
+     * @param referenceFile indexed reference genome, may be null if FASTA
+     *                      sequences are not needed
+     * @param background true if the selector provides RPKM values for the
+     *                   binned/empirical gene selection methods
+     */
+    public FusimSession(GeneSelector selector, File referenceFile, boolean background) {
+        this(selector, referenceFile, background, null);
+    }
+
+    /**
+     * Create a new session which caches sequences fetched from the reference
+     * across all threads and calls to generate()
+     *
+     * @param sequenceCache shared reference sequence cache (may be null)
+     */
+    public FusimSession(GeneSelector selector, File referenceFile, boolean background, SequenceCache sequenceCache) {
+        this(selector, referenceFile, background, sequenceCache, null);
+    }
+
+    /**
+     * Create a new session which slices fusion sequences out of a transcript
+     * sequence store. Transcripts missing from the store are fetched from the
+     * reference.
+     *
+     * @param sequenceStore transcript sequence store (may be null)
+     */
+    public FusimSession(GeneSelector selector, File referenceFile, boolean background, SequenceCache sequenceCache, TranscriptSequenceStore sequenceStore) {
+        this(selector, referenceFile, background, sequenceCache, sequenceStore, null);
+    }
+
+    /**
+     * Create a new session which draws foreign insertions from a library of
+     * donor sequences instead of random bases
+     *
+     * @param donorLibrary donor sequence library (may be null)
+     */
+    public FusimSession(GeneSelector selector, File referenceFile, boolean background, SequenceCache sequenceCache, TranscriptSequenceStore sequenceStore, DonorLibrary donorLibrary) {
+        this.selector = selector;
+        this.referenceFile = referenceFile;
+        this.background = background;
+        this.sequenceCache = sequenceCache;
+        this.sequenceStore = sequenceStore;
+        this.donorLibrary = donorLibrary;
+
+        List<TranscriptRecord> transcripts = selector.select();
+        logger.info("Loaded "+transcripts.size()+" transcripts");
+
+        // Compact ids used to track unique fusions
+        for(TranscriptRecord tr : transcripts) {
+            transcriptIndex.put(tr, transcriptIndex.size()+1);
+        }
+
+        // Sort once up front so runs only walk the precomputed orderings
+        selector.getOrder();
+
+        if(selector instanceof BackgroundSelector) {
+            this.chimericCatalog = ((BackgroundSelector)selector).getChimericCatalog();
+        } else {
+            this.chimericCatalog = null;
+        }
+    }
+
+    public GeneSelector getGeneSelector() {
+        return this.selector;
+    }
+
+    public File getReferenceFile() {
+        return this.referenceFile;
+    }
+
+    public boolean isBackground() {
+        return this.background;
+    }
+
+    public SequenceCache getSequenceCache() {
+        return this.sequenceCache;
+    }
+
+    public TranscriptSequenceStore getSequenceStore() {
+        return this.sequenceStore;
+    }
+
+    public DonorLibrary getDonorLibrary() {
+        return this.donorLibrary;
+    }
+
+    /**
+     * Close the reference files opened by the threads which fetched
+     * sequences. Call once all threads are done with the session, sequences
+     * can't be fetched after the session is closed.
+     */
+    public void close() {
+        synchronized(references) {
+            for(ExtractSeq ref : references) {
+                try {
+                    ref.close();
+                } catch(IOException e) {
+                    logger.warn("Failed to close reference: "+e.getMessage());
+                }
+            }
+            references.clear();
+        }
+    }
+
+    /**
+     * Gene pairs supported by chimeric reads in the background BAM files, or
+     * null if the session has no background reads
+     */
+    public ChimericCatalog getChimericCatalog() {
+        return this.chimericCatalog;
+    }
+
+    /**
+     * Generate fusions according to the given spec. The fusion genes are
+     * selected up front and the breaks for each fusion are generated as the
+     * iterator is consumed.
+     */
+    public Iterator<FusionGene> generate(FusionSpec spec) {
+        if(spec.isEnumerateJunctions()) {
+            return this.enumerateJunctions(spec);
+        }
+        if(spec.getCatalogFile() != null) {
+            return this.replayCatalog(spec);
+        }
+        if((spec.isUnique() || spec.isUniqueBreaks()) && transcriptIndex.size() >= (1 << KEY_BITS)) {
+            throw new IllegalStateException("Unique fusions are only supported for gene models with less than "+(1 << KEY_BITS)+" transcripts");
+        }
+        if(spec.isExcludeChimeric() && chimericCatalog == null) {
+            throw new IllegalArgumentException("Excluding gene pairs supported by chimeric reads requires background reads (-b)");
+        }
+        LongHashSet seenGenes = spec.isUnique() ? new LongHashSet(spec.getTotalFusions()) : null;
+        LongHashSet seenBreaks = spec.isUniqueBreaks() ? new LongHashSet(spec.getTotalFusions()) : null;
+        return new FusionIterator(this.selectGenes(spec, seenGenes), spec, seenBreaks);
+    }
+
+    /**
+     * Enumerate every exon boundary junction between the gene1 and gene2
+     * partners (all transcripts if no filter is given)
+     */
+    private Iterator<FusionGene> enumerateJunctions(final FusionSpec spec) {
+        GeneSelector view = this.getView(spec);
+        List<String[]> filters = spec.getFilters();
+        String[] filter1 = filters != null && filters.size() > 0 ? filters.get(0) : null;
+        String[] filter2 = filters != null && filters.size() > 1 ? filters.get(1) : null;
+
+        logger.info("Enumerating fusion junctions...");
+        final JunctionEnumerator junctions = new JunctionEnumerator(view.select(filter1), view.select(filter2),
+                                                                    spec.isCdsOnly(), spec.isOutOfFrame(), spec.getMaxJunctions());
+
+        return new Iterator<FusionGene>() {
+            public boolean hasNext() {
+                return junctions.hasNext();
+            }
+
+            public FusionGene next() {
+                FusionGene f = junctions.next();
+                setFusionOptions(f, spec.isCdsOnly(), true, spec.isOutOfFrame(), spec.isAutoCorrectOrientation());
+                return f;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Replay the fusions of a catalog, reading the catalog in batches as the
+     * iterator is consumed. Fusions without breaks in the catalog get random
+     * breaks according to the spec.
+     */
+    private Iterator<FusionGene> replayCatalog(final FusionSpec spec) {
+        final CatalogGenerator catalog = new CatalogGenerator(spec.getCatalogFile(), spec.isCdsOnly());
+        catalog.setGeneSelector(this.getView(spec));
+        final int limit = spec.getFusions();
+        final BreakpointModel model = this.getBreakpointModel(spec);
+
+        logger.info("Replaying fusion catalog "+spec.getCatalogFile().getAbsolutePath()+"...");
+        return new Iterator<FusionGene>() {
+            private List<FusionGene> batch = new ArrayList<FusionGene>();
+            private int index = 0;
+            private int count = 0;
+            private Random rgen = new Random();
+
+            public boolean hasNext() {
+                if(limit > 0 && count >= limit) return false;
+                while(index >= batch.size()) {
+                    if(catalog.isDone()) return false;
+                    batch = catalog.generate(CATALOG_BATCH, 2);
+                    index = 0;
+                }
+                return true;
+            }
+
+            public FusionGene next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                FusionGene f = batch.get(index);
+                batch.set(index++, null);
+                count++;
+
+                if(f.getBreaks().isEmpty()) {
+                    generateBreaks(f, model, spec.isCdsOnly(), spec.isKeepExonBoundry(), spec.isOutOfFrame(), rgen);
+                    setFusionOptions(f, spec.isCdsOnly(), spec.isKeepExonBoundry(), spec.isOutOfFrame(), spec.isAutoCorrectOrientation());
+                } else {
+                    setFusionOptions(f, spec.isCdsOnly(), true, !isInFrame(f, spec.isCdsOnly()), spec.isAutoCorrectOrientation());
+                }
+                return f;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns true if the reading frame of the 3' partner continues across
+     * the exon boundary break of a two gene fusion: the bases kept from the
+     * 5' partner and the bases dropped from the 3' partner have the same
+     * phase.
+     */
+    private static boolean isInFrame(FusionGene f, boolean cdsOnly) {
+        int kept = 0;
+        for(int exon : f.getBreaks().get(0)) {
+            int[] e = f.getGene(0).getExons(cdsOnly).get(exon);
+            kept += e[1]-e[0];
+        }
+        int dropped = 0;
+        for(int[] e : f.getGene(1).getExons(cdsOnly)) {
+            dropped += e[1]-e[0];
+        }
+        for(int exon : f.getBreaks().get(1)) {
+            int[] e = f.getGene(1).getExons(cdsOnly).get(exon);
+            dropped -= e[1]-e[0];
+        }
+        return kept % 3 == dropped % 3;
+    }
+
+    /**
+     * Fetch the FASTA sequence of a fusion generated by this session
+     */
+    public String getFastaSequence(FusionGene fusion, FusionSpec spec) {
+        StringBuilder seq = new StringBuilder();
+        this.appendFastaSequence(seq, fusion, spec);
+        return seq.toString();
+    }
+
+    /**
+     * Append the FASTA sequence of a fusion generated by this session to a
+     * (reusable) buffer
+     */
+    public void appendFastaSequence(StringBuilder seq, FusionGene fusion, FusionSpec spec) {
+        if(referenceFile == null && sequenceStore == null) {
+            throw new IllegalStateException("No reference genome or sequence store loaded in this session");
+        }
+
+        int foreignInsertionLen = 0;
+        if(fusion.isForeignInsertion()) {
+            foreignInsertionLen = spec.getForeignInsertionLength();
+        }
+
+        fusion.appendFastaSequence(seq, sequenceStore, referenceFile == null ? null : extractSeq.get(),
+                                   spec.isCdsOnly(), spec.isAutoCorrectOrientation(), foreignInsertionLen,
+                                   donorLibrary, insertionRandom.get());
+    }
+
+    /**
+     * Returns the view of the gene model for the cds only and keep exon
+     * boundry settings of the spec
+     */
+    private GeneSelector getView(FusionSpec spec) {
+        String key = spec.isCdsOnly()+":"+spec.isKeepExonBoundry();
+        synchronized(views) {
+            GeneSelector view = views.get(key);
+            if(view == null) {
+                view = new FilteredSelector(selector, spec.isKeepExonBoundry(), spec.isCdsOnly());
+                views.put(key, view);
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Returns the breakpoint model of the spec. Recently used models are
+     * shared by runs so the cumulative weights of each transcript are only
+     * computed once.
+     */
+    private BreakpointModel getBreakpointModel(FusionSpec spec) {
+        File hotspotFile = spec.getHotspotFile();
+        String key = hotspotFile != null ? "hotspot:"+hotspotFile.getAbsolutePath() : spec.getBreakpointDistribution().toString();
+        synchronized(breakpointModels) {
+            BreakpointModel model = breakpointModels.get(key);
+            if(model == null) {
+                if(hotspotFile != null) {
+                    try {
+                        model = new BreakpointModel(hotspotFile);
+                    } catch(IOException e) {
+                        throw new RuntimeException("Failed to read hotspot file: "+e.getMessage(), e);
+                    }
+                } else {
+                    model = new BreakpointModel(spec.getBreakpointDistribution());
+                }
+                breakpointModels.put(key, model);
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Packs the indexes of the transcripts of the fusion into a long
+     */
+    private long getFusionKey(FusionGene f) {
+        long key = 0;
+        for(int i = 0; i < f.size(); i++) {
+            key |= ((long)getTranscriptIndex(f.getGene(i))) << (i*KEY_BITS);
+        }
+        return key;
+    }
+
+    /**
+     * Index of the transcript. Filtered selections may hold transcripts
+     * missing from select() (a sampling selector), these are indexed as
+     * they are seen.
+     */
+    private int getTranscriptIndex(TranscriptRecord tr) {
+        synchronized(transcriptIndex) {
+            Integer index = transcriptIndex.get(tr);
+            if(index == null) {
+                index = transcriptIndex.size()+1;
+                if(index >= (1 << KEY_BITS)) {
+                    throw new IllegalStateException("Unique fusions are only supported for gene models with less than "+(1 << KEY_BITS)+" transcripts");
+                }
+                transcriptIndex.put(tr, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Key of the transcripts and breaks of the fusion. The breaks don't fit
+     * in the remaining bits so they are hashed in with the transcript key.
+     */
+    private long getBreakKey(FusionGene f) {
+        long key = getFusionKey(f);
+        int[] trims = f.getBreakTrims();
+        for(int i = 0; i < f.getBreaks().size(); i++) {
+            int[] exons = f.getBreaks().get(i);
+            key = mix(key ^ exons[0]);
+            key = mix(key ^ exons[exons.length-1]);
+            key = mix(key ^ (trims == null ? 0 : trims[i]));
+        }
+        return key;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Generate fusions skipping any with the same transcripts as a fusion
+     * already generated in this run, or of gene pairs in the excluded chimeric
+     * catalog. Fails if the number of fusions can't possibly be unique or
+     * re-sampling stops finding new fusions.
+     *
+     * @param combinations number of possible combinations of transcripts or
+     *                     -1 if unknown
+     * @param exclude catalog of gene pairs to skip (may be null)
+     */
+    private List<FusionGene> generateUnique(FusionGenerator fg, int nFusions, int genesPerFusion, LongHashSet seen, ChimericCatalog exclude, long combinations, String type) {
+        if(seen == null && exclude == null) {
+            return fg.generate(nFusions, genesPerFusion);
+        }
+        if(seen != null && combinations >= 0 && nFusions > combinations) {
+            throw new IllegalArgumentException("Can't generate "+nFusions+" unique "+type+" fusions, only "+combinations+" combinations of transcripts are available");
+        }
+
+        List<FusionGene> fusions = new ArrayList<FusionGene>();
+        int stale = 0;
+        while(fusions.size() < nFusions) {
+            int added = 0;
+            for(FusionGene f : fg.generate(nFusions-fusions.size(), genesPerFusion)) {
+                if(fusions.size() >= nFusions) break;
+                if(exclude != null && exclude.isSupported(f)) continue;
+                if(seen == null || seen.add(getFusionKey(f))) {
+                    fusions.add(f);
+                    added++;
+                }
+            }
+            if(added > 0) {
+                stale = 0;
+            } else if(++stale >= MAX_STALE_ROUNDS) {
+                throw new IllegalStateException("Only found "+fusions.size()+" of "+nFusions+(seen == null ? " " : " unique ")+type
+                                                +" fusions"+(exclude == null ? "" : " not supported by chimeric reads"));
+            }
+        }
+        return fusions;
+    }
+
+    /**
+     * Number of combinations of transcripts the random generators can pick
+     * from, saturating at Long.MAX_VALUE
+     */
+    private long getCombinations(GeneSelector view, List<String[]> filters, int genesPerFusion) {
+        long combinations = 1;
+        for(int i = 0; i < genesPerFusion; i++) {
+            // The background generator ignores the filters
+            String[] filter = !background && filters != null && i < filters.size() ? filters.get(i) : null;
+            long n = view.select(filter).size();
+            if(n > 0 && combinations > Long.MAX_VALUE/n) return Long.MAX_VALUE;
+            combinations *= n;
+        }
+        return combinations;
+    }
+
+    private List<FusionGene> selectGenes(FusionSpec spec, LongHashSet seen) {
+        GeneSelector view = this.getView(spec);
+        GeneSelectionMethod geneSelectioMethod = spec.getGeneSelectionMethod();
+
+        FusionGenerator fg = null;
+        if(background) {
+            fg = new BackgroundGenerator();
+        } else {
+            fg = new RandomGenerator();
+        }
+
+        fg.setGeneSelector(view);
+        fg.setGeneSelectionMethod(geneSelectioMethod);
+        fg.setFilters(spec.getFilters());
+
+        ChimericCatalog exclude = spec.isExcludeChimeric() ? chimericCatalog : null;
+        List<FusionGene> fusions = new ArrayList<FusionGene>();
+
+        if(spec.getFusions() > 0) {
+            fusions.addAll(this.generateUnique(fg, spec.getFusions(), 2, seen, exclude, this.getCombinations(view, spec.getFilters(), 2), "hybrid"));
+        }
+
+        // Generate any read through fusion genes
+        if(spec.getReadThrough() > 0) {
+            logger.info("Generating read through genes...");
+            ReadThroughGenerator rt = new ReadThroughGenerator();
+            rt.setGeneSelector(view);
+            rt.setGeneSelectionMethod(geneSelectioMethod);
+
+            List<FusionGene> rtFusions = this.generateUnique(rt, spec.getReadThrough(), 2, seen, exclude, view.select().size(), "read through");
+            for(FusionGene g : rtFusions) {
+                g.setFusionType(FusionType.READ_THROUGH);
+            }
+            fusions.addAll(rtFusions);
+        }
+
+        // Generate any tri-fusions
+        if(spec.getTriFusion() > 0) {
+            logger.info("Generating tri-fusion genes...");
+            List<FusionGene> tfusions = this.generateUnique(fg, spec.getTriFusion(), 3, seen, exclude, this.getCombinations(view, spec.getFilters(), 3), "tri-fusion");
+            for(FusionGene g : tfusions) {
+                g.setFusionType(FusionType.TRI_FUSION);
+            }
+            fusions.addAll(tfusions);
+        }
+
+        // Generate any intra chromosome fusions
+        if(spec.getIntraChromFusion() > 0) {
+            logger.info("Generating intra-chromosome fusions...");
+            IntraChromGenerator ig = new IntraChromGenerator();
+            ig.setGeneSelector(view);
+            ig.setGeneSelectionMethod(geneSelectioMethod);
+
+            List<FusionGene> ifusions = this.generateUnique(ig, spec.getIntraChromFusion(), 2, seen, exclude, -1, "intra-chromosome");
+            for(FusionGene g : ifusions) {
+                g.setFusionType(FusionType.INTRA_CHROMOSOME);
+            }
+            fusions.addAll(ifusions);
+        }
+
+        // Generate any self-fusions
+        if(spec.getSelfFusion() > 0) {
+            logger.info("Generating self-fusion genes...");
+            List<FusionGene> sfusions = this.generateUnique(fg, spec.getSelfFusion(), 1, seen, exclude, this.getCombinations(view, spec.getFilters(), 1), "self");
+            for(FusionGene g : sfusions) {
+                g.setFusionType(FusionType.SELF_FUSION);
+            }
+            fusions.addAll(sfusions);
+        }
+
+        return fusions;
+    }
+
+    /**
+     * Generate the fusion breaks from the breakpoint model. The spliting of
+     * exons is stored as a trim on the fusion so the shared transcripts are
+     * never modified.
+     */
+    private void generateBreaks(FusionGene f, BreakpointModel model, boolean cdsOnly, boolean keepExonBoundry, boolean outOfFrame, Random rgen) {
+        List<int []> breaks = new ArrayList<int []>();
+        int[] trims = null;
+
+        // First half of gene 1
+        breaks.add(model.sampleExonBreak(f.getGene(0), true, cdsOnly, rgen));
+
+        if(f.size() == 2) {
+            // Second half of gene2
+            breaks.add(model.sampleExonBreak(f.getGene(1), false, cdsOnly, rgen));
+        } else if(f.size() == 3) {
+            // Second half of gene2
+            breaks.add(model.sampleExonBreak(f.getGene(1), false, cdsOnly, rgen));
+
+            // Second half of gene3
+            breaks.add(model.sampleExonBreak(f.getGene(2), false, cdsOnly, rgen));
+        }
+
+        // Keep ORF (don't allow out of frame) and allow splitting of exons
+        if(!outOfFrame && !keepExonBoundry) {
+            // Split last exon in half and ensure within ORF
+            trims = new int[breaks.size()];
+            for(int i = 0; i < breaks.size(); i++) {
+                int[] exons = breaks.get(i);
+                int[] lastExon = f.getGene(i).getExons(cdsOnly).get(exons[exons.length-1]);
+                trims[i] = BreakpointModel.sampleTrim(lastExon, rgen);
+            }
+        } else if(keepExonBoundry && !outOfFrame) {
+            breaks.clear();
+            // Keep ORF (don't allow out of frame) and don't allow splitting of exons (keep exon boundries)
+            // Break genes on exons boundries
+            for(int i = 0; i < f.size(); i++) {
+                breaks.add(model.sampleExonBoundryBreak(f.getGene(i), cdsOnly, rgen));
+            }
+        }
+
+        f.setBreaks(breaks);
+        f.setBreakTrims(trims);
+    }
+
+    /**
+     * Set options for output
+     */
+    private static void setFusionOptions(FusionGene f, boolean cdsOnly, boolean keepExonBoundry, boolean outOfFrame, boolean autoCorrectOrientation) {
+        if(autoCorrectOrientation) {
+            f.addOption(FusionOption.AUTO_CORRECT_ORIENTATION);
+        }
+        if(cdsOnly) {
+            f.addOption(FusionOption.CDS_ONLY);
+        }
+        if(outOfFrame) {
+            f.addOption(FusionOption.OUT_OF_FRAME);
+        } else {
+            f.addOption(FusionOption.SYMMETRICAL_EXONS);
+        }
+        if(keepExonBoundry) {
+            f.addOption(FusionOption.KEEP_EXON_BOUNDRY);
+        }
+    }
+
+    private class FusionIterator implements Iterator<FusionGene> {
+        private List<FusionGene> fusions;
+        private int index = 0;
+        private Random rgen = new Random();
+        private boolean cdsOnly;
+        private boolean keepExonBoundry;
+        private boolean outOfFrame;
+        private boolean autoCorrectOrientation;
+        private boolean foreignInsertion;
+        private int foreignInsertionCutoff;
+        private LongHashSet seenBreaks;
+        private BreakpointModel model;
+
+        /**
+         * @param seenBreaks keys of the breaks already generated, if not
+         *                   null the breaks of each fusion are unique
+         */
+        public FusionIterator(List<FusionGene> fusions, FusionSpec spec, LongHashSet seenBreaks) {
+            this.fusions = fusions;
+            this.seenBreaks = seenBreaks;
+            this.model = getBreakpointModel(spec);
+            this.cdsOnly = spec.isCdsOnly();
+            this.keepExonBoundry = spec.isKeepExonBoundry();
+            this.outOfFrame = spec.isOutOfFrame();
+            this.autoCorrectOrientation = spec.isAutoCorrectOrientation();
+            this.foreignInsertion = spec.getForeignInsertionLength() > 0;
+            this.foreignInsertionCutoff = (int)(spec.getForeignInsertionPercent()*fusions.size());
+        }
+
+        public boolean hasNext() {
+            return index < fusions.size();
+        }
+
+        public FusionGene next() {
+            if(!hasNext()) throw new NoSuchElementException();
+
+            FusionGene f = fusions.get(index);
+            fusions.set(index, null);
+
+            generateBreaks(f, model, cdsOnly, keepExonBoundry, outOfFrame, rgen);
+            if(seenBreaks != null) {
+                int attempts = 1;
+                while(!seenBreaks.add(getBreakKey(f))) {
+                    if(attempts++ >= MAX_BREAK_ATTEMPTS) {
+                        throw new IllegalStateException("Unable to generate unique breaks for fusion "+f.getTranscriptId());
+                    }
+                    generateBreaks(f, model, cdsOnly, keepExonBoundry, outOfFrame, rgen);
+                }
+            }
+            setFusionOptions(f, cdsOnly, keepExonBoundry, outOfFrame, autoCorrectOrientation);
+            if(foreignInsertion && foreignInsertionCutoff > 0 && index <= foreignInsertionCutoff) {
+                f.setForeignInsertion(true);
+            }
+
+            index++;
+            return f;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -16,17 +16,21 @@
 
 package edu.buffalo.fusim;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.util.SequenceUtil;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import edu.buffalo.fusim.gtf.Strand;
+import edu.buffalo.fusim.io.ChannelWriter;
 
 public class FusionGene {
 
@@ -35,6 +39,9 @@ public class FusionGene {
     private FusionType fusionType = FusionType.HYBRID;
     private String geneId;
     private String transcriptId;
+    private List<int []> breaks = new ArrayList<int []>();
+    private int[] trims;
+    private boolean foreignInsertion = false;
 
     public FusionGene(List<TranscriptRecord> transcripts) { 
         for(TranscriptRecord tr : transcripts) {
@@ -56,101 +63,235 @@ public class FusionGene {
         this.setIds();
     }
     
-    public String outputFasta(List<int []> breaks, File reference, boolean cdsExonsOnly, boolean fixOrientation) {
-        return this.outputFasta(breaks, reference, cdsExonsOnly, fixOrientation, 0);
+    public String outputFasta(File reference, boolean cdsExonsOnly, boolean fixOrientation) {
+        return this.outputFasta(reference, cdsExonsOnly, fixOrientation, 0);
+    }
+
+    public String outputFasta(File reference, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen) {
+        return ">"+this.getFastaHeader()+"\n"
+                  +this.getFastaSequence(new ExtractSeq(reference), cdsExonsOnly, fixOrientation, foreignInsertionLen);
     }
 
-    public String outputFasta(List<int []> breaks, File reference, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen) {
-        ExtractSeq extractSeq = new ExtractSeq(reference);
+    public String getFastaHeader() {
+        StringBuilder header = new StringBuilder();
+        this.appendFastaHeader(header);
+        return header.toString();
+    }
 
-        StringBuffer fasta = new StringBuffer();
-        fasta.append(">ref|"+this.getTranscriptId()
-                     +" fusionGene="+this.getGeneId()
-                     +" fusionType="+this.getFusionType()
-                     +" fusionOptions="+StringUtils.join(this.options, ","));
+    /**
+     * Append the FASTA header of the fusion to a (reusable) buffer
+     */
+    public void appendFastaHeader(StringBuilder header) {
+        header.append("ref|").append(this.getTranscriptId())
+              .append(" fusionGene=").append(this.getGeneId())
+              .append(" fusionType=").append(this.getFusionType().toString())
+              .append(" fusionOptions=");
+        for(int i = 0; i < options.size(); i++) {
+            if(i > 0) header.append(',');
+            header.append(options.get(i).toString());
+        }
 
-        List<StringBuffer> seqs = new ArrayList<StringBuffer>();
         for(int b = 0; b < breaks.size(); b++) {
             int[] exons = breaks.get(b); 
             TranscriptRecord gene = genes.get(b);
             int breakno = b+1;
-            fasta.append(" chrom"+breakno+"="+gene.getChrom()
-                         +" strand"+breakno+"="+gene.getStrand()
-                         +" exonIndex"+breakno+"="+StringUtils.join(ArrayUtils.toObject(exons), ",")
-                         //+" exons"+breakno+"="
-                         );
-        
-            StringBuffer breakSeq = new StringBuffer();
+            header.append(" chrom").append(breakno).append('=').append(gene.getChrom())
+                  .append(" strand").append(breakno).append('=').append(gene.getStrand().toString())
+                  .append(" exonIndex").append(breakno).append('=');
             for(int i = 0; i < exons.length; i++) {
-                int[] exon = gene.getExons(cdsExonsOnly).get(exons[i]);
-                //fasta.append((exon[0]+1)+"-"+exon[1]);
-                //if(i != (exons.length-1)) fasta.append(",");
-                breakSeq.append(extractSeq.fetch(gene.getChrom(), gene.getStrand(), exon[0]+1, exon[1]));
+                if(i > 0) header.append(',');
+                header.append(exons[i]);
             }
-            seqs.add(breakSeq);
         }
+    }
+
+    public String getFastaSequence(ExtractSeq extractSeq, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen) {
+        return this.getFastaSequence(null, extractSeq, cdsExonsOnly, fixOrientation, foreignInsertionLen);
+    }
+
+    /**
+     * Returns the sequence of the fusion. Breaks of transcripts in the
+     * sequence store are sliced from the store, all others are fetched from
+     * the reference.
+     *
+     * @param store transcript sequence store (may be null)
+     * @param extractSeq reference genome (may be null if all transcripts are
+     *                   in the store)
+     */
+    public String getFastaSequence(TranscriptSequenceStore store, ExtractSeq extractSeq, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen) {
+        StringBuilder fasta = new StringBuilder();
+        this.appendFastaSequence(fasta, store, extractSeq, cdsExonsOnly, fixOrientation, foreignInsertionLen);
+        return fasta.toString();
+    }
 
-        fasta.append("\n");
-        
+    /**
+     * Append the sequence of the fusion to a (reusable) buffer. Breaks are
+     * written straight into the buffer and re-oriented in place.
+     */
+    public void appendFastaSequence(StringBuilder fasta, TranscriptSequenceStore store, ExtractSeq extractSeq, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen) {
+        this.appendFastaSequence(fasta, store, extractSeq, cdsExonsOnly, fixOrientation, foreignInsertionLen, null, new Random());
+    }
+
+    /**
+     * Append the sequence of the fusion to a (reusable) buffer. Foreign
+     * insertions are fragments of the donor library, or random bases if
+     * there is no library.
+     *
+     * @param donors donor sequence library (may be null)
+     * @param rgen random generator for the foreign insertions
+     */
+    public void appendFastaSequence(StringBuilder fasta, TranscriptSequenceStore store, ExtractSeq extractSeq, boolean cdsExonsOnly, boolean fixOrientation, int foreignInsertionLen, DonorLibrary donors, Random rgen) {
         Strand normStrand = genes.get(0).getStrand();
-        
+
         for(int i = 0; i < genes.size(); i++) {
-            if(fixOrientation && !normStrand.equals(genes.get(i).getStrand())) {
-                fasta.append(ExtractSeq.reverseComplement(seqs.get(i)));
+            int start = fasta.length();
+            TranscriptSequenceStore.Entry entry = store == null ? null : store.getEntry(genes.get(i));
+            if(entry != null) {
+                this.appendStoredBreakSequence(fasta, i, store, entry, cdsExonsOnly);
             } else {
-                fasta.append(seqs.get(i).toString());   
+                this.appendBreakSequence(fasta, i, extractSeq, cdsExonsOnly);
+            }
+
+            if(fixOrientation && !normStrand.equals(genes.get(i).getStrand())) {
+                reverseComplement(fasta, start, fasta.length());
             }
 
             if(foreignInsertionLen > 0) {
                 if(i == 0 || (i == 1 && genes.size() == 3)) {
-                    fasta.append(ExtractSeq.randomSequence(foreignInsertionLen));
+                    if(donors != null) {
+                        donors.appendFragment(fasta, foreignInsertionLen, rgen);
+                    } else {
+                        ExtractSeq.appendRandomSequence(fasta, foreignInsertionLen, rgen);
+                    }
                 }
             }
         }
+    }
+
+    private void appendBreakSequence(StringBuilder breakSeq, int breakIndex, ExtractSeq extractSeq, boolean cdsExonsOnly) {
+        int[] exons = breaks.get(breakIndex);
+        TranscriptRecord gene = genes.get(breakIndex);
+        if(extractSeq == null) {
+            throw new IllegalStateException("Transcript "+gene.getTranscriptId()+" is not in the sequence store and no reference genome was given");
+        }
 
-        
-        return fasta.toString();
+        for(int i = 0; i < exons.length; i++) {
+            int[] exon = this.getBreakExon(breakIndex, i, cdsExonsOnly);
+            breakSeq.append(extractSeq.fetch(gene.getChrom(), gene.getStrand(), exon[0]+1, exon[1]));
+        }
     }
-    
-    private List<String> createTxtColumns(TranscriptRecord gene, int[] breaks, boolean cdsExonsOnly) {
-        List<String> cols = new ArrayList<String>();
-        cols.add(this.getGeneId());
-        cols.add(gene.getGeneId());
-        cols.add(gene.getTranscriptId());
-        cols.add(gene.getChrom());
-        cols.add(gene.getStrand().toString());
-        cols.add(""+breaks.length);
-
-        int[] exonStarts = new int[breaks.length];
-        int[] exonEnds = new int[breaks.length];
-        int exonBases = 0;
-        for(int i = 0; i < breaks.length; i++) {
-            int[] exon = gene.getExons(cdsExonsOnly).get(breaks[i]);
-            exonStarts[i] = (exon[0]+1);
-            exonEnds[i] = exon[1];
-            exonBases += exon[1]-exon[0];
+
+    /**
+     * Slice the break out of the stored exon sequence of the transcript.
+     * Exons are stored in genomic order, each oriented to the strand of the
+     * transcript, so adjacent exons of the break are read as one slice.
+     */
+    private void appendStoredBreakSequence(StringBuilder breakSeq, int breakIndex, TranscriptSequenceStore store, TranscriptSequenceStore.Entry entry, boolean cdsExonsOnly) {
+        int[] exons = breaks.get(breakIndex);
+        TranscriptRecord gene = genes.get(breakIndex);
+        List<int []> exonList = gene.getExons(cdsExonsOnly);
+        boolean reverse = Strand.REVERSE.equals(gene.getStrand());
+
+        int[] offsets = new int[exonList.size()];
+        for(int i = 1; i < offsets.length; i++) {
+            int[] exon = exonList.get(i-1);
+            offsets[i] = offsets[i-1] + exon[1]-exon[0];
         }
 
-        cols.add(""+exonBases);
-        cols.add(StringUtils.join(ArrayUtils.toObject(breaks), ","));
-        cols.add(StringUtils.join(ArrayUtils.toObject(exonStarts), ","));
-        cols.add(StringUtils.join(ArrayUtils.toObject(exonEnds), ","));
-        cols.add(this.fusionType.toString());
-        cols.add(StringUtils.join(this.options, ","));
+        int sliceStart = 0;
+        int sliceEnd = 0;
+        for(int i = 0; i < exons.length; i++) {
+            int[] full = exonList.get(exons[i]);
+            int[] exon = this.getBreakExon(breakIndex, i, cdsExonsOnly);
 
-        return cols;
+            // Trimmed bases are at the start of a reverse complemented exon
+            int from = offsets[exons[i]] + (reverse ? full[1]-exon[1] : exon[0]-full[0]);
+            int to = from + exon[1]-exon[0];
+            if(from != sliceEnd) {
+                store.append(breakSeq, entry, cdsExonsOnly, sliceStart, sliceEnd);
+                sliceStart = from;
+            }
+            sliceEnd = to;
+        }
+        store.append(breakSeq, entry, cdsExonsOnly, sliceStart, sliceEnd);
     }
 
-    public String outputText(List<int[]> breaks, boolean cdsExonsOnly) {
-        StringBuffer txt = new StringBuffer();
+    /**
+     * Reverse complement the bases [start, end) of the buffer in place
+     */
+    private static void reverseComplement(StringBuilder seq, int start, int end) {
+        for(int i = start, j = end-1; i <= j; i++, j--) {
+            char c = (char)SequenceUtil.complement((byte)seq.charAt(i));
+            seq.setCharAt(i, (char)SequenceUtil.complement((byte)seq.charAt(j)));
+            seq.setCharAt(j, c);
+        }
+    }
 
-        for(int i = 0; i < breaks.size(); i++) {
-            int[] exons = breaks.get(i);
-            TranscriptRecord gene = genes.get(i);
-            txt.append(StringUtils.join(this.createTxtColumns(gene, exons, cdsExonsOnly), "\t")+"\n");
+    /**
+     * Returns the start/end of the i-th exon in the given break. The last exon
+     * of a break is shortened by the break trim (if any).
+     */
+    public int[] getBreakExon(int breakIndex, int i, boolean cdsExonsOnly) {
+        int[] exons = breaks.get(breakIndex);
+        int[] exon = genes.get(breakIndex).getExons(cdsExonsOnly).get(exons[i]);
+        if(i == exons.length-1 && trims != null && trims[breakIndex] > 0) {
+            return new int[]{exon[0], exon[1]-trims[breakIndex]};
         }
+        return exon;
+    }
+    
+    /**
+     * Write the text rows of the fusion (one per break) straight to the
+     * output without building any intermediate Strings
+     */
+    public void writeText(ChannelWriter out, boolean cdsExonsOnly) throws IOException {
+        for(int b = 0; b < breaks.size(); b++) {
+            TranscriptRecord gene = genes.get(b);
+            int[] exons = breaks.get(b);
+
+            out.write(this.getGeneId()).write('\t')
+               .write(gene.getGeneId()).write('\t')
+               .write(gene.getTranscriptId()).write('\t')
+               .write(gene.getChrom()).write('\t')
+               .write(gene.getStrand().toString()).write('\t')
+               .write(exons.length).write('\t');
+
+            int exonBases = 0;
+            for(int i = 0; i < exons.length; i++) {
+                int[] exon = this.getBreakExon(b, i, cdsExonsOnly);
+                exonBases += exon[1]-exon[0];
+            }
+            out.write(exonBases).write('\t');
+            out.write(exons, ',').write('\t');
+            for(int i = 0; i < exons.length; i++) {
+                if(i > 0) out.write(',');
+                out.write(this.getBreakExon(b, i, cdsExonsOnly)[0]+1);
+            }
+            out.write('\t');
+            for(int i = 0; i < exons.length; i++) {
+                if(i > 0) out.write(',');
+                out.write(this.getBreakExon(b, i, cdsExonsOnly)[1]);
+            }
+            out.write('\t').write(this.fusionType.toString()).write('\t');
+            for(int i = 0; i < options.size(); i++) {
+                if(i > 0) out.write(',');
+                out.write(options.get(i).toString());
+            }
+            out.write('\n');
+        }
+    }
 
-        return txt.toString();
+    public String outputText(boolean cdsExonsOnly) {
+        ByteArrayOutputStream txt = new ByteArrayOutputStream();
+        try {
+            ChannelWriter out = new ChannelWriter(txt);
+            this.writeText(out, cdsExonsOnly);
+            out.flush();
+            return txt.toString("UTF-8");
+        } catch(IOException e) {
+            // Can't happen writing to memory
+            throw new RuntimeException(e);
+        }
     }
 
     private void setIds() {
@@ -183,6 +324,18 @@ public class FusionGene {
         return this.transcriptId;
     }
     
+    /**
+     * Write the header row of the text output
+     */
+    public static void writeHeader(ChannelWriter out) throws IOException {
+        String[] header = getHeader();
+        for(int i = 0; i < header.length; i++) {
+            if(i > 0) out.write('\t');
+            out.write(header[i]);
+        }
+        out.write('\n');
+    }
+
     public static String[] getHeader() {
         return new String[]{
                 "fusionGene", "geneName", "name", "chrom", "strand", "exonCount",
@@ -221,6 +374,41 @@ public class FusionGene {
         this.fusionType = fusionType;
     }
 
+    /**
+     * Exon indexes of each gene included in the fusion
+     */
+    public List<int []> getBreaks() {
+        return this.breaks;
+    }
+
+    public void setBreaks(List<int []> breaks) {
+        this.breaks = breaks;
+    }
+
+    /**
+     * Number of bases trimmed from the end of the last exon of each break
+     * when splitting exons
+     */
+    public int[] getBreakTrims() {
+        return this.trims;
+    }
+
+    public void setBreakTrims(int[] trims) {
+        this.trims = trims;
+    }
+
+    /**
+     * Returns true if foreign sequence is inserted between the breaks when
+     * the sequence of the fusion is written
+     */
+    public boolean isForeignInsertion() {
+        return this.foreignInsertion;
+    }
+
+    public void setForeignInsertion(boolean foreignInsertion) {
+        this.foreignInsertion = foreignInsertion;
+    }
+
     public List<FusionOption> getFusionOptions() {
         return this.options;
     }
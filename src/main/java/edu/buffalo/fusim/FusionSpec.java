@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to encapsulate the settings for a single fusion simulation run. These
+ * are the options which can change from run to run without re-loading the
+ * gene model or background reads.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FusionSpec {
+    private int nFusions = 0;
+    private int nReadThrough = 0;
+    private int nTriFusion = 0;
+    private int nIntraChromFusion = 0;
+    private int nSelfFusion = 0;
+    private int foreignInsertionLen = 0;
+    private double foreignInsertionPct = 0.0;
+    private boolean cdsOnly = false;
+    private boolean keepExonBoundry = false;
+    private boolean outOfFrame = false;
+    private boolean autoCorrectOrientation = false;
+    private boolean unique = false;
+    private boolean uniqueBreaks = false;
+    private boolean excludeChimeric = false;
+    private boolean enumerateJunctions = false;
+    private long maxJunctions = 0;
+    private File catalogFile;
+    private BreakpointDistribution breakpointDistribution = BreakpointDistribution.UNIFORM;
+    private File hotspotFile;
+    private GeneSelectionMethod geneSelectionMethod = GeneSelectionMethod.UNIFORM;
+    private List<String[]> filters = new ArrayList<String[]>();
+
+    public int getTotalFusions() {
+        return nFusions+nReadThrough+nTriFusion+nIntraChromFusion+nSelfFusion;
+    }
+
+    public int getFusions() {
+        return nFusions;
+    }
+
+    public void setFusions(int nFusions) {
+        this.nFusions = nFusions;
+    }
+
+    public int getReadThrough() {
+        return nReadThrough;
+    }
+
+    public void setReadThrough(int nReadThrough) {
+        this.nReadThrough = nReadThrough;
+    }
+
+    public int getTriFusion() {
+        return nTriFusion;
+    }
+
+    public void setTriFusion(int nTriFusion) {
+        this.nTriFusion = nTriFusion;
+    }
+
+    public int getIntraChromFusion() {
+        return nIntraChromFusion;
+    }
+
+    public void setIntraChromFusion(int nIntraChromFusion) {
+        this.nIntraChromFusion = nIntraChromFusion;
+    }
+
+    public int getSelfFusion() {
+        return nSelfFusion;
+    }
+
+    public void setSelfFusion(int nSelfFusion) {
+        this.nSelfFusion = nSelfFusion;
+    }
+
+    public int getForeignInsertionLength() {
+        return foreignInsertionLen;
+    }
+
+    public void setForeignInsertionLength(int foreignInsertionLen) {
+        this.foreignInsertionLen = foreignInsertionLen;
+    }
+
+    public double getForeignInsertionPercent() {
+        return foreignInsertionPct;
+    }
+
+    public void setForeignInsertionPercent(double foreignInsertionPct) {
+        this.foreignInsertionPct = foreignInsertionPct;
+    }
+
+    public boolean isCdsOnly() {
+        return cdsOnly;
+    }
+
+    public void setCdsOnly(boolean cdsOnly) {
+        this.cdsOnly = cdsOnly;
+    }
+
+    public boolean isKeepExonBoundry() {
+        return keepExonBoundry;
+    }
+
+    public void setKeepExonBoundry(boolean keepExonBoundry) {
+        this.keepExonBoundry = keepExonBoundry;
+    }
+
+    public boolean isOutOfFrame() {
+        return outOfFrame;
+    }
+
+    public void setOutOfFrame(boolean outOfFrame) {
+        this.outOfFrame = outOfFrame;
+    }
+
+    public boolean isAutoCorrectOrientation() {
+        return autoCorrectOrientation;
+    }
+
+    public void setAutoCorrectOrientation(boolean autoCorrectOrientation) {
+        this.autoCorrectOrientation = autoCorrectOrientation;
+    }
+
+    /**
+     * Never generate two fusions of the same transcripts
+     */
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public void setUnique(boolean unique) {
+        this.unique = unique;
+    }
+
+    /**
+     * Never generate two fusions of the same transcripts with the same
+     * breaks
+     */
+    public boolean isUniqueBreaks() {
+        return uniqueBreaks;
+    }
+
+    public void setUniqueBreaks(boolean uniqueBreaks) {
+        this.uniqueBreaks = uniqueBreaks;
+    }
+
+    /**
+     * Never generate fusions of gene pairs supported by discordant or split
+     * reads in the background BAM files
+     */
+    public boolean isExcludeChimeric() {
+        return excludeChimeric;
+    }
+
+    public void setExcludeChimeric(boolean excludeChimeric) {
+        this.excludeChimeric = excludeChimeric;
+    }
+
+    /**
+     * Enumerate every exon boundary junction between the gene1 and gene2
+     * partners instead of generating random fusions
+     */
+    public boolean isEnumerateJunctions() {
+        return enumerateJunctions;
+    }
+
+    public void setEnumerateJunctions(boolean enumerateJunctions) {
+        this.enumerateJunctions = enumerateJunctions;
+    }
+
+    /**
+     * Catalog of known fusions to replay instead of generating random
+     * fusions. The number of hybrid fusions limits the number of rows
+     * replayed (0 for all).
+     */
+    public File getCatalogFile() {
+        return catalogFile;
+    }
+
+    public void setCatalogFile(File catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    /**
+     * Distribution fusion breaks are drawn from
+     */
+    public BreakpointDistribution getBreakpointDistribution() {
+        return breakpointDistribution;
+    }
+
+    public void setBreakpointDistribution(BreakpointDistribution breakpointDistribution) {
+        this.breakpointDistribution = breakpointDistribution;
+    }
+
+    /**
+     * File of breakpoint hotspots, used with the hotspot distribution
+     */
+    public File getHotspotFile() {
+        return hotspotFile;
+    }
+
+    public void setHotspotFile(File hotspotFile) {
+        this.hotspotFile = hotspotFile;
+    }
+
+    /**
+     * Maximum number of junctions to enumerate (0 for no limit)
+     */
+    public long getMaxJunctions() {
+        return maxJunctions;
+    }
+
+    public void setMaxJunctions(long maxJunctions) {
+        this.maxJunctions = maxJunctions;
+    }
+
+    public GeneSelectionMethod getGeneSelectionMethod() {
+        return geneSelectionMethod;
+    }
+
+    public void setGeneSelectionMethod(GeneSelectionMethod geneSelectionMethod) {
+        this.geneSelectionMethod = geneSelectionMethod;
+    }
+
+    public List<String[]> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<String[]> filters) {
+        this.filters = filters;
+    }
+}
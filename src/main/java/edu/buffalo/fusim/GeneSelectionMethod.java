@@ -38,6 +38,11 @@ public enum GeneSelectionMethod {
             return "empirical-sturges";
         }
     },
+    EMPIRICAL_FD {
+        public String toString() {
+            return "empirical-fd";
+        }
+    },
     EMPIRICAL {
         public String toString() {
             return "empirical";
@@ -53,6 +58,8 @@ public enum GeneSelectionMethod {
             return GeneSelectionMethod.EMPIRICAL;
         } else if(str.equalsIgnoreCase(GeneSelectionMethod.EMPIRICAL_STURGES.toString())) {
             return GeneSelectionMethod.EMPIRICAL_STURGES;
+        } else if(str.equalsIgnoreCase(GeneSelectionMethod.EMPIRICAL_FD.toString())) {
+            return GeneSelectionMethod.EMPIRICAL_FD;
         } else {
             return null;
         }
@@ -24,6 +24,11 @@ public interface GeneSelector {
 
     public List<TranscriptRecord> select(String[] filter);
 
+    /**
+     * Precomputed orderings of the transcripts returned by select()
+     */
+    public TranscriptOrder getOrder();
+
     public File getGeneModelFile();
 
     public void setGeneModelFile(File geneModelFile);
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import edu.buffalo.fusim.gtf.Strand;
+
+/**
+ * Enumerates every exon boundary junction between a set of 5' (gene1) and
+ * 3' (gene2) partners. A junction keeps the first exons of gene1 and the
+ * last exons of gene2 (in transcript order). It is in frame when the number
+ * of gene1 bases kept and the number of gene2 bases dropped have the same
+ * phase (mod 3), so the reading frame of gene2 continues across the junction.
+ *
+ * The exon boundaries of each transcript are bucketed by phase up front, so
+ * only compatible boundaries are ever paired. Junctions are generated as the
+ * iterator is consumed and nothing but the buckets is held in memory.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class JunctionEnumerator implements Iterator<FusionGene> {
+    private List<TranscriptRecord> gene1s;
+    private List<TranscriptRecord> gene2s;
+    private boolean cdsOnly;
+    private int phases;
+    private long maxJunctions;
+
+    private Junctions[] gene2Junctions;
+    private Junctions g1;
+    private int i = 0;
+    private int j = 0;
+    private int phase = 0;
+    private int a = 0;
+    private int b = 0;
+    private long count = 0;
+
+    private boolean ready = false;
+    private int nextPrefix;
+    private int nextSuffix;
+
+    /**
+     * @param gene1s 5' partners
+     * @param gene2s 3' partners
+     * @param cdsOnly only use coding exons
+     * @param outOfFrame enumerate all junctions, not only in frame junctions
+     * @param maxJunctions maximum number of junctions to return (0 for no limit)
+     */
+    public JunctionEnumerator(List<TranscriptRecord> gene1s, List<TranscriptRecord> gene2s, boolean cdsOnly, boolean outOfFrame, long maxJunctions) {
+        this.gene1s = gene1s;
+        this.gene2s = gene2s;
+        this.cdsOnly = cdsOnly;
+        this.phases = outOfFrame ? 1 : 3;
+        this.maxJunctions = maxJunctions;
+
+        this.gene2Junctions = new Junctions[gene2s.size()];
+        for(int k = 0; k < gene2s.size(); k++) {
+            gene2Junctions[k] = new Junctions(gene2s.get(k));
+        }
+    }
+
+    public boolean hasNext() {
+        if(!ready) ready = advance();
+        return ready;
+    }
+
+    public FusionGene next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        ready = false;
+        count++;
+
+        TranscriptRecord t1 = gene1s.get(i);
+        TranscriptRecord t2 = gene2s.get(j);
+        List<int []> breaks = new ArrayList<int []>();
+        breaks.add(getPrefixBreak(t1, nextPrefix, cdsOnly));
+        breaks.add(getSuffixBreak(t2, nextSuffix, cdsOnly));
+
+        FusionGene f = new FusionGene(t1, t2);
+        f.setBreaks(breaks);
+        return f;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Number of junctions returned so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Move to the next compatible pair of boundaries
+     */
+    private boolean advance() {
+        if(maxJunctions > 0 && count >= maxJunctions) return false;
+
+        while(i < gene1s.size()) {
+            if(g1 == null) g1 = new Junctions(gene1s.get(i));
+
+            while(j < gene2s.size()) {
+                // Fusions of a gene with itself are self-fusions
+                if(!gene1s.get(i).getGeneId().equals(gene2s.get(j).getGeneId())) {
+                    Junctions g2 = gene2Junctions[j];
+                    while(phase < phases) {
+                        int[] prefix = g1.prefix[phase];
+                        int[] suffix = g2.suffix[phase];
+                        if(a < prefix.length && b < suffix.length) {
+                            nextPrefix = prefix[a];
+                            nextSuffix = suffix[b];
+                            if(++b == suffix.length) {
+                                b = 0;
+                                a++;
+                            }
+                            return true;
+                        }
+                        phase++;
+                        a = 0;
+                        b = 0;
+                    }
+                }
+                j++;
+                phase = 0;
+                a = 0;
+                b = 0;
+            }
+            i++;
+            j = 0;
+            g1 = null;
+        }
+        return false;
+    }
+
+    /**
+     * Exon indexes (in genomic order) of the first n exons of the transcript
+     */
+    static int[] getPrefixBreak(TranscriptRecord tr, int n, boolean cdsOnly) {
+        int size = tr.getExons(cdsOnly).size();
+        int first = Strand.REVERSE.equals(tr.getStrand()) ? size-n : 0;
+        int[] exons = new int[n];
+        for(int k = 0; k < n; k++) {
+            exons[k] = first+k;
+        }
+        return exons;
+    }
+
+    /**
+     * Exon indexes (in genomic order) of the exons of the transcript from
+     * the start-th exon on
+     */
+    static int[] getSuffixBreak(TranscriptRecord tr, int start, boolean cdsOnly) {
+        int size = tr.getExons(cdsOnly).size();
+        int first = Strand.REVERSE.equals(tr.getStrand()) ? 0 : start;
+        int[] exons = new int[size-start];
+        for(int k = 0; k < exons.length; k++) {
+            exons[k] = first+k;
+        }
+        return exons;
+    }
+
+    /**
+     * Exon boundaries of a transcript bucketed by phase. prefix holds the
+     * number of leading exons kept, suffix the index of the first exon kept.
+     */
+    private class Junctions {
+        public int[][] prefix = new int[phases][];
+        public int[][] suffix = new int[phases][];
+
+        public Junctions(TranscriptRecord tr) {
+            List<int []> exons = tr.getExons(cdsOnly);
+            int n = exons.size();
+            boolean reverse = Strand.REVERSE.equals(tr.getStrand());
+
+            // Phase of the bases before each exon, in transcript order
+            int[] phaseBefore = new int[n+1];
+            int[] prefixCount = new int[phases];
+            int[] suffixCount = new int[phases];
+            int length = 0;
+            for(int k = 0; k < n; k++) {
+                phaseBefore[k] = length % phases;
+                suffixCount[phaseBefore[k]]++;
+                int[] exon = exons.get(reverse ? n-1-k : k);
+                length += exon[1]-exon[0];
+                phaseBefore[k+1] = length % phases;
+                prefixCount[phaseBefore[k+1]]++;
+            }
+
+            for(int p = 0; p < phases; p++) {
+                prefix[p] = new int[prefixCount[p]];
+                suffix[p] = new int[suffixCount[p]];
+                prefixCount[p] = 0;
+                suffixCount[p] = 0;
+            }
+            for(int k = 0; k < n; k++) {
+                int p = phaseBefore[k];
+                suffix[p][suffixCount[p]++] = k;
+                p = phaseBefore[k+1];
+                prefix[p][prefixCount[p]++] = k+1;
+            }
+        }
+    }
+}
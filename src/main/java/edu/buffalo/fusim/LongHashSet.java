@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs. Avoids boxing every key when
+ * tracking large numbers of ids. Not thread safe.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int size = 0;
+    private int mask;
+    private int minCapacity;
+    private boolean containsEmpty = false;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while(capacity < expected*2) {
+            capacity <<= 1;
+        }
+        minCapacity = capacity;
+        allocate(capacity);
+    }
+
+    /**
+     * Add the key. Returns true if the key was not already in the set.
+     */
+    public boolean add(long key) {
+        if(key == EMPTY) {
+            if(containsEmpty) return false;
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        int i = slot(key);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) return false;
+            i = (i+1) & mask;
+        }
+        keys[i] = key;
+        size++;
+
+        // Keep the load factor under 1/2
+        if(size*2 > keys.length) rehash(keys.length*2);
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if(key == EMPTY) return containsEmpty;
+
+        int i = slot(key);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) return true;
+            i = (i+1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all keys. The table is kept so the set can be reused without
+     * allocating, unless it grew to many times the size of the keys being
+     * cleared. Clearing is then proportional to the keys added since the
+     * last clear and not to the largest the set has ever been.
+     */
+    public void clear() {
+        if(size == 0) return;
+
+        int capacity = minCapacity;
+        while(capacity < size*2) {
+            capacity <<= 1;
+        }
+        if(keys.length > capacity*4) {
+            allocate(capacity);
+        } else {
+            Arrays.fill(keys, EMPTY);
+        }
+        size = 0;
+        containsEmpty = false;
+    }
+
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity-1;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        allocate(capacity);
+        for(long key : old) {
+            if(key == EMPTY) continue;
+            int i = slot(key);
+            while(keys[i] != EMPTY) {
+                i = (i+1) & mask;
+            }
+            keys[i] = key;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map of primitive long keys to int values. Avoids
+ * boxing when counting large numbers of ids. Not thread safe.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+    private boolean containsEmpty = false;
+    private int emptyValue = 0;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expected) {
+        int capacity = 16;
+        while(capacity < expected*2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Add delta to the value of the key (0 if missing). Returns the new value.
+     */
+    public int increment(long key, int delta) {
+        if(key == EMPTY) {
+            if(!containsEmpty) {
+                containsEmpty = true;
+                size++;
+            }
+            emptyValue += delta;
+            return emptyValue;
+        }
+
+        int i = slot(key);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) {
+                values[i] += delta;
+                return values[i];
+            }
+            i = (i+1) & mask;
+        }
+        keys[i] = key;
+        values[i] = delta;
+        size++;
+
+        // Keep the load factor under 1/2
+        if(size*2 > keys.length) rehash(keys.length*2);
+        return delta;
+    }
+
+    /**
+     * Returns the value of the key or 0 if missing
+     */
+    public int get(long key) {
+        if(key == EMPTY) return containsEmpty ? emptyValue : 0;
+
+        int i = slot(key);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) return values[i];
+            i = (i+1) & mask;
+        }
+        return 0;
+    }
+
+    public boolean containsKey(long key) {
+        if(key == EMPTY) return containsEmpty;
+
+        int i = slot(key);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) return true;
+            i = (i+1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of the keys, sorted
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        if(containsEmpty) result[n++] = EMPTY;
+        for(long key : keys) {
+            if(key != EMPTY) result[n++] = key;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity-1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] == EMPTY) continue;
+            int i = slot(oldKeys[j]);
+            while(keys[i] != EMPTY) {
+                i = (i+1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+}
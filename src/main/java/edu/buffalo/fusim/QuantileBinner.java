@@ -0,0 +1,292 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * Bins values (RPKMs) without sorting them. Quantile bins are found with
+ * introselect, partitioning an index array at every bin boundary, and equal
+ * width bins are filled in a single pass. Bins hold the indexes of the
+ * values.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class QuantileBinner {
+    /**
+     * Below this size ranges are insertion sorted
+     */
+    private static final int SMALL_RANGE = 16;
+
+    private double[] values;
+    private int[] index;
+    private double min;
+    private double max;
+
+    public QuantileBinner(double[] values) {
+        this.values = values;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
+        for(double v : values) {
+            if(v < min) min = v;
+            if(v > max) max = v;
+        }
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Number of bins using the square root rule
+     */
+    public int getSqrtBins() {
+        return clamp((int)Math.sqrt(values.length));
+    }
+
+    /**
+     * Number of bins using Sturges' rule
+     */
+    public int getSturgesBins() {
+        return clamp((int)(Math.log(values.length+1)/Math.log(2)));
+    }
+
+    /**
+     * Number of bins using the Freedman-Diaconis rule, bin width 2*IQR/n^(1/3).
+     * Falls back on the square root rule if the interquartile range is 0.
+     */
+    public int getFreedmanDiaconisBins() {
+        double iqr = getQuantile(0.75)-getQuantile(0.25);
+        double width = 2*iqr/Math.pow(values.length, 1.0/3);
+        if(width <= 0 || max <= min) return getSqrtBins();
+        double bins = Math.ceil((max-min)/width);
+        return clamp(bins > values.length ? values.length : (int)bins);
+    }
+
+    /**
+     * Value with the given rank (0-based) in ascending order
+     */
+    public double select(int k) {
+        if(k < 0 || k >= values.length) {
+            throw new IllegalArgumentException("Invalid rank: "+k);
+        }
+        int[] idx = getIndex();
+        select(idx, 0, idx.length, k);
+        return values[idx[k]];
+    }
+
+    /**
+     * Value at the quantile p (0 <= p <= 1), nearest rank
+     */
+    public double getQuantile(double p) {
+        return select((int)Math.round(p*(values.length-1)));
+    }
+
+    /**
+     * Split the values into bins of equal size (sizes differ by at most one)
+     * ordered by value. Values equal to a bin boundary may fall on either
+     * side of it.
+     */
+    public IntArrayList[] getQuantileBins(int bins) {
+        bins = clamp(bins);
+        int[] idx = getIndex();
+        int n = idx.length;
+
+        int[] bounds = new int[bins-1];
+        for(int i = 1; i < bins; i++) {
+            bounds[i-1] = (int)((long)i*n/bins);
+        }
+        multiSelect(idx, 0, n, bounds, 0, bounds.length);
+
+        IntArrayList[] result = new IntArrayList[bins];
+        for(int i = 0; i < bins; i++) {
+            int from = (int)((long)i*n/bins);
+            int to = (int)((long)(i+1)*n/bins);
+            result[i] = new IntArrayList(to-from);
+            for(int j = from; j < to; j++) {
+                result[i].add(idx[j]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Split the range of the values into bins of equal width. Empty bins are
+     * dropped.
+     */
+    public IntArrayList[] getWidthBins(int bins) {
+        bins = clamp(bins);
+        double width = (max-min)/bins;
+
+        int[] bin = new int[values.length];
+        int[] counts = new int[bins];
+        for(int i = 0; i < values.length; i++) {
+            int b = width > 0 ? (int)((values[i]-min)/width) : 0;
+            if(b > bins-1) b = bins-1;
+            bin[i] = b;
+            counts[b]++;
+        }
+
+        IntArrayList[] tmpbins = new IntArrayList[bins];
+        for(int i = 0; i < bins; i++) {
+            tmpbins[i] = new IntArrayList(counts[i]);
+        }
+        for(int i = 0; i < values.length; i++) {
+            tmpbins[bin[i]].add(i);
+        }
+
+        List<IntArrayList> list = new ArrayList<IntArrayList>();
+        for(IntArrayList b : tmpbins) {
+            if(b.size() > 0) list.add(b);
+        }
+        return list.toArray(new IntArrayList[list.size()]);
+    }
+
+    private int clamp(int bins) {
+        if(bins < 1 || values.length < bins) return 1;
+        return bins;
+    }
+
+    /**
+     * Index of the values, partially ordered by the selections made so far
+     */
+    private int[] getIndex() {
+        if(index == null) {
+            index = new int[values.length];
+            for(int i = 0; i < index.length; i++) {
+                index[i] = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Place every rank in ks[kFrom, kTo) (ascending) at its position in
+     * idx[from, to)
+     */
+    private void multiSelect(int[] idx, int from, int to, int[] ks, int kFrom, int kTo) {
+        while(kFrom < kTo) {
+            int mid = (kFrom+kTo) >>> 1;
+            int k = ks[mid];
+            select(idx, from, to, k);
+            multiSelect(idx, from, k, ks, kFrom, mid);
+            kFrom = mid+1;
+            from = k+1;
+        }
+    }
+
+    /**
+     * Introselect: quickselect with a median of three pivot and a three way
+     * partition (RPKMs have long runs of equal values), switching to heap
+     * sort if partitioning stops making progress.
+     */
+    private void select(int[] idx, int from, int to, int k) {
+        int depth = 2*(32-Integer.numberOfLeadingZeros(to-from));
+        while(to-from > SMALL_RANGE) {
+            if(depth-- == 0) {
+                heapSort(idx, from, to);
+                return;
+            }
+
+            double pivot = medianOfThree(values[idx[from]], values[idx[(from+to) >>> 1]], values[idx[to-1]]);
+
+            // [from, lt) < pivot, [lt, i) == pivot, (gt, to) > pivot
+            int lt = from;
+            int gt = to-1;
+            int i = from;
+            while(i <= gt) {
+                double v = values[idx[i]];
+                if(v < pivot) {
+                    swap(idx, lt++, i++);
+                } else if(v > pivot) {
+                    swap(idx, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            if(k < lt) {
+                to = lt;
+            } else if(k > gt) {
+                from = gt+1;
+            } else {
+                return;
+            }
+        }
+        insertionSort(idx, from, to);
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        if(a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private void insertionSort(int[] idx, int from, int to) {
+        for(int i = from+1; i < to; i++) {
+            int x = idx[i];
+            double v = values[x];
+            int j = i-1;
+            while(j >= from && values[idx[j]] > v) {
+                idx[j+1] = idx[j];
+                j--;
+            }
+            idx[j+1] = x;
+        }
+    }
+
+    private void heapSort(int[] idx, int from, int to) {
+        int n = to-from;
+        for(int i = n/2-1; i >= 0; i--) {
+            siftDown(idx, from, i, n);
+        }
+        for(int end = n-1; end > 0; end--) {
+            swap(idx, from, from+end);
+            siftDown(idx, from, 0, end);
+        }
+    }
+
+    private void siftDown(int[] idx, int from, int i, int n) {
+        while(true) {
+            int child = 2*i+1;
+            if(child >= n) return;
+            if(child+1 < n && values[idx[from+child+1]] > values[idx[from+child]]) child++;
+            if(values[idx[from+i]] >= values[idx[from+child]]) return;
+            swap(idx, from+i, from+child);
+            i = child;
+        }
+    }
+
+    private static void swap(int[] idx, int i, int j) {
+        int t = idx[i];
+        idx[i] = idx[j];
+        idx[j] = t;
+    }
+}
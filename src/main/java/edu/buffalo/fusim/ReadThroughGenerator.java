@@ -1,8 +1,6 @@
 package edu.buffalo.fusim;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
@@ -18,10 +16,8 @@ public class ReadThroughGenerator implements FusionGenerator {
         List<FusionGene> list = new ArrayList<FusionGene>();
 
         //XXX ignoring filters for now..
-        List<TranscriptRecord> transcripts = selector.select();
+        List<TranscriptRecord> transcripts = selector.getOrder().byPosition();
         if(transcripts.size() < genesPerFusion) return list;
-
-        Collections.sort(transcripts, new TranscriptCompare());
         
         Random r = new Random();
 
@@ -57,17 +53,6 @@ public class ReadThroughGenerator implements FusionGenerator {
         return list;
     }
     
-    protected class TranscriptCompare implements Comparator<TranscriptRecord> {
-        
-        // Sort by Chrom then txStart
-        public int compare(TranscriptRecord o1, TranscriptRecord o2) {
-            int res = o1.getChrom().compareTo(o2.getChrom());
-            if (res != 0) return res;
-            
-            return Integer.valueOf(o1.getTxStart()).compareTo(Integer.valueOf(o2.getTxStart()));
-        }
-    }
-
     public void setGeneSelector(GeneSelector selector) {
         this.selector = selector;
     }
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.buffalo.fusim.gtf.GTFParseException;
+
+/**
+ * Gene selector which samples a fixed number of transcripts while streaming
+ * the gene model, so memory is proportional to the sample size and not the
+ * size of the gene model. Transcripts are parsed (and filtered by the gene
+ * model parser) one line at a time and offered to a reservoir for the
+ * unfiltered transcripts and one for each partner filter (-1/-2/-3).
+ *
+ * Sampling is uniform, or weighted by the RPKM of an expression table using
+ * the A-Res algorithm of Efraimidis and Spirakis: each transcript gets the
+ * key u^(1/rpkm) for a uniform random u and each reservoir keeps the
+ * transcripts with the largest keys.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ReservoirSelector implements GeneSelector {
+    private static Log logger = LogFactory.getLog(ReservoirSelector.class);
+
+    private int sampleSize;
+    private List<String[]> filters;
+    private File expressionFile;
+    private double rpkmCutoff;
+    private boolean weighted;
+    private Random random = new Random();
+
+    private List<TranscriptRecord> transcripts;
+    private List<List<TranscriptRecord>> filtered;
+    private TranscriptOrder order;
+    private File geneModelFile;
+    private GeneModelParser parser;
+
+    /**
+     * @param sampleSize number of transcripts kept in each reservoir
+     * @param filters partner filters known up front (entries may be null)
+     */
+    public ReservoirSelector(int sampleSize, List<String[]> filters) {
+        this.sampleSize = sampleSize;
+        this.filters = new ArrayList<String[]>();
+        if(filters != null) {
+            for(String[] f : filters) {
+                if(f != null && f.length > 0) this.filters.add(f);
+            }
+        }
+    }
+
+    /**
+     * Only sample transcripts found in the expression table above the
+     * cutoff, setting their RPKM
+     *
+     * @param weighted sample proportional to RPKM instead of uniformly
+     */
+    public void setExpression(File expressionFile, double rpkmCutoff, boolean weighted) {
+        this.expressionFile = expressionFile;
+        this.rpkmCutoff = rpkmCutoff;
+        this.weighted = weighted;
+    }
+
+    /**
+     * Source of the sampling keys, set to reproduce a sample
+     */
+    void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public synchronized List<TranscriptRecord> select() {
+        if(transcripts == null) this.sampleTranscripts();
+        return transcripts;
+    }
+
+    public synchronized TranscriptOrder getOrder() {
+        if(order == null) order = new TranscriptOrder(this.select());
+        return order;
+    }
+
+    public List<TranscriptRecord> select(String[] filter) {
+        if(filter == null || filter.length == 0) return this.select();
+
+        List<TranscriptRecord> sample = this.select();
+        for(int i = 0; i < filters.size(); i++) {
+            if(Arrays.equals(filters.get(i), filter)) return filtered.get(i);
+        }
+
+        // Filter wasn't known while streaming, fall back to the sample
+        Map<String,Boolean> filterMap = toMap(filter);
+        List<TranscriptRecord> filteredList = new ArrayList<TranscriptRecord>();
+        for(TranscriptRecord r : sample) {
+            if(matches(filterMap, r)) filteredList.add(r);
+        }
+        if(filteredList.size() == 0) {
+            throw new RuntimeException("No transcripts found using filter: "+Arrays.toString(filter));
+        }
+        return filteredList;
+    }
+
+    private void sampleTranscripts() {
+        logger.info("Sampling "+sampleSize+" transcripts from gene model file...");
+        long tstart = System.currentTimeMillis();
+
+        Map<String, Double> expression = null;
+        if(expressionFile != null) {
+            try {
+                expression = ExpressionSelector.parseExpression(expressionFile);
+            } catch(IOException e) {
+                throw new RuntimeException("Failed to read expression file", e);
+            }
+        }
+
+        Reservoir all = new Reservoir();
+        Reservoir[] reservoirs = new Reservoir[filters.size()];
+        List<Map<String,Boolean>> filterMaps = new ArrayList<Map<String,Boolean>>();
+        for(int i = 0; i < reservoirs.length; i++) {
+            reservoirs[i] = new Reservoir();
+            filterMaps.add(toMap(filters.get(i)));
+        }
+
+        long seen = 0;
+        try {
+            BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(geneModelFile), "UTF-8"));
+            try {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("#")) continue;
+
+                    TranscriptRecord record = parser.parseLine(line);
+                    if(record == null) continue;
+
+                    double weight = 1;
+                    if(expression != null) {
+                        Double rpkm = ExpressionSelector.lookup(expression, record.getTranscriptId());
+                        if(rpkm == null) rpkm = ExpressionSelector.lookup(expression, record.getGeneId());
+                        if(rpkm == null || rpkm <= rpkmCutoff) continue;
+                        record.setRPKM(rpkm);
+                        record.setRPKMInterval(rpkm, rpkm);
+                        if(weighted) weight = rpkm;
+                    }
+                    seen++;
+
+                    // log(u)/w orders the same as u^(1/w) without underflow.
+                    // Sharing the key between reservoirs keeps the samples
+                    // consistent, every sampled transcript matching a filter
+                    // is also in the filtered sample.
+                    double key = Math.log(1-random.nextDouble())/weight;
+                    all.offer(record, key, seen);
+                    for(int i = 0; i < reservoirs.length; i++) {
+                        if(matches(filterMaps.get(i), record)) reservoirs[i].offer(record, key, seen);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read gene modle file", e);
+        } catch (GTFParseException e) {
+            throw new RuntimeException("Failed to parse gene model file", e);
+        }
+
+        this.transcripts = all.toList();
+        this.filtered = new ArrayList<List<TranscriptRecord>>();
+        for(int i = 0; i < reservoirs.length; i++) {
+            List<TranscriptRecord> sample = reservoirs[i].toList();
+            if(sample.size() == 0) {
+                throw new RuntimeException("No transcripts found using filter: "+Arrays.toString(filters.get(i)));
+            }
+            filtered.add(sample);
+        }
+
+        long tend = System.currentTimeMillis();
+        double totalTime = ((tend - tstart)/1000);
+        logger.info("Sampled "+transcripts.size()+" of "+seen+" transcripts in: "+totalTime + "s");
+        if(transcripts.size() == 0) {
+            throw new RuntimeException("No transcripts found! Can't generate fusions without transcripts!");
+        }
+    }
+
+    private static Map<String,Boolean> toMap(String[] filter) {
+        Map<String,Boolean> filterMap = new HashMap<String,Boolean>();
+        for(String f : filter) {
+            filterMap.put(f,true);
+        }
+        return filterMap;
+    }
+
+    private static boolean matches(Map<String,Boolean> filterMap, TranscriptRecord r) {
+        return filterMap.containsKey(r.getGeneId())
+            || filterMap.containsKey(r.getChrom())
+            || filterMap.containsKey(r.getTranscriptId());
+    }
+
+    public File getGeneModelFile() {
+        return this.geneModelFile;
+    }
+
+    public void setGeneModelFile(File geneModelFile) {
+        this.geneModelFile = geneModelFile;
+    }
+
+    public GeneModelParser getGeneModelParser() {
+        return this.parser;
+    }
+
+    public void setGeneModelParser(GeneModelParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Keeps the sampleSize transcripts with the largest keys. The smallest
+     * key is at the head of the heap.
+     */
+    private class Reservoir {
+        private PriorityQueue<Sample> heap = new PriorityQueue<Sample>(Math.max(1, Math.min(sampleSize, 1024)), new Comparator<Sample>() {
+            public int compare(Sample a, Sample b) {
+                return Double.compare(a.key, b.key);
+            }
+        });
+
+        public void offer(TranscriptRecord record, double key, long line) {
+            if(heap.size() < sampleSize) {
+                heap.add(new Sample(record, key, line));
+            } else if(key > heap.peek().key) {
+                Sample s = heap.poll();
+                s.record = record;
+                s.key = key;
+                s.line = line;
+                heap.add(s);
+            }
+        }
+
+        /**
+         * Sampled transcripts in gene model order
+         */
+        public List<TranscriptRecord> toList() {
+            Sample[] samples = heap.toArray(new Sample[heap.size()]);
+            Arrays.sort(samples, new Comparator<Sample>() {
+                public int compare(Sample a, Sample b) {
+                    return a.line < b.line ? -1 : (a.line == b.line ? 0 : 1);
+                }
+            });
+            List<TranscriptRecord> list = new ArrayList<TranscriptRecord>(samples.length);
+            for(Sample s : samples) {
+                list.add(s.record);
+            }
+            heap = null;
+            return list;
+        }
+    }
+
+    private class Sample {
+        public TranscriptRecord record;
+        public double key;
+        public long line;
+
+        public Sample(TranscriptRecord record, double key, long line) {
+            this.record = record;
+            this.key = key;
+            this.line = line;
+        }
+    }
+}
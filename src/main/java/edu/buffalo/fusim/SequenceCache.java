@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of sequences fetched from the reference genome.
+ * A single cache can be shared by many ExtractSeq instances (and threads) so
+ * exons of popular genes are only read from the reference once.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class SequenceCache {
+    private long maxBases;
+    private long bases = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private LinkedHashMap<String, String> cache;
+
+    /**
+     * @param maxBases maximum number of bases to keep in the cache
+     */
+    public SequenceCache(long maxBases) {
+        this.maxBases = maxBases;
+        this.cache = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if(SequenceCache.this.bases > SequenceCache.this.maxBases) {
+                    SequenceCache.this.bases -= eldest.getValue().length();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized String get(String key) {
+        String seq = cache.get(key);
+        if(seq == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return seq;
+    }
+
+    public synchronized void put(String key, String seq) {
+        if(seq.length() > maxBases) return;
+
+        String old = cache.put(key, seq);
+        if(old != null) bases -= old.length();
+        bases += seq.length();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
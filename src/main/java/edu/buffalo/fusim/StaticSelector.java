@@ -37,18 +37,24 @@ public class StaticSelector implements GeneSelector {
     private static Log logger = LogFactory.getLog(StaticSelector.class);
     
     private List<TranscriptRecord> transcripts;
+    private TranscriptOrder order;
     private File geneModelFile;
     private GeneModelParser parser;
 
-    public List<TranscriptRecord> select() {
+    public synchronized List<TranscriptRecord> select() {
         if(transcripts == null) this.parseTranscripts();
         return transcripts;
     }
 
+    public synchronized TranscriptOrder getOrder() {
+        if(order == null) order = new TranscriptOrder(this.select());
+        return order;
+    }
+
     public List<TranscriptRecord> select(String[] filter) {
         if(filter == null || filter.length == 0) return this.select();
 
-        if(transcripts == null) this.parseTranscripts();
+        this.select();
 
         Map<String,Boolean> filterMap = new HashMap<String,Boolean>();
         for(String f : filter) {
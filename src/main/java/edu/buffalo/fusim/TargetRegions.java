@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
+
+/**
+ * Target regions read from a BED file (a gene panel). Regions are merged
+ * per chromosome into sorted, non overlapping intervals so overlap queries
+ * are a binary search. Coordinates are 0-based half open, the same as BED
+ * and refFlat.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class TargetRegions {
+    private File bedFile;
+    private Map<String, Intervals> chroms = new HashMap<String, Intervals>();
+    private long bases = 0;
+    private int size = 0;
+
+    public TargetRegions(File bedFile) throws IOException {
+        this.bedFile = bedFile;
+
+        // start << 32 | end sorts intervals by start
+        Map<String, LongArrayList> regions = new HashMap<String, LongArrayList>();
+
+        BufferedReader reader = IOUtils.toBufferedReader(new InputStreamReader(new FileInputStream(bedFile), "UTF-8"));
+        try {
+            String line = null;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")
+                   || line.trim().length() == 0) continue;
+
+                String[] fields = line.split("\t");
+                if(fields.length < 3) {
+                    throw new IOException("Invalid BED file line "+lineNumber+", expected at least 3 columns");
+                }
+                int start;
+                int end;
+                try {
+                    start = Integer.parseInt(fields[1].trim());
+                    end = Integer.parseInt(fields[2].trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid BED file line "+lineNumber+", can't parse number: "+e.getMessage());
+                }
+                if(start < 0 || end < start) {
+                    throw new IOException("Invalid BED file line "+lineNumber+", invalid region "+start+"-"+end);
+                }
+                if(start == end) continue;
+
+                LongArrayList list = regions.get(fields[0]);
+                if(list == null) {
+                    list = new LongArrayList();
+                    regions.put(fields[0], list);
+                }
+                list.add(((long)start << 32) | end);
+            }
+        } finally {
+            reader.close();
+        }
+
+        for(Map.Entry<String, LongArrayList> e : regions.entrySet()) {
+            Intervals intervals = merge(e.getValue());
+            chroms.put(e.getKey(), intervals);
+            size += intervals.starts.length;
+            for(int i = 0; i < intervals.starts.length; i++) {
+                bases += intervals.ends[i]-intervals.starts[i];
+            }
+        }
+    }
+
+    private static Intervals merge(LongArrayList list) {
+        list.sort();
+        IntArrayList starts = new IntArrayList();
+        IntArrayList ends = new IntArrayList();
+        for(int i = 0; i < list.size(); i++) {
+            int start = (int)(list.get(i) >>> 32);
+            int end = (int)list.get(i);
+            int last = ends.size()-1;
+            if(last >= 0 && start <= ends.get(last)) {
+                if(end > ends.get(last)) ends.set(last, end);
+            } else {
+                starts.add(start);
+                ends.add(end);
+            }
+        }
+
+        Intervals intervals = new Intervals();
+        starts.trimToSize();
+        ends.trimToSize();
+        intervals.starts = starts.elements();
+        intervals.ends = ends.elements();
+        return intervals;
+    }
+
+    public File getBedFile() {
+        return bedFile;
+    }
+
+    /**
+     * Number of merged intervals
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of bases covered by the merged intervals
+     */
+    public long getBases() {
+        return bases;
+    }
+
+    /**
+     * Returns true if the region [start, end) overlaps a target
+     */
+    public boolean overlaps(String chrom, int start, int end) {
+        Intervals intervals = chroms.get(chrom);
+        if(intervals == null) return false;
+        int i = intervals.first(start);
+        return i < intervals.starts.length && intervals.starts[i] < end;
+    }
+
+    /**
+     * Append the parts of the region [start, end) covered by targets to the
+     * list as start, end pairs. Returns the number of bases added.
+     */
+    public int clip(String chrom, int start, int end, IntArrayList regions) {
+        Intervals intervals = chroms.get(chrom);
+        if(intervals == null) return 0;
+        int bases = 0;
+        for(int i = intervals.first(start); i < intervals.starts.length && intervals.starts[i] < end; i++) {
+            int from = Math.max(start, intervals.starts[i]);
+            int to = Math.min(end, intervals.ends[i]);
+            regions.add(from);
+            regions.add(to);
+            bases += to-from;
+        }
+        return bases;
+    }
+
+    private static class Intervals {
+        public int[] starts;
+        public int[] ends;
+
+        /**
+         * Index of the first interval ending after pos
+         */
+        public int first(int pos) {
+            int lo = 0;
+            int hi = ends.length;
+            while(lo < hi) {
+                int mid = (lo+hi) >>> 1;
+                if(ends[mid] <= pos) {
+                    lo = mid+1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Precomputed ordering of the transcripts of a selector. The ordering is an
+ * index permutation computed once when the transcripts are loaded, so
+ * generators and background counting walk the transcripts in genomic order
+ * without sorting (or copying) them on every run. The ordering is a read
+ * only view and can be shared by any number of threads.
+ *
+ * The sort is stable, transcripts which compare equal keep the order of the
+ * selector.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class TranscriptOrder {
+    private List<TranscriptRecord> transcripts;
+    private int[] byPosition;
+
+    public TranscriptOrder(List<TranscriptRecord> transcripts) {
+        this.transcripts = new ArrayList<TranscriptRecord>(transcripts);
+
+        // Sort by chrom then txStart
+        this.byPosition = sort(new IndexCompare() {
+            public int compare(int a, int b) {
+                TranscriptRecord t1 = TranscriptOrder.this.transcripts.get(a);
+                TranscriptRecord t2 = TranscriptOrder.this.transcripts.get(b);
+                int cmp = t1.getChrom().compareTo(t2.getChrom());
+                if(cmp != 0) return cmp;
+                return t1.getTxStart() < t2.getTxStart() ? -1 : (t1.getTxStart() == t2.getTxStart() ? 0 : 1);
+            }
+        });
+    }
+
+    public int size() {
+        return transcripts.size();
+    }
+
+    /**
+     * Transcripts sorted by chromosome then transcript start
+     */
+    public List<TranscriptRecord> byPosition() {
+        return new OrderView(byPosition);
+    }
+
+    /**
+     * Stable merge sort of the transcript indexes
+     */
+    private int[] sort(IndexCompare c) {
+        int[] index = new int[transcripts.size()];
+        for(int i = 0; i < index.length; i++) {
+            index[i] = i;
+        }
+        mergeSort(index, new int[index.length], 0, index.length, c);
+        return index;
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, IndexCompare c) {
+        if(to-from < 8) {
+            // Insertion sort small runs
+            for(int i = from+1; i < to; i++) {
+                int x = a[i];
+                int j = i-1;
+                while(j >= from && c.compare(a[j], x) > 0) {
+                    a[j+1] = a[j];
+                    j--;
+                }
+                a[j+1] = x;
+            }
+            return;
+        }
+
+        int mid = (from+to) >>> 1;
+        mergeSort(a, tmp, from, mid, c);
+        mergeSort(a, tmp, mid, to, c);
+        if(c.compare(a[mid-1], a[mid]) <= 0) return;
+
+        System.arraycopy(a, from, tmp, from, to-from);
+        int i = from;
+        int j = mid;
+        for(int k = from; k < to; k++) {
+            if(j >= to || (i < mid && c.compare(tmp[i], tmp[j]) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+
+    private interface IndexCompare {
+        public int compare(int a, int b);
+    }
+
+    /**
+     * Read only list of the transcripts in the order of the permutation
+     */
+    private class OrderView extends AbstractList<TranscriptRecord> implements RandomAccess {
+        private int[] order;
+
+        public OrderView(int[] order) {
+            this.order = order;
+        }
+
+        public TranscriptRecord get(int i) {
+            return transcripts.get(order[i]);
+        }
+
+        public int size() {
+            return order.length;
+        }
+    }
+}
@@ -19,7 +19,6 @@ package edu.buffalo.fusim;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -52,6 +51,8 @@ public class TranscriptRecord {
     private List<int []> codingExons;
     private List<int []> exons;
     private double rpkm;
+    private double rpkmLower;
+    private double rpkmUpper;
 
     private TranscriptRecord() {
 
@@ -126,6 +127,22 @@ public class TranscriptRecord {
         return this.rpkm;
     }
 
+    /**
+     * Set the confidence interval of an estimated RPKM value
+     */
+    public void setRPKMInterval(double rpkmLower, double rpkmUpper) {
+        this.rpkmLower = rpkmLower;
+        this.rpkmUpper = rpkmUpper;
+    }
+
+    public double getRPKMLower() {
+        return this.rpkmLower;
+    }
+
+    public double getRPKMUpper() {
+        return this.rpkmUpper;
+    }
+
     public List<int []> getCodingExons() {
         return this.codingExons;
     }
@@ -138,49 +155,6 @@ public class TranscriptRecord {
         return cdsExonsOnly ? this.codingExons : this.exons;
     }
     
-    public int[] generateExonBreak(boolean keepFirstHalf, boolean cdsExonsOnly) {
-        List<int []> exonList = cdsExonsOnly ? this.codingExons : this.exons;
-        
-        if(exonList.size() == 0) {
-            throw new RuntimeException("Missing exons: \n"+this.toString());
-        }
-        
-        Random r = new Random();
-        int breakIndex = r.nextInt(exonList.size());
-        
-        int start = 0;
-        int end = breakIndex;
-        
-        if(!keepFirstHalf) {
-            start = breakIndex;
-            end = exonList.size()-1;
-        }
-        
-        int[] exonIndicies = new int[(end-start)+1];
-        
-        int j = 0;
-        for(int i = start; i <= end; i++) {
-            exonIndicies[j++] = Strand.REVERSE.equals(strand) ? ((exonList.size()-1)-i) : i;
-        }
-        
-        if(Strand.REVERSE.equals(strand)) ArrayUtils.reverse(exonIndicies);
-        
-        return exonIndicies;
-    }
-
-    public int[] generateExonBoundryBreak(boolean cdsExonsOnly) {
-        List<int []> validExonBreaks = this.getValidExonBoundryBreaks(cdsExonsOnly);
-        if(validExonBreaks.size() == 0) {
-            throw new RuntimeException("No valid exon breaks found: \n"+this.toString());
-        }
-        
-        Random r = new Random();
-        int index = r.nextInt(validExonBreaks.size());
-        int[] exonIndicies = validExonBreaks.get(index);
-        if(Strand.REVERSE.equals(strand)) ArrayUtils.reverse(exonIndicies);
-        return exonIndicies;
-    }
-
     public List<int[]> getValidExonBoundryBreaks(boolean cdsExonsOnly) {
         List<int []> exonList = cdsExonsOnly ? this.codingExons : this.exons;
         
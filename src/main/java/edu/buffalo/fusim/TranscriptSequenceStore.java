@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.samtools.util.SequenceUtil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.buffalo.fusim.gtf.Strand;
+
+/**
+ * Persistent store of spliced transcript sequences. The store is built once
+ * from a gene model and reference genome and then memory mapped, so fusion
+ * sequences are sliced out of the store without reading the genome. The
+ * mapping is read only and can be shared by any number of threads and
+ * processes.
+ *
+ * For each transcript the exons (all exons, then coding exons) are stored
+ * one after another in genomic order, each oriented to the strand of the
+ * transcript. This is the order FusionGene joins the exons of a break, so
+ * the sequence of a break is a single slice of the store (two if the last
+ * exon of a reverse strand break is trimmed).
+ *
+ * File layout:
+ *
+ * <pre>
+ *   magic "FSTS", version (int), index offset (long), max entry length (int)
+ *   sequence bytes
+ *   entry count (int), then per entry: key (UTF), offset (long),
+ *   exon bases (int), cds exon bases (int)
+ * </pre>
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class TranscriptSequenceStore {
+    private static Log logger = LogFactory.getLog(TranscriptSequenceStore.class);
+
+    private static final byte[] MAGIC = new byte[]{'F', 'S', 'T', 'S'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Size of each mapped segment. Segments overlap by the longest entry so
+     * every sequence can be read from a single segment.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private MappedByteBuffer[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open an existing store
+     */
+    public TranscriptSequenceStore(File storeFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            file.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            for(int i = 0; i < MAGIC.length; i++) {
+                if(buf.get() != MAGIC[i]) {
+                    throw new IOException("Invalid transcript sequence store: "+storeFile.getAbsolutePath());
+                }
+            }
+            int version = buf.getInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported transcript sequence store version: "+version);
+            }
+            long indexOffset = buf.getLong();
+            int maxLength = buf.getInt();
+
+            FileChannel channel = file.getChannel();
+            int nSegments = (int)((indexOffset-HEADER_SIZE+SEGMENT_SIZE-1)/SEGMENT_SIZE);
+            segments = new MappedByteBuffer[Math.max(nSegments, 1)];
+            for(int i = 0; i < segments.length; i++) {
+                long start = HEADER_SIZE+i*SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE+maxLength, indexOffset-start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+            }
+
+            readIndex(storeFile, indexOffset);
+        } finally {
+            // The mappings stay valid after the file is closed
+            file.close();
+        }
+
+        logger.info("Loaded "+entries.size()+" transcript sequences from store: "+storeFile.getAbsolutePath());
+    }
+
+    private void readIndex(File storeFile, long indexOffset) throws IOException {
+        FileInputStream fin = new FileInputStream(storeFile);
+        try {
+            fin.getChannel().position(indexOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fin, 65536));
+            int n = in.readInt();
+            for(int i = 0; i < n; i++) {
+                Entry e = new Entry();
+                String key = in.readUTF();
+                e.offset = in.readLong();
+                e.exonBases = in.readInt();
+                e.cdsExonBases = in.readInt();
+                entries.put(key, e);
+            }
+        } finally {
+            fin.close();
+        }
+    }
+
+    /**
+     * Build a new store for the transcripts and open it. The store is
+     * written to a temporary file and renamed so other processes never see
+     * a partial store.
+     */
+    public static TranscriptSequenceStore build(File storeFile, List<TranscriptRecord> transcripts, File referenceFile) throws IOException {
+        // Sort by position so the reference is read sequentially
+        List<TranscriptRecord> sorted = new ArrayList<TranscriptRecord>(transcripts);
+        Collections.sort(sorted, new Comparator<TranscriptRecord>() {
+            public int compare(TranscriptRecord a, TranscriptRecord b) {
+                int cmp = a.getChrom().compareTo(b.getChrom());
+                if(cmp != 0) return cmp;
+                return a.getTxStart() < b.getTxStart() ? -1 : (a.getTxStart() == b.getTxStart() ? 0 : 1);
+            }
+        });
+
+        logger.info("Building transcript sequence store for "+sorted.size()+" transcripts: "+storeFile.getAbsolutePath());
+
+        File tmpFile = new File(storeFile.getAbsolutePath()+".tmp");
+        ExtractSeq extractSeq = new ExtractSeq(referenceFile);
+        Map<String, Entry> index = new HashMap<String, Entry>();
+        List<String> keys = new ArrayList<String>();
+        long offset = HEADER_SIZE;
+        int maxLength = 0;
+
+        FileOutputStream fout = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+            out.write(new byte[HEADER_SIZE]);
+
+            for(TranscriptRecord tr : sorted) {
+                String key = getKey(tr);
+                if(index.containsKey(key)) continue;
+
+                // Fetch the whole transcript once and cut the exons from it
+                byte[] span = extractSeq.fetch(tr.getChrom(), Strand.FORWARD, tr.getTxStart()+1, tr.getTxEnd()).getBytes("US-ASCII");
+                boolean reverse = Strand.REVERSE.equals(tr.getStrand());
+
+                Entry e = new Entry();
+                e.offset = offset;
+                e.exonBases = writeExons(out, span, tr.getTxStart(), tr.getExons(), reverse);
+                e.cdsExonBases = writeExons(out, span, tr.getTxStart(), tr.getCodingExons(), reverse);
+                index.put(key, e);
+                keys.add(key);
+
+                int length = e.exonBases+e.cdsExonBases;
+                offset += length;
+                maxLength = Math.max(maxLength, length);
+            }
+
+            out.writeInt(keys.size());
+            for(String key : keys) {
+                Entry e = index.get(key);
+                out.writeUTF(key);
+                out.writeLong(e.offset);
+                out.writeInt(e.exonBases);
+                out.writeInt(e.cdsExonBases);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(offset);
+            header.putInt(maxLength);
+            header.flip();
+            fout.getChannel().write(header, 0);
+        } finally {
+            fout.close();
+        }
+
+        if(!tmpFile.renameTo(storeFile)) {
+            throw new IOException("Failed to create transcript sequence store: "+storeFile.getAbsolutePath());
+        }
+
+        return new TranscriptSequenceStore(storeFile);
+    }
+
+    private static int writeExons(DataOutputStream out, byte[] span, int spanStart, List<int []> exons, boolean reverse) throws IOException {
+        int bases = 0;
+        for(int[] exon : exons) {
+            int length = exon[1]-exon[0];
+            if(reverse) {
+                byte[] seq = new byte[length];
+                System.arraycopy(span, exon[0]-spanStart, seq, 0, length);
+                SequenceUtil.reverseComplement(seq);
+                out.write(seq);
+            } else {
+                out.write(span, exon[0]-spanStart, length);
+            }
+            bases += length;
+        }
+        return bases;
+    }
+
+    private static String getKey(TranscriptRecord tr) {
+        // Transcript ids are not unique in most gene models
+        return tr.getTranscriptId()+"\t"+tr.getChrom()+"\t"+tr.getTxStart()+"\t"+tr.getTxEnd();
+    }
+
+    /**
+     * Returns the stored sequences of the transcript or null if the
+     * transcript is not in the store (or the store was built from a
+     * different version of the gene model)
+     */
+    public Entry getEntry(TranscriptRecord tr) {
+        Entry e = entries.get(getKey(tr));
+        if(e != null && (e.exonBases != tr.getExonBases() || e.cdsExonBases != tr.getCdsExonBases())) {
+            e = null;
+        }
+        if(e == null) misses.incrementAndGet(); else hits.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Append the stored bases [from, to) of the exon or coding exon sequence
+     * of the transcript
+     */
+    public void append(StringBuilder buf, Entry e, boolean cdsExonsOnly, int from, int to) {
+        long start = e.offset + (cdsExonsOnly ? e.exonBases : 0) + from;
+        int segment = (int)((start-HEADER_SIZE)/SEGMENT_SIZE);
+
+        // Absolute reads so the mapping can be shared between threads
+        MappedByteBuffer seg = segments[segment];
+        int pos = (int)(start-HEADER_SIZE-segment*SEGMENT_SIZE);
+        for(int i = 0; i < to-from; i++) {
+            buf.append((char)seg.get(pos+i));
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Location of the sequences of one transcript in the store
+     */
+    public static class Entry {
+        private long offset;
+        private int exonBases;
+        private int cdsExonBases;
+    }
+}
@@ -13,6 +13,7 @@ public class UCSCRefFlatParser implements GeneModelParser {
     private boolean keepExonBoundries;
     private boolean cdsOnly;
     private Map<String, Boolean> limit;
+    private TargetRegions targets;
 
     public UCSCRefFlatParser() {
         this.keepExonBoundries = false;
@@ -26,28 +27,83 @@ public class UCSCRefFlatParser implements GeneModelParser {
         this.limit = limit;
     }
 
+    /**
+     * Only parse transcripts overlapping the target regions
+     */
+    public void setTargetRegions(TargetRegions targets) {
+        this.targets = targets;
+    }
+
+    public TargetRegions getTargetRegions() {
+        return this.targets;
+    }
+
     public TranscriptRecord parseLine(String line) throws GTFParseException {
+        if(targets != null && !this.overlapsTargets(line)) return null;
+
         String[] fields = line.split("\t");
         TranscriptRecord record = TranscriptRecord.fromRefFlat(fields);
         
         //XXX skip the haplotypes and unassembled chroms
         if(record.getChrom().contains("_")) return null;
 
-        if(record.getExonBases() == 0) return null;
-
-        if(cdsOnly && record.getCdsExonBases() == 0) return null;
-
-        if(keepExonBoundries && record.getValidExonBoundryBreaks(cdsOnly).size() == 0) {
-            return null;
-        }
+        if(!this.accept(record)) return null;
 
         if(limit != null && 
           !limit.containsKey(record.getGeneId()) &&
           !limit.containsKey(record.getTranscriptId())) return null;
 
+        if(targets != null) {
+            boolean overlaps = false;
+            for(int i = 0; i < record.getExonStarts().length && !overlaps; i++) {
+                overlaps = targets.overlaps(record.getChrom(), record.getExonStarts()[i], record.getExonEnds()[i]);
+            }
+            if(!overlaps) return null;
+        }
+
         return record;
     }
 
+    /**
+     * Check the transcript span against the targets using only the chrom,
+     * txStart and txEnd columns so lines outside the targets are never split
+     * or parsed
+     */
+    private boolean overlapsTargets(String line) {
+        int[] tabs = new int[6];
+        int n = 0;
+        for(int i = 0; i < line.length() && n < tabs.length; i++) {
+            if(line.charAt(i) == '\t') tabs[n++] = i;
+        }
+        // Let the full parser report invalid lines
+        if(n < tabs.length) return true;
+
+        try {
+            String chrom = line.substring(tabs[1]+1, tabs[2]);
+            int txStart = Integer.parseInt(line.substring(tabs[3]+1, tabs[4]));
+            int txEnd = Integer.parseInt(line.substring(tabs[4]+1, tabs[5]));
+            return targets.overlaps(chrom, txStart, txEnd);
+        } catch(NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the transcript can be used for fusions given the
+     * cds only and keep exon boundry settings of this parser
+     */
+    public boolean accept(TranscriptRecord record) {
+        if(record.getExonBases() == 0) return false;
+
+        if(cdsOnly && record.getCdsExonBases() == 0) return false;
+
+        if(keepExonBoundries && record.getValidExonBoundryBreaks(cdsOnly).size() == 0) {
+            return false;
+        }
+
+        return true;
+    }
+
     //XXX test only. remove soon
     public static void main(String[] args) throws Exception {
         UCSCRefFlatParser parser = new UCSCRefFlatParser();
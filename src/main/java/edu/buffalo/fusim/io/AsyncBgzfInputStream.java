@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Seekable BGZF input stream which inflates blocks ahead of the reader. The
+ * compressed bytes of the next few blocks are read into a bounded ring and
+ * each block is inflated by a task on a (shared) pool of threads. When the
+ * reader needs a block whose task has not started yet it inflates the block
+ * itself, so work is balanced between the pool and the readers without any
+ * tuning. Positions are BGZF virtual file offsets, as used by the BAM index.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class AsyncBgzfInputStream extends BgzfInputStream {
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private static ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long fileLength;
+    private ExecutorService pool;
+    private int readAhead;
+    private LinkedList<Block> ring = new LinkedList<Block>();
+    private ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    private Block current;
+    private byte[] data;
+    private int offset;
+    private long nextAddress = 0;
+
+    public AsyncBgzfInputStream(File bgzfFile) throws IOException {
+        this(bgzfFile, null, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param bgzfFile BGZF compressed file
+     * @param pool pool used to inflate blocks ahead of the reader, may be
+     *             shared by many streams. If null blocks are inflated by the
+     *             reader when needed.
+     * @param readAhead number of blocks to read ahead
+     */
+    public AsyncBgzfInputStream(File bgzfFile, ExecutorService pool, int readAhead) throws IOException {
+        this.file = new RandomAccessFile(bgzfFile, "r");
+        this.channel = file.getChannel();
+        this.fileLength = channel.size();
+        this.pool = pool;
+        this.readAhead = Math.max(1, readAhead);
+    }
+
+    public long getFilePointer() {
+        if(current == null) return nextAddress << 16;
+        if(offset >= data.length) return (current.address+current.length) << 16;
+        return (current.address << 16) | offset;
+    }
+
+    /**
+     * Seek to a virtual file offset. Blocks already in the read ahead ring
+     * are reused.
+     */
+    public void seek(long virtualOffset) throws IOException {
+        long address = virtualOffset >>> 16;
+        int blockOffset = (int)(virtualOffset & 0xffff);
+
+        if(current == null || current.address != address) {
+            // Drop blocks before the target, or everything if it isn't in the ring
+            boolean found = false;
+            for(Block b : ring) {
+                if(b.address == address) {
+                    found = true;
+                    break;
+                }
+            }
+            Iterator<Block> it = ring.iterator();
+            while(it.hasNext()) {
+                Block b = it.next();
+                if(found && b.address == address) break;
+                b.task.cancel(false);
+                it.remove();
+            }
+
+            current = null;
+            nextAddress = address;
+            if(!nextBlock()) {
+                if(blockOffset != 0) throw new EOFException("Seek past end of BGZF file");
+                return;
+            }
+        }
+
+        if(blockOffset > data.length) {
+            throw new IOException("Invalid virtual file offset: "+virtualOffset);
+        }
+        offset = blockOffset;
+    }
+
+    public int read() throws IOException {
+        if(!ensureData()) return -1;
+        return data[offset++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+
+        int total = 0;
+        while(len > 0) {
+            if(!ensureData()) break;
+            int n = Math.min(len, data.length-offset);
+            System.arraycopy(data, offset, b, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    public void close() throws IOException {
+        for(Block b : ring) {
+            b.task.cancel(false);
+        }
+        ring.clear();
+        file.close();
+    }
+
+    private boolean ensureData() throws IOException {
+        while(current == null || offset >= data.length) {
+            if(!nextBlock()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Make the next block current, inflating it in this thread if the pool
+     * has not got to it yet
+     */
+    private boolean nextBlock() throws IOException {
+        if(current != null) {
+            nextAddress = current.address+current.length;
+        }
+        if(ring.isEmpty()) {
+            Block b = readBlock(nextAddress);
+            if(b == null) return false;
+            ring.add(b);
+        }
+
+        Block b = ring.removeFirst();
+        if(!b.task.isDone()) {
+            // Does nothing if a pool thread is already inflating the block
+            b.task.run();
+        }
+        try {
+            data = b.task.get();
+        } catch(InterruptedException e) {
+            throw new IOException("Interrupted while inflating BGZF block");
+        } catch(ExecutionException e) {
+            IOException ioe = new IOException("Failed to inflate BGZF block at "+b.address);
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        current = b;
+        offset = 0;
+
+        // Keep the ring full
+        long address = current.address+current.length;
+        if(!ring.isEmpty()) {
+            address = ring.getLast().address+ring.getLast().length;
+        }
+        while(ring.size() < readAhead) {
+            Block next = readBlock(address);
+            if(next == null) break;
+            ring.add(next);
+            address = next.address+next.length;
+        }
+        return true;
+    }
+
+    /**
+     * Read the compressed bytes of the block at the address and schedule it
+     * to be inflated. Returns null at the end of the file.
+     */
+    private Block readBlock(long address) throws IOException {
+        if(address >= fileLength) return null;
+
+        header.clear();
+        readFully(header, address);
+        byte[] h = header.array();
+        if((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || (h[3] & 0x04) == 0
+           || h[12] != 'B' || h[13] != 'C') {
+            throw new IOException("Invalid BGZF block header at "+address);
+        }
+        int length = ((h[16] & 0xff) | ((h[17] & 0xff) << 8)) + 1;
+
+        final byte[] compressed = new byte[length];
+        readFully(ByteBuffer.wrap(compressed), address);
+
+        Block b = new Block();
+        b.address = address;
+        b.length = length;
+        b.task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return inflate(compressed);
+            }
+        });
+        if(pool != null) pool.execute(b.task);
+        return b;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if(n < 0) throw new EOFException("Truncated BGZF block at "+position);
+            position += n;
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        int n = compressed.length;
+        int size = (compressed[n-4] & 0xff) | ((compressed[n-3] & 0xff) << 8)
+                   | ((compressed[n-2] & 0xff) << 16) | ((compressed[n-1] & 0xff) << 24);
+        byte[] block = new byte[size];
+        if(size == 0) return block;
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed, HEADER_SIZE, n - HEADER_SIZE - FOOTER_SIZE);
+        try {
+            int read = 0;
+            while(read < size) {
+                int k = inflater.inflate(block, read, size-read);
+                if(k == 0 && (inflater.finished() || inflater.needsInput())) break;
+                read += k;
+            }
+            if(read != size) throw new IOException("Corrupt BGZF block, expected "+size+" bytes but got "+read);
+        } catch(DataFormatException e) {
+            IOException ioe = new IOException("Corrupt BGZF block");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        return block;
+    }
+
+    private static class Block {
+        public long address;
+        public int length;
+        public FutureTask<byte[]> task;
+    }
+}
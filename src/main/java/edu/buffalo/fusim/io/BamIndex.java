@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import cern.colt.list.LongArrayList;
+
+/**
+ * In memory copy of a BAM index (.bai). Used to find the compressed file
+ * offsets of the records overlapping a region and the number of mapped reads
+ * on each reference without opening the BAM file through SAMFileReader.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BamIndex {
+    /**
+     * Bin number of the pseudo-bin holding the mapped/unmapped counts
+     */
+    public static final int METADATA_BIN = 37450;
+
+    /**
+     * Width of the linear index windows
+     */
+    public static final int LINEAR_SHIFT = 14;
+
+    private Map<Integer, long[]>[] bins;
+    private long[][] linear;
+    private long[] mapped;
+    private long[] unmapped;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BamIndex(File indexFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(indexFile), 65536);
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] magic = new byte[4];
+            data.readFully(magic);
+            if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+                throw new IOException("Invalid BAM index file: "+indexFile.getAbsolutePath());
+            }
+
+            int nRef = readInt(data);
+            bins = new HashMap[nRef];
+            linear = new long[nRef][];
+            mapped = new long[nRef];
+            unmapped = new long[nRef];
+
+            for(int r = 0; r < nRef; r++) {
+                bins[r] = new HashMap<Integer, long[]>();
+                int nBin = readInt(data);
+                for(int b = 0; b < nBin; b++) {
+                    int bin = readInt(data);
+                    int nChunk = readInt(data);
+                    long[] chunks = new long[nChunk*2];
+                    for(int c = 0; c < chunks.length; c++) {
+                        chunks[c] = readLong(data);
+                    }
+                    if(bin == METADATA_BIN) {
+                        if(nChunk == 2) {
+                            mapped[r] = chunks[2];
+                            unmapped[r] = chunks[3];
+                        }
+                    } else {
+                        bins[r].put(bin, chunks);
+                    }
+                }
+
+                int nIntv = readInt(data);
+                linear[r] = new long[nIntv];
+                for(int i = 0; i < nIntv; i++) {
+                    linear[r][i] = readLong(data);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getNumberOfReferences() {
+        return bins.length;
+    }
+
+    /**
+     * Number of mapped reads on the reference
+     */
+    public long getMappedCount(int ref) {
+        return mapped[ref];
+    }
+
+    /**
+     * Number of unmapped reads placed on the reference
+     */
+    public long getUnmappedCount(int ref) {
+        return unmapped[ref];
+    }
+
+    /**
+     * Total number of mapped reads on all references
+     */
+    public long getMappedCount() {
+        long total = 0;
+        for(long n : mapped) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the merged chunks which may contain records overlapping the
+     * 0-based half open region as pairs of virtual file offsets
+     * [start1, end1, start2, end2, ...] sorted by offset
+     */
+    public long[] getChunks(int ref, int start, int end) {
+        if(ref < 0 || ref >= bins.length) return new long[0];
+
+        long minOffset = 0;
+        int window = start >> LINEAR_SHIFT;
+        if(linear[ref].length > 0) {
+            minOffset = linear[ref][Math.min(window, linear[ref].length-1)];
+        }
+
+        LongArrayList found = new LongArrayList();
+        int[] regionBins = reg2bins(start, end);
+        for(int bin : regionBins) {
+            long[] chunks = bins[ref].get(bin);
+            if(chunks == null) continue;
+            for(int c = 0; c < chunks.length; c += 2) {
+                if(chunks[c+1] > minOffset) {
+                    found.add(Math.max(chunks[c], minOffset));
+                    found.add(chunks[c+1]);
+                }
+            }
+        }
+
+        return merge(found);
+    }
+
+    private static long[] merge(LongArrayList found) {
+        int n = found.size()/2;
+        if(n == 0) return new long[0];
+
+        // Sort the chunks by start offset
+        long[][] pairs = new long[n][];
+        for(int i = 0; i < n; i++) {
+            pairs[i] = new long[]{found.get(i*2), found.get(i*2+1)};
+        }
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        LongArrayList merged = new LongArrayList(n*2);
+        long curStart = pairs[0][0];
+        long curEnd = pairs[0][1];
+        for(int i = 1; i < n; i++) {
+            // Chunks ending in the same compressed block as the next begins are joined
+            if((pairs[i][0] >> 16) <= (curEnd >> 16)) {
+                curEnd = Math.max(curEnd, pairs[i][1]);
+            } else {
+                merged.add(curStart);
+                merged.add(curEnd);
+                curStart = pairs[i][0];
+                curEnd = pairs[i][1];
+            }
+        }
+        merged.add(curStart);
+        merged.add(curEnd);
+
+        long[] result = new long[merged.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = merged.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Bins which may hold records overlapping the 0-based half open region
+     * (from the SAM specification)
+     */
+    public static int[] reg2bins(int beg, int end) {
+        if(end <= beg) end = beg+1;
+        --end;
+        int size = 1;
+        for(int shift = 14; shift <= 26; shift += 3) {
+            size += (end>>shift) - (beg>>shift) + 1;
+        }
+        int[] list = new int[size];
+        int i = 0, k;
+        list[i++] = 0;
+        for(k =    1 + (beg>>26); k <=    1 + (end>>26); ++k) list[i++] = k;
+        for(k =    9 + (beg>>23); k <=    9 + (end>>23); ++k) list[i++] = k;
+        for(k =   73 + (beg>>20); k <=   73 + (end>>20); ++k) list[i++] = k;
+        for(k =  585 + (beg>>17); k <=  585 + (end>>17); ++k) list[i++] = k;
+        for(k = 4681 + (beg>>14); k <= 4681 + (end>>14); ++k) list[i++] = k;
+        return list;
+    }
+
+    /**
+     * Bin of a record spanning the 0-based half open region (from the SAM
+     * specification)
+     */
+    public static int reg2bin(int beg, int end) {
+        --end;
+        if(beg>>14 == end>>14) return ((1<<15)-1)/7 + (beg>>14);
+        if(beg>>17 == end>>17) return ((1<<12)-1)/7 + (beg>>17);
+        if(beg>>20 == end>>20) return ((1<<9)-1)/7 + (beg>>20);
+        if(beg>>23 == end>>23) return ((1<<6)-1)/7 + (beg>>23);
+        if(beg>>26 == end>>26) return ((1<<3)-1)/7 + (beg>>26);
+        return 0;
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        if((b0 | b1 | b2 | b3) < 0) throw new EOFException();
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private static long readLong(DataInputStream in) throws IOException {
+        return (readInt(in) & 0xffffffffL) | ((long)readInt(in) << 32);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import cern.colt.list.LongArrayList;
+
+/**
+ * Builds a BAM index (.bai) from the records of a coordinate sorted BAM file
+ * as they are read in file order. Records are added with the virtual file
+ * offsets of their first byte and the byte after them. The index written is
+ * the same as the one written by samtools index, including the mapped and
+ * unmapped counts of each reference.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BamIndexWriter {
+    private Map<Integer, LongArrayList>[] bins;
+    private LongArrayList[] linear;
+    private long[] refBegin;
+    private long[] refEnd;
+    private long[] mapped;
+    private long[] unmapped;
+    private long noCoordinate = 0;
+    private int lastRef = -1;
+    private int lastPos = -1;
+    private boolean seenNoCoordinate = false;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BamIndexWriter(int nRef) {
+        this.bins = new HashMap[nRef];
+        this.linear = new LongArrayList[nRef];
+        this.refBegin = new long[nRef];
+        this.refEnd = new long[nRef];
+        this.mapped = new long[nRef];
+        this.unmapped = new long[nRef];
+    }
+
+    /**
+     * Add a record spanning the 0-based half open region [start, end) of
+     * the reference (-1 for unplaced reads)
+     *
+     * @param beginOffset virtual file offset of the record
+     * @param endOffset virtual file offset following the record
+     */
+    public void add(int ref, int start, int end, boolean isUnmapped, long beginOffset, long endOffset) throws IOException {
+        if(ref < 0) {
+            seenNoCoordinate = true;
+            noCoordinate++;
+            return;
+        }
+        if(ref >= bins.length) {
+            throw new IOException("Invalid reference index in BAM record: "+ref);
+        }
+        if(seenNoCoordinate || ref < lastRef || (ref == lastRef && start < lastPos)) {
+            throw new IOException("BAM file is not sorted by coordinate");
+        }
+        lastRef = ref;
+        lastPos = start;
+
+        if(bins[ref] == null) {
+            bins[ref] = new HashMap<Integer, LongArrayList>();
+            linear[ref] = new LongArrayList();
+            refBegin[ref] = beginOffset;
+        }
+        refEnd[ref] = endOffset;
+        if(isUnmapped) {
+            unmapped[ref]++;
+        } else {
+            mapped[ref]++;
+        }
+
+        if(end <= start) end = start+1;
+        int bin = BamIndex.reg2bin(start, end);
+        LongArrayList chunks = bins[ref].get(bin);
+        if(chunks == null) {
+            chunks = new LongArrayList();
+            bins[ref].put(bin, chunks);
+        }
+        // Records following each other in the same bin share a chunk
+        int last = chunks.size()-1;
+        if(last > 0 && chunks.get(last) == beginOffset) {
+            chunks.set(last, endOffset);
+        } else {
+            chunks.add(beginOffset);
+            chunks.add(endOffset);
+        }
+
+        // Linear index holds the first record overlapping each window
+        LongArrayList windows = linear[ref];
+        int lastWindow = (end-1) >> BamIndex.LINEAR_SHIFT;
+        while(windows.size() <= lastWindow) {
+            windows.add(0);
+        }
+        for(int w = start >> BamIndex.LINEAR_SHIFT; w <= lastWindow; w++) {
+            if(windows.get(w) == 0) windows.set(w, beginOffset);
+        }
+    }
+
+    /**
+     * Number of mapped reads added on all references
+     */
+    public long getMappedCount() {
+        long total = 0;
+        for(long n : mapped) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Write the index. The index is written to a temporary file and renamed
+     * so readers never see a partial index.
+     */
+    public void write(File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getAbsolutePath()+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+        try {
+            out.write(new byte[]{'B', 'A', 'I', 1});
+            writeInt(out, bins.length);
+            for(int r = 0; r < bins.length; r++) {
+                if(bins[r] == null) {
+                    writeInt(out, 0);
+                    writeInt(out, 0);
+                    continue;
+                }
+
+                writeInt(out, bins[r].size()+1);
+                for(Map.Entry<Integer, LongArrayList> e : bins[r].entrySet()) {
+                    LongArrayList chunks = e.getValue();
+                    writeInt(out, e.getKey());
+                    writeInt(out, chunks.size()/2);
+                    for(int c = 0; c < chunks.size(); c++) {
+                        writeLong(out, chunks.get(c));
+                    }
+                }
+                writeInt(out, BamIndex.METADATA_BIN);
+                writeInt(out, 2);
+                writeLong(out, refBegin[r]);
+                writeLong(out, refEnd[r]);
+                writeLong(out, mapped[r]);
+                writeLong(out, unmapped[r]);
+
+                // Windows without records point at the previous record
+                LongArrayList windows = linear[r];
+                writeInt(out, windows.size());
+                long previous = 0;
+                for(int w = 0; w < windows.size(); w++) {
+                    if(windows.get(w) != 0) previous = windows.get(w);
+                    writeLong(out, previous);
+                }
+            }
+            writeLong(out, noCoordinate);
+        } finally {
+            out.close();
+        }
+
+        if(!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to write BAM index: "+indexFile.getAbsolutePath());
+        }
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeLong(DataOutputStream out, long value) throws IOException {
+        out.writeLong(Long.reverseBytes(value));
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Minimal BAM reader for counting reads. Records overlapping a region are
+ * found using the BAM index and read straight into a reusable buffer. Only
+ * the fixed length fields (reference, position, mapping quality and flags)
+ * are decoded. The CIGAR is only decoded when the alignment end or aligned
+ * blocks are needed to decide if a read overlaps a region. The read name,
+ * sequence and qualities are never decoded, tags only when asked for.
+ *
+ * Usage:
+ *
+ * <pre>
+ *   BamRecordScanner scanner = new BamRecordScanner(bamFile, index);
+ *   scanner.query("chr1", 1000, 2000);
+ *   while(scanner.next()) {
+ *       int flag = scanner.getFlag();
+ *   }
+ * </pre>
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BamRecordScanner {
+    public static final int FLAG_PAIRED = 0x1;
+    public static final int FLAG_PROPER_PAIR = 0x2;
+    public static final int FLAG_UNMAPPED = 0x4;
+    public static final int FLAG_MATE_UNMAPPED = 0x8;
+    public static final int FLAG_SECONDARY = 0x100;
+    public static final int FLAG_DUPLICATE = 0x400;
+    public static final int FLAG_SUPPLEMENTARY = 0x800;
+
+    private static final int CIGAR_REF_OPS = (1 << 0) | (1 << 2) | (1 << 3) | (1 << 7) | (1 << 8); // M D N = X
+    private static final int CIGAR_SKIP = 3; // N
+    private static final int CIGAR_CLIPS = (1 << 4) | (1 << 5); // S H
+
+    private BgzfInputStream in;
+    private AsyncBgzfInputStream file;
+    private BamIndex index;
+    private Map<String, Integer> references = new HashMap<String, Integer>();
+    private String[] referenceNames;
+    private byte[] record = new byte[1024];
+    private byte[] intBuffer = new byte[4];
+
+    private long[] chunks = new long[0];
+    private int chunkIndex = 0;
+    private long chunkEnd = -1;
+    private int queryRef;
+    private int queryStart;
+    private int queryEnd;
+
+    private long recordOffset;
+    private int refId;
+    private int pos;
+    private int recordLength;
+    private int readNameLength;
+    private int mapq;
+    private int cigarLength;
+    private int flag;
+    private int alignmentEnd;
+
+    public BamRecordScanner(File bamFile, BamIndex index) throws IOException {
+        this(bamFile, index, null);
+    }
+
+    /**
+     * @param bamFile BAM file to scan
+     * @param index index of the BAM file (may be null if the file is only
+     *              read sequentially with nextRecord())
+     * @param pool optional pool used to inflate BGZF blocks ahead of the
+     *             scanner (may be null)
+     */
+    public BamRecordScanner(File bamFile, BamIndex index, ExecutorService pool) throws IOException {
+        this.file = new AsyncBgzfInputStream(bamFile, pool, AsyncBgzfInputStream.DEFAULT_READ_AHEAD);
+        this.in = file;
+        this.index = index;
+        this.readHeader();
+    }
+
+    /**
+     * Scan BAM read from a stream, such as the output of samtools. The
+     * records can only be read sequentially with nextRecord().
+     */
+    public BamRecordScanner(InputStream bamStream) throws IOException {
+        this.in = new BgzfStreamInputStream(bamStream);
+        this.readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[4];
+        readFully(magic, 4);
+        if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+            throw new IOException("Invalid BAM file");
+        }
+
+        int textLength = readInt();
+        skip(textLength);
+
+        int nRef = readInt();
+        referenceNames = new String[nRef];
+        for(int i = 0; i < nRef; i++) {
+            int nameLength = readInt();
+            ensureCapacity(nameLength);
+            readFully(record, nameLength);
+            referenceNames[i] = new String(record, 0, nameLength-1, "US-ASCII");
+            references.put(referenceNames[i], i);
+            readInt(); // reference length
+        }
+    }
+
+    public BamIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the index of the reference sequence or -1 if not in the BAM
+     */
+    public int getReferenceIndex(String chrom) {
+        Integer ref = references.get(chrom);
+        return ref == null ? -1 : ref;
+    }
+
+    /**
+     * Start a query for records overlapping the 0-based half open region.
+     * Returns false if the reference is not in the BAM file.
+     */
+    public boolean query(String chrom, int start, int end) {
+        if(file == null || index == null) {
+            throw new IllegalStateException("Can't query a BAM file without an index");
+        }
+        int ref = getReferenceIndex(chrom);
+        this.queryRef = ref;
+        this.queryStart = start;
+        this.queryEnd = end;
+        this.chunkIndex = 0;
+        this.chunkEnd = -1;
+        this.chunks = ref < 0 ? new long[0] : index.getChunks(ref, start, end);
+        return ref >= 0;
+    }
+
+    /**
+     * Advance to the next record overlapping the query region
+     */
+    public boolean next() throws IOException {
+        while(true) {
+            if(chunkEnd < 0 || in.getFilePointer() >= chunkEnd) {
+                if(chunkIndex >= chunks.length) return false;
+                file.seek(chunks[chunkIndex]);
+                chunkEnd = chunks[chunkIndex+1];
+                chunkIndex += 2;
+                continue;
+            }
+
+            if(!readRecord()) {
+                chunkIndex = chunks.length;
+                return false;
+            }
+
+            // Records are sorted so nothing past this one can overlap
+            if(refId != queryRef || pos >= queryEnd) {
+                chunkIndex = chunks.length;
+                chunkEnd = -1;
+                return false;
+            }
+
+            if(pos >= queryStart || getAlignmentEnd() > queryStart) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Advance to the next record in file order. Used to sweep a whole
+     * file without an index.
+     */
+    public boolean nextRecord() throws IOException {
+        return readRecord();
+    }
+
+    /**
+     * Virtual file offset following the current record
+     */
+    public long getFilePointer() {
+        return in.getFilePointer();
+    }
+
+    public int getNumberOfReferences() {
+        return referenceNames.length;
+    }
+
+    /**
+     * Returns the name of the reference sequence or null for -1
+     */
+    public String getReferenceName(int ref) {
+        return ref < 0 ? null : referenceNames[ref];
+    }
+
+    private boolean readRecord() throws IOException {
+        recordOffset = in.getFilePointer();
+        if(!readFully(intBuffer, 4)) return false;
+        int blockSize = getInt(intBuffer, 0);
+        ensureCapacity(blockSize);
+        if(!readFully(record, blockSize)) {
+            throw new EOFException("Truncated BAM record");
+        }
+
+        recordLength = blockSize;
+        refId = getInt(record, 0);
+        pos = getInt(record, 4);
+        readNameLength = record[8] & 0xff;
+        mapq = record[9] & 0xff;
+        cigarLength = getShort(record, 12);
+        flag = getShort(record, 14);
+        alignmentEnd = -1;
+        return true;
+    }
+
+    public int getReferenceIndex() {
+        return refId;
+    }
+
+    /**
+     * Virtual file offset of the current record. Unique to the record so it
+     * can be used as an id without decoding the read name.
+     */
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    /**
+     * 0-based alignment start
+     */
+    public int getAlignmentStart() {
+        return pos;
+    }
+
+    /**
+     * 0-based exclusive alignment end. Decodes the CIGAR on first call.
+     */
+    public int getAlignmentEnd() {
+        if(alignmentEnd < 0) {
+            int length = 0;
+            int offset = getCigarOffset();
+            for(int i = 0; i < cigarLength; i++) {
+                int op = getInt(record, offset+i*4);
+                if(((1 << (op & 0xf)) & CIGAR_REF_OPS) != 0) {
+                    length += op >>> 4;
+                }
+            }
+            alignmentEnd = pos + Math.max(1, length);
+        }
+        return alignmentEnd;
+    }
+
+    /**
+     * Returns true if any aligned block of the read overlaps the 0-based half
+     * open region. Deletions are part of a block, skipped regions (N) of a
+     * spliced read split blocks. Decodes the CIGAR.
+     */
+    public boolean overlapsAlignedBlocks(int start, int end) {
+        if(pos >= end || getAlignmentEnd() <= start) return false;
+        if(cigarLength == 0) return true;
+
+        int blockStart = pos;
+        int refPos = pos;
+        int offset = getCigarOffset();
+        for(int i = 0; i < cigarLength; i++) {
+            int op = getInt(record, offset+i*4);
+            int len = op >>> 4;
+            if((op & 0xf) == CIGAR_SKIP) {
+                if(refPos > blockStart && blockStart < end && refPos > start) return true;
+                refPos += len;
+                blockStart = refPos;
+                if(blockStart >= end) return false;
+            } else if(((1 << (op & 0xf)) & CIGAR_REF_OPS) != 0) {
+                refPos += len;
+            }
+        }
+        return refPos > blockStart && blockStart < end && refPos > start;
+    }
+
+    /**
+     * Returns true if the alignment starts or ends with a soft or hard clip
+     */
+    public boolean isClipped() {
+        if(cigarLength == 0) return false;
+        int offset = getCigarOffset();
+        int first = getInt(record, offset);
+        int last = getInt(record, offset+(cigarLength-1)*4);
+        return ((1 << (first & 0xf)) & CIGAR_CLIPS) != 0 || ((1 << (last & 0xf)) & CIGAR_CLIPS) != 0;
+    }
+
+    public int getMateReferenceIndex() {
+        return getInt(record, 20);
+    }
+
+    /**
+     * 0-based alignment start of the mate
+     */
+    public int getMateAlignmentStart() {
+        return getInt(record, 24);
+    }
+
+    /**
+     * Returns the value of a string (Z) tag, such as SA, or null if the
+     * record doesn't have the tag. Walks the tags of the record, so only
+     * use for records which may have the tag.
+     */
+    public String getStringTag(String tag) throws IOException {
+        char a = tag.charAt(0);
+        char b = tag.charAt(1);
+        int seqLength = getInt(record, 16);
+        int offset = getCigarOffset() + cigarLength*4 + (seqLength+1)/2 + seqLength;
+        while(offset+3 <= recordLength) {
+            boolean match = record[offset] == a && record[offset+1] == b;
+            char type = (char)record[offset+2];
+            offset += 3;
+            switch(type) {
+                case 'A': case 'c': case 'C':
+                    offset += 1;
+                    break;
+                case 's': case 'S':
+                    offset += 2;
+                    break;
+                case 'i': case 'I': case 'f':
+                    offset += 4;
+                    break;
+                case 'Z': case 'H':
+                    int end = offset;
+                    while(end < recordLength && record[end] != 0) end++;
+                    if(match && type == 'Z') return new String(record, offset, end-offset, "US-ASCII");
+                    offset = end+1;
+                    break;
+                case 'B':
+                    char subtype = (char)record[offset];
+                    int count = getInt(record, offset+1);
+                    int size = subtype == 'c' || subtype == 'C' ? 1 : (subtype == 's' || subtype == 'S' ? 2 : 4);
+                    offset += 5 + count*size;
+                    break;
+                default:
+                    throw new IOException("Invalid BAM tag type: "+type);
+            }
+        }
+        return null;
+    }
+
+    public int getMappingQuality() {
+        return mapq;
+    }
+
+    public int getFlag() {
+        return flag;
+    }
+
+    public boolean getReadUnmappedFlag() {
+        return (flag & FLAG_UNMAPPED) != 0;
+    }
+
+    public boolean getMateUnmappedFlag() {
+        return (flag & FLAG_MATE_UNMAPPED) != 0;
+    }
+
+    protected int getCigarOffset() {
+        return 32 + readNameLength;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void ensureCapacity(int size) {
+        if(record.length < size) {
+            record = new byte[Math.max(size, record.length*2)];
+        }
+    }
+
+    private boolean readFully(byte[] buf, int len) throws IOException {
+        int read = 0;
+        while(read < len) {
+            int n = in.read(buf, read, len-read);
+            if(n < 0) {
+                if(read == 0) return false;
+                throw new EOFException("Unexpected end of BAM file");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private void skip(int len) throws IOException {
+        ensureCapacity(Math.min(len, 65536));
+        while(len > 0) {
+            int n = Math.min(len, record.length);
+            if(!readFully(record, n)) throw new EOFException("Unexpected end of BAM header");
+            len -= n;
+        }
+    }
+
+    private int readInt() throws IOException {
+        if(!readFully(intBuffer, 4)) throw new EOFException("Unexpected end of BAM header");
+        return getInt(intBuffer, 0);
+    }
+
+    protected static int getInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | ((buf[offset+1] & 0xff) << 8)
+               | ((buf[offset+2] & 0xff) << 16) | ((buf[offset+3] & 0xff) << 24);
+    }
+
+    protected static int getShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | ((buf[offset+1] & 0xff) << 8);
+    }
+}
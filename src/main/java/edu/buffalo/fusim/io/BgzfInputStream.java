@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.InputStream;
+
+/**
+ * BGZF input stream with positions given as virtual file offsets (the
+ * address of the compressed block shifted left 16 bits, or'ed with the
+ * offset in the uncompressed block), as used by the BAM index.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public abstract class BgzfInputStream extends InputStream {
+    /**
+     * Returns the virtual file offset of the next byte to be read
+     */
+    public abstract long getFilePointer();
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import cern.colt.list.LongArrayList;
+
+/**
+ * OutputStream which writes BGZF (blocked gzip) compressed data. Blocks are
+ * deflated concurrently on a pool of threads and written out in order. The
+ * compressed/uncompressed offset of every block is recorded so a bgzip
+ * compatible .gzi index can be written when the stream is closed.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BgzfOutputStream extends OutputStream {
+    /**
+     * Maximum number of uncompressed bytes per block. Same value used by
+     * bgzip so a block will always fit in 64k even if the data does not
+     * compress.
+     */
+    public static final int MAX_BLOCK_INPUT = 0xff00;
+    public static final int MAX_BLOCK_SIZE = 0x10000;
+
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private static final byte[] EOF_BLOCK = new byte[]{
+        0x1f, (byte)0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00,
+        0x00, (byte)0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00,
+        0x00, 0x00, 0x00, 0x00
+    };
+
+    private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private OutputStream out;
+    private File gziFile;
+    private ExecutorService pool;
+    private LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+    private int maxPending;
+
+    private byte[] buffer = new byte[MAX_BLOCK_INPUT];
+    private int bufferLength = 0;
+    private long compressedOffset = 0;
+    private long uncompressedOffset = 0;
+    private LongArrayList index = new LongArrayList();
+    private boolean closed = false;
+
+    public BgzfOutputStream(OutputStream out) {
+        this(out, 1, null);
+    }
+
+    /**
+     * @param out stream to write compressed blocks to
+     * @param threads number of threads to use for deflating blocks
+     * @param gziFile optional .gzi index file written on close (may be null)
+     */
+    public BgzfOutputStream(OutputStream out, int threads, File gziFile) {
+        this.out = out;
+        this.gziFile = gziFile;
+        if(threads > 1) {
+            this.pool = Executors.newFixedThreadPool(threads);
+            this.maxPending = threads*4;
+        }
+    }
+
+    public void write(int b) throws IOException {
+        if(bufferLength == buffer.length) flushBlock();
+        buffer[bufferLength++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(bufferLength == buffer.length) flushBlock();
+            int n = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, n);
+            bufferLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Total number of uncompressed bytes written to this stream
+     */
+    public long getUncompressedOffset() {
+        return uncompressedOffset + bufferLength;
+    }
+
+    /**
+     * Compresses any buffered data into a block. Note this forces a block
+     * boundary, calling it often will hurt the compression ratio.
+     */
+    public void flush() throws IOException {
+        if(bufferLength > 0) flushBlock();
+        drain(0);
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+
+        try {
+            if(bufferLength > 0) flushBlock();
+            drain(0);
+            out.write(EOF_BLOCK);
+            out.close();
+        } finally {
+            if(pool != null) pool.shutdown();
+        }
+
+        if(gziFile != null) writeIndex();
+    }
+
+    private void flushBlock() throws IOException {
+        final byte[] data = buffer;
+        final int length = bufferLength;
+        final long start = uncompressedOffset;
+
+        buffer = new byte[MAX_BLOCK_INPUT];
+        bufferLength = 0;
+        uncompressedOffset += length;
+
+        if(pool == null) {
+            writeBlock(deflate(data, length, start));
+            return;
+        }
+
+        pending.add(pool.submit(new Callable<Block>() {
+            public Block call() throws Exception {
+                return deflate(data, length, start);
+            }
+        }));
+        drain(maxPending);
+    }
+
+    private void drain(int max) throws IOException {
+        while(pending.size() > max) {
+            Future<Block> f = pending.removeFirst();
+            try {
+                writeBlock(f.get());
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted while compressing BGZF block");
+            } catch(ExecutionException e) {
+                IOException ioe = new IOException("Failed to compress BGZF block");
+                ioe.initCause(e.getCause());
+                throw ioe;
+            }
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException {
+        if(block.uncompressedStart > 0) {
+            index.add(compressedOffset);
+            index.add(block.uncompressedStart);
+        }
+        out.write(block.data, 0, block.length);
+        compressedOffset += block.length;
+    }
+
+    private static Block deflate(byte[] data, int length, long start) {
+        byte[] block = new byte[MAX_BLOCK_SIZE];
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int clen = deflater.deflate(block, HEADER_SIZE, block.length - HEADER_SIZE - FOOTER_SIZE);
+
+        if(!deflater.finished()) {
+            // Data did not compress, store it instead
+            Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+            store.setInput(data, 0, length);
+            store.finish();
+            clen = store.deflate(block, HEADER_SIZE, block.length - HEADER_SIZE - FOOTER_SIZE);
+            store.end();
+        }
+
+        int bsize = HEADER_SIZE + clen + FOOTER_SIZE;
+
+        // gzip header with the BC extra subfield
+        block[0] = 0x1f;
+        block[1] = (byte)0x8b;
+        block[2] = 0x08;
+        block[3] = 0x04;
+        block[9] = (byte)0xff;
+        block[10] = 0x06;
+        block[12] = 0x42;
+        block[13] = 0x43;
+        block[14] = 0x02;
+        putShort(block, 16, bsize - 1);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        putInt(block, HEADER_SIZE + clen, (int)crc.getValue());
+        putInt(block, HEADER_SIZE + clen + 4, length);
+
+        Block b = new Block();
+        b.data = block;
+        b.length = bsize;
+        b.uncompressedStart = start;
+        return b;
+    }
+
+    private void writeIndex() throws IOException {
+        DataOutputStream gzi = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(gziFile)));
+        try {
+            writeLong(gzi, index.size()/2);
+            for(int i = 0; i < index.size(); i++) {
+                writeLong(gzi, index.get(i));
+            }
+        } finally {
+            gzi.close();
+        }
+    }
+
+    private static void writeLong(DataOutputStream out, long v) throws IOException {
+        out.writeLong(Long.reverseBytes(v));
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte)v;
+        b[off+1] = (byte)(v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte)v;
+        b[off+1] = (byte)(v >>> 8);
+        b[off+2] = (byte)(v >>> 16);
+        b[off+3] = (byte)(v >>> 24);
+    }
+
+    private static class Block {
+        byte[] data;
+        int length;
+        long uncompressedStart;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sequential BGZF input stream over any input stream, such as the output of
+ * another process. Blocks are inflated one at a time as they are read. The
+ * stream can't seek but still keeps track of virtual file offsets, counting
+ * compressed bytes from the start of the stream.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BgzfStreamInputStream extends BgzfInputStream {
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private InputStream in;
+    private Inflater inflater = new Inflater(true);
+    private byte[] header = new byte[HEADER_SIZE];
+    private byte[] compressed = new byte[65536];
+    private byte[] data = new byte[65536];
+    private int length = 0;
+    private int offset = 0;
+    private long address = 0;
+    private long nextAddress = 0;
+    private boolean eof = false;
+
+    public BgzfStreamInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    public long getFilePointer() {
+        if(offset >= length) return nextAddress << 16;
+        return (address << 16) | offset;
+    }
+
+    public int read() throws IOException {
+        if(!ensureData()) return -1;
+        return data[offset++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+
+        int total = 0;
+        while(len > 0) {
+            if(!ensureData()) break;
+            int n = Math.min(len, length-offset);
+            System.arraycopy(data, offset, b, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean ensureData() throws IOException {
+        while(offset >= length) {
+            if(eof || !nextBlock()) {
+                eof = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read and inflate the next block. Returns false at the end of the stream.
+     */
+    private boolean nextBlock() throws IOException {
+        if(!readFully(header, 0, HEADER_SIZE, true)) return false;
+        if((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 0x04) == 0
+           || header[12] != 'B' || header[13] != 'C') {
+            throw new IOException("Invalid BGZF block header at "+nextAddress);
+        }
+        int blockLength = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+        int remaining = blockLength-HEADER_SIZE;
+        if(remaining < FOOTER_SIZE) {
+            throw new IOException("Invalid BGZF block size at "+nextAddress);
+        }
+        readFully(compressed, 0, remaining, false);
+
+        int n = remaining;
+        int size = (compressed[n-4] & 0xff) | ((compressed[n-3] & 0xff) << 8)
+                   | ((compressed[n-2] & 0xff) << 16) | ((compressed[n-1] & 0xff) << 24);
+        if(size < 0 || size > data.length) {
+            throw new IOException("Invalid BGZF block size at "+nextAddress);
+        }
+
+        if(size > 0) {
+            inflater.reset();
+            inflater.setInput(compressed, 0, n - FOOTER_SIZE);
+            try {
+                int read = 0;
+                while(read < size) {
+                    int k = inflater.inflate(data, read, size-read);
+                    if(k == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    read += k;
+                }
+                if(read != size) throw new IOException("Corrupt BGZF block, expected "+size+" bytes but got "+read);
+            } catch(DataFormatException e) {
+                IOException ioe = new IOException("Corrupt BGZF block");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+
+        address = nextAddress;
+        nextAddress += blockLength;
+        length = size;
+        offset = 0;
+        return true;
+    }
+
+    private boolean readFully(byte[] buf, int off, int len, boolean eofOk) throws IOException {
+        int read = 0;
+        while(read < len) {
+            int k = in.read(buf, off+read, len-read);
+            if(k < 0) {
+                if(read == 0 && eofOk) return false;
+                throw new EOFException("Truncated BGZF block at "+nextAddress);
+            }
+            read += k;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered UTF-8 text writer on top of a channel. Characters and numbers are
+ * encoded straight into a single reusable buffer which is drained to the
+ * channel when full, so writing records creates no intermediate Strings,
+ * boxed numbers or encoder garbage.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ChannelWriter {
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private static final byte[] MIN_INT = "-2147483648".getBytes();
+
+    private WritableByteChannel channel;
+    private OutputStream stream;
+    private ByteBuffer buffer;
+    private byte[] digits = new byte[20];
+    private long position = 0;
+
+    /**
+     * Write to the stream. File streams are written through their channel,
+     * anything else through a channel adapter.
+     */
+    public ChannelWriter(OutputStream out) {
+        this.stream = out;
+        this.channel = out instanceof FileOutputStream ? ((FileOutputStream)out).getChannel() : Channels.newChannel(out);
+        this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Number of bytes written so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public ChannelWriter write(byte b) throws IOException {
+        if(!buffer.hasRemaining()) drain();
+        buffer.put(b);
+        position++;
+        return this;
+    }
+
+    public ChannelWriter write(char c) throws IOException {
+        if(c < 0x80) return write((byte)c);
+        return write(String.valueOf(c));
+    }
+
+    public ChannelWriter write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(!buffer.hasRemaining()) drain();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            position += n;
+        }
+        return this;
+    }
+
+    public ChannelWriter write(CharSequence s) throws IOException {
+        return write(s, 0, s.length());
+    }
+
+    /**
+     * Write the characters [start, end) of the sequence encoded as UTF-8
+     */
+    public ChannelWriter write(CharSequence s, int start, int end) throws IOException {
+        for(int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                if(!buffer.hasRemaining()) drain();
+                buffer.put((byte)c);
+                position++;
+            } else if(c < 0x800) {
+                write((byte)(0xc0 | (c >> 6)));
+                write((byte)(0x80 | (c & 0x3f)));
+            } else if(Character.isHighSurrogate(c) && i+1 < end && Character.isLowSurrogate(s.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                write((byte)(0xf0 | (cp >> 18)));
+                write((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                write((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                write((byte)(0x80 | (cp & 0x3f)));
+            } else {
+                write((byte)(0xe0 | (c >> 12)));
+                write((byte)(0x80 | ((c >> 6) & 0x3f)));
+                write((byte)(0x80 | (c & 0x3f)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write the decimal value of the number
+     */
+    public ChannelWriter write(int n) throws IOException {
+        if(n == Integer.MIN_VALUE) return write(MIN_INT, 0, MIN_INT.length);
+        return write((long)n);
+    }
+
+    /**
+     * Write the decimal value of the number
+     */
+    public ChannelWriter write(long n) throws IOException {
+        if(n == Long.MIN_VALUE) return write(String.valueOf(n));
+
+        boolean negative = n < 0;
+        if(negative) n = -n;
+        int i = digits.length;
+        do {
+            digits[--i] = (byte)('0' + (n % 10));
+            n /= 10;
+        } while(n != 0);
+        if(negative) digits[--i] = '-';
+        return write(digits, i, digits.length-i);
+    }
+
+    /**
+     * Write the numbers separated by sep
+     */
+    public ChannelWriter write(int[] values, char sep) throws IOException {
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0) write(sep);
+            write(values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Write everything buffered to the channel (and flush the underlying
+     * stream if there is one)
+     */
+    public void flush() throws IOException {
+        drain();
+        if(stream != null) stream.flush();
+    }
+
+    public void close() throws IOException {
+        drain();
+        channel.close();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
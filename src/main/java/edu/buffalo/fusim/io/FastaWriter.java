@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes FASTA records wrapping sequence lines at a fixed width. Optionally
+ * writes a samtools compatible .fai index in the same pass. Offsets in the
+ * index are in uncompressed bytes so this also works when the underlying
+ * stream is a BgzfOutputStream. Records are encoded straight into the
+ * buffer of a ChannelWriter.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class FastaWriter {
+    private ChannelWriter out;
+    private int lineWidth;
+    private ChannelWriter fai;
+
+    /**
+     * @param out stream to write FASTA records to
+     * @param lineWidth number of bases per line, 0 writes each sequence on a
+     *                  single line
+     * @param faiFile optional .fai index file (may be null)
+     */
+    public FastaWriter(OutputStream out, int lineWidth, File faiFile) throws IOException {
+        this.out = new ChannelWriter(out);
+        this.lineWidth = lineWidth;
+        if(faiFile != null) {
+            this.fai = new ChannelWriter(new FileOutputStream(faiFile));
+        }
+    }
+
+    public void write(CharSequence header, CharSequence seq) throws IOException {
+        out.write('>');
+        out.write(header);
+        out.write('\n');
+
+        int len = seq.length();
+        int width = lineWidth > 0 ? lineWidth : len;
+        if(fai != null) {
+            fai.write(header, 0, nameLength(header));
+            fai.write('\t');
+            fai.write(len);
+            fai.write('\t');
+            fai.write(out.getPosition());
+            fai.write('\t');
+            fai.write(width);
+            fai.write('\t');
+            fai.write(width+1);
+            fai.write('\n');
+        }
+
+        int pos = 0;
+        while(pos < len) {
+            int n = Math.min(width, len - pos);
+            out.write(seq, pos, pos+n);
+            out.write('\n');
+            pos += n;
+        }
+        if(len == 0) {
+            out.write('\n');
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+        if(fai != null) fai.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+        if(fai != null) fai.close();
+    }
+
+    private static int nameLength(CharSequence header) {
+        for(int i = 0; i < header.length(); i++) {
+            if(Character.isWhitespace(header.charAt(i))) return i;
+        }
+        return header.length();
+    }
+}
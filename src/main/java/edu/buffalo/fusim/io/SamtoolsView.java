@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads CRAM files by running samtools view, which decodes the CRAM against
+ * the reference genome and writes uncompressed BAM to a pipe. The BAM can be
+ * read with a sequential BamRecordScanner. When restricted to the regions of
+ * a BED file samtools uses the CRAM index (.crai) to only decode the slices
+ * overlapping the regions.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class SamtoolsView {
+    public static final String DEFAULT_SAMTOOLS_BIN = "samtools";
+
+    private static final int MAX_ERROR_LENGTH = 4096;
+
+    public static boolean isCram(File file) {
+        return file.getName().toLowerCase().endsWith(".cram");
+    }
+
+    public static File getCramIndex(File cramFile) {
+        return new File(cramFile.getAbsolutePath() + ".crai");
+    }
+
+    /**
+     * Start decoding the CRAM file and return the BAM output stream
+     *
+     * @param samtoolsPath path to the samtools binary
+     * @param cramFile CRAM file to decode
+     * @param referenceFile FASTA reference genome the CRAM was written with
+     * @param regionsFile optional BED file of regions (may be null). Only
+     *                    reads overlapping the regions are output. Requires
+     *                    the CRAM index.
+     */
+    public static InputStream open(String samtoolsPath, File cramFile, File referenceFile, File regionsFile) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(samtoolsPath);
+        command.add("view");
+        command.add("-u");
+        command.add("-T");
+        command.add(referenceFile.getAbsolutePath());
+        if(regionsFile != null) {
+            command.add("-M");
+            command.add("-L");
+            command.add(regionsFile.getAbsolutePath());
+        }
+        command.add(cramFile.getAbsolutePath());
+
+        Process process = start(command);
+        return new ProcessInputStream(process, command);
+    }
+
+    /**
+     * Number of mapped reads in the CRAM file, summed over all references
+     * using samtools idxstats
+     */
+    public static long getMappedCount(String samtoolsPath, File cramFile) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(samtoolsPath);
+        command.add("idxstats");
+        command.add(cramFile.getAbsolutePath());
+
+        ProcessInputStream in = new ProcessInputStream(start(command), command);
+        try {
+            long mapped = 0;
+            for(String line : IOUtils.readLines(in, "US-ASCII")) {
+                String[] fields = line.split("\t");
+                if(fields.length < 4) continue;
+                try {
+                    mapped += Long.parseLong(fields[2].trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid samtools idxstats output: "+line);
+                }
+            }
+            return mapped;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Process start(List<String> command) throws IOException {
+        try {
+            return new ProcessBuilder(command).start();
+        } catch(IOException e) {
+            IOException ioe = new IOException("Failed to run samtools, is "+command.get(0)+" installed?");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Standard output of a process. Standard error is drained in the
+     * background and reported if the process exits with an error once all of
+     * its output is read.
+     */
+    private static class ProcessInputStream extends FilterInputStream {
+        private Process process;
+        private List<String> command;
+        private StringBuffer errors = new StringBuffer();
+        private Thread errorPump;
+        private boolean finished = false;
+
+        public ProcessInputStream(Process process, List<String> command) {
+            super(new BufferedInputStream(process.getInputStream(), 65536));
+            this.process = process;
+            this.command = command;
+            this.errorPump = new Thread() {
+                public void run() {
+                    InputStream err = ProcessInputStream.this.process.getErrorStream();
+                    byte[] buf = new byte[1024];
+                    try {
+                        int n;
+                        while((n = err.read(buf)) >= 0) {
+                            if(errors.length() < MAX_ERROR_LENGTH) errors.append(new String(buf, 0, n, "US-ASCII"));
+                        }
+                    } catch(IOException e) {
+                    }
+                }
+            };
+            errorPump.setDaemon(true);
+            errorPump.start();
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b < 0) checkExit();
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n < 0) checkExit();
+            return n;
+        }
+
+        private void checkExit() throws IOException {
+            if(finished) return;
+            finished = true;
+            int status;
+            try {
+                status = process.waitFor();
+                errorPump.join();
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted while waiting for samtools");
+            }
+            if(status != 0) {
+                throw new IOException("samtools "+command.get(1)+" failed with exit status "+status+": "+errors.toString().trim());
+            }
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // Stop samtools if the output wasn't read to the end
+                if(!finished) process.destroy();
+                finished = true;
+            }
+        }
+    }
+}
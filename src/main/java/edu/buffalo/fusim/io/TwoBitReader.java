@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader for UCSC .2bit genome files. The packed bases of each sequence are
+ * memory mapped the first time the sequence is read and unpacked into a
+ * reusable buffer using a lookup table of the four bases held in each byte.
+ * N blocks are returned as N and soft masked blocks in lower case, the same
+ * as a FASTA file converted with twoBitToFa.
+ *
+ * Usage:
+ *
+ * <pre>
+ *   TwoBitReader reader = new TwoBitReader(new File("hg19.2bit"));
+ *   int n = reader.read("chr1", 1000, 2000);
+ *   byte[] bases = reader.getBuffer();
+ * </pre>
+ *
+ * Not thread safe, use one reader per thread. The mapped pages are shared.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class TwoBitReader {
+    private static final int SIGNATURE = 0x1A412743;
+    private static final byte[] BASES = new byte[]{'T', 'C', 'A', 'G'};
+
+    /**
+     * Four bases for each possible packed byte
+     */
+    private static final byte[] DECODE = new byte[256*4];
+    static {
+        for(int b = 0; b < 256; b++) {
+            for(int k = 0; k < 4; k++) {
+                DECODE[b*4+k] = BASES[(b >> (6-k*2)) & 0x3];
+            }
+        }
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ByteOrder order;
+    private Map<String, Long> offsets = new HashMap<String, Long>();
+    private Map<String, Sequence> sequences = new HashMap<String, Sequence>();
+    private byte[] buffer = new byte[1024];
+
+    public TwoBitReader(File twoBitFile) throws IOException {
+        this.file = new RandomAccessFile(twoBitFile, "r");
+        this.channel = file.getChannel();
+
+        ByteBuffer header = read(0, 16, ByteOrder.LITTLE_ENDIAN);
+        if(header.getInt(0) == SIGNATURE) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if(Integer.reverseBytes(header.getInt(0)) == SIGNATURE) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Invalid 2bit file: "+twoBitFile.getAbsolutePath());
+        }
+        header.order(order);
+
+        // Version 1 files use 64 bit offsets
+        int version = header.getInt(4);
+        if(version != 0 && version != 1) {
+            throw new IOException("Unsupported 2bit file version: "+version);
+        }
+        int offsetSize = version == 0 ? 4 : 8;
+        int count = header.getInt(8);
+
+        long pos = 16;
+        for(int i = 0; i < count; i++) {
+            int nameSize = read(pos, 1, order).get(0) & 0xff;
+            ByteBuffer entry = read(pos+1, nameSize+offsetSize, order);
+            String name = new String(entry.array(), 0, nameSize, "US-ASCII");
+            long offset = offsetSize == 4 ? entry.getInt(nameSize) & 0xffffffffL : entry.getLong(nameSize);
+            offsets.put(name, offset);
+            pos += 1+nameSize+offsetSize;
+        }
+    }
+
+    /**
+     * Returns true if the sequence is in the file
+     */
+    public boolean hasSequence(String name) {
+        return offsets.containsKey(name);
+    }
+
+    /**
+     * Returns the length of the sequence
+     */
+    public int getLength(String name) throws IOException {
+        return getSequence(name).length;
+    }
+
+    /**
+     * Buffer holding the bases of the last read. Reused by the next read.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Unpack the bases of the 0-based half open region into the buffer.
+     * Returns the number of bases read.
+     */
+    public int read(String name, int start, int end) throws IOException {
+        Sequence seq = getSequence(name);
+        if(start < 0 || end > seq.length || start > end) {
+            throw new IllegalArgumentException("Invalid region "+name+":"+start+"-"+end+" (length "+seq.length+")");
+        }
+
+        int n = end-start;
+        if(buffer.length < n) {
+            buffer = new byte[Math.max(n, buffer.length*2)];
+        }
+        if(n == 0) return 0;
+
+        unpack(seq.dna, start, end, buffer);
+
+        // N blocks
+        int i = firstBlock(seq.nStarts, seq.nSizes, start);
+        for(; i < seq.nStarts.length && seq.nStarts[i] < end; i++) {
+            int from = Math.max(seq.nStarts[i], start);
+            int to = Math.min(seq.nStarts[i]+seq.nSizes[i], end);
+            for(int j = from; j < to; j++) {
+                buffer[j-start] = 'N';
+            }
+        }
+
+        // Soft masked blocks are lower case
+        i = firstBlock(seq.maskStarts, seq.maskSizes, start);
+        for(; i < seq.maskStarts.length && seq.maskStarts[i] < end; i++) {
+            int from = Math.max(seq.maskStarts[i], start);
+            int to = Math.min(seq.maskStarts[i]+seq.maskSizes[i], end);
+            for(int j = from; j < to; j++) {
+                buffer[j-start] |= 0x20;
+            }
+        }
+
+        return n;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static void unpack(MappedByteBuffer dna, int start, int end, byte[] buf) {
+        int first = start >> 2;
+        int last = (end-1) >> 2;
+        int j = 0;
+
+        if(first == last) {
+            int b = (dna.get(first) & 0xff)*4;
+            for(int k = start & 3; k <= ((end-1) & 3); k++) {
+                buf[j++] = DECODE[b+k];
+            }
+            return;
+        }
+
+        int b = (dna.get(first) & 0xff)*4;
+        for(int k = start & 3; k < 4; k++) {
+            buf[j++] = DECODE[b+k];
+        }
+        for(int p = first+1; p < last; p++) {
+            b = (dna.get(p) & 0xff)*4;
+            buf[j]   = DECODE[b];
+            buf[j+1] = DECODE[b+1];
+            buf[j+2] = DECODE[b+2];
+            buf[j+3] = DECODE[b+3];
+            j += 4;
+        }
+        b = (dna.get(last) & 0xff)*4;
+        for(int k = 0; k <= ((end-1) & 3); k++) {
+            buf[j++] = DECODE[b+k];
+        }
+    }
+
+    /**
+     * Index of the first block ending after pos
+     */
+    private static int firstBlock(int[] starts, int[] sizes, int pos) {
+        int lo = 0;
+        int hi = starts.length;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(starts[mid] <= pos) {
+                lo = mid+1;
+            } else {
+                hi = mid;
+            }
+        }
+        // Blocks don't overlap so only the block before may contain pos
+        if(lo > 0 && starts[lo-1]+sizes[lo-1] > pos) lo--;
+        return lo;
+    }
+
+    private Sequence getSequence(String name) throws IOException {
+        Sequence seq = sequences.get(name);
+        if(seq != null) return seq;
+
+        Long offset = offsets.get(name);
+        if(offset == null) {
+            throw new IllegalArgumentException("Sequence not found in 2bit file: "+name);
+        }
+
+        long pos = offset;
+        seq = new Sequence();
+        ByteBuffer buf = read(pos, 8, order);
+        seq.length = buf.getInt(0);
+        int nBlockCount = buf.getInt(4);
+        pos += 8;
+
+        seq.nStarts = readInts(pos, nBlockCount);
+        pos += 4L*nBlockCount;
+        seq.nSizes = readInts(pos, nBlockCount);
+        pos += 4L*nBlockCount;
+
+        int maskBlockCount = read(pos, 4, order).getInt(0);
+        pos += 4;
+        seq.maskStarts = readInts(pos, maskBlockCount);
+        pos += 4L*maskBlockCount;
+        seq.maskSizes = readInts(pos, maskBlockCount);
+        pos += 4L*maskBlockCount;
+
+        // Reserved word
+        pos += 4;
+
+        seq.dna = channel.map(FileChannel.MapMode.READ_ONLY, pos, (seq.length+3)/4);
+        sequences.put(name, seq);
+        return seq;
+    }
+
+    private int[] readInts(long pos, int count) throws IOException {
+        ByteBuffer buf = read(pos, 4*count, order);
+        int[] values = new int[count];
+        for(int i = 0; i < count; i++) {
+            values[i] = buf.getInt(i*4);
+        }
+        return values;
+    }
+
+    private ByteBuffer read(long pos, int length, ByteOrder byteOrder) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.order(byteOrder);
+        while(buf.hasRemaining()) {
+            int n = channel.read(buf, pos+buf.position());
+            if(n < 0) throw new EOFException("Unexpected end of 2bit file");
+        }
+        return buf;
+    }
+
+    private static class Sequence {
+        public int length;
+        public int[] nStarts;
+        public int[] nSizes;
+        public int[] maskStarts;
+        public int[] maskSizes;
+        public MappedByteBuffer dna;
+    }
+}
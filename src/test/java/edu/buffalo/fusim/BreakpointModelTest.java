@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.buffalo.fusim.gtf.GTFParseException;
+
+/**
+ * Checks the breaks drawn by each breakpoint model with a fixed seed against
+ * the distribution of the model.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BreakpointModelTest extends TestCase {
+    private static final int DRAWS = 50000;
+    private static final double TOLERANCE = 0.01;
+    private static final int[] LENGTHS = new int[]{100, 200, 300, 400, 500};
+
+    private TranscriptRecord forward;
+    private TranscriptRecord reverse;
+
+    protected void setUp() throws Exception {
+        forward = newTranscript("GENE1", "NM_1", "+", LENGTHS);
+        reverse = newTranscript("GENE2", "NM_2", "-", new int[]{500, 400, 300, 200, 100});
+    }
+
+    public void testUniform() {
+        assertBreaks(new BreakpointModel(BreakpointDistribution.UNIFORM), new double[]{1, 1, 1, 1, 1});
+    }
+
+    public void testFivePrime() {
+        assertBreaks(new BreakpointModel(BreakpointDistribution.FIVE_PRIME), new double[]{5, 4, 3, 2, 1});
+    }
+
+    public void testThreePrime() {
+        assertBreaks(new BreakpointModel(BreakpointDistribution.THREE_PRIME), new double[]{1, 2, 3, 4, 5});
+    }
+
+    public void testExonLength() {
+        // The reverse strand transcript has the same lengths in transcript order
+        assertBreaks(new BreakpointModel(BreakpointDistribution.EXON_LENGTH), new double[]{100, 200, 300, 400, 500});
+    }
+
+    public void testHotspot() throws IOException, GTFParseException {
+        File hotspots = File.createTempFile("fusim", "hotspots");
+        try {
+            List<String> lines = new ArrayList<String>();
+            lines.add("# id\texon\tweight");
+            lines.add("NM_1\t2\t3");
+            lines.add("NM_1\t4");
+            lines.add("GENE2\t2\t1");
+            lines.add("GENE2\t2\t1");
+            lines.add("GENE2\t5\t6");
+            lines.add("GENE4\t1\t0");
+            FileUtils.writeLines(hotspots, "UTF-8", lines);
+            BreakpointModel model = new BreakpointModel(hotspots);
+            assertEquals(BreakpointDistribution.HOTSPOT, model.getDistribution());
+
+            // By transcript id, by gene id (weights add up), unlisted and all zero are uniform
+            Random rgen = new Random(1);
+            assertDistribution(sampleBreaks(model, forward, rgen), new double[]{0, 3, 0, 1, 0});
+            assertDistribution(sampleBreaks(model, reverse, rgen), new double[]{0, 2, 0, 0, 6});
+            assertDistribution(sampleBreaks(model, newTranscript("GENE3", "NM_3", "+", LENGTHS), rgen), new double[]{1, 1, 1, 1, 1});
+            assertDistribution(sampleBreaks(model, newTranscript("GENE4", "NM_4", "+", LENGTHS), rgen), new double[]{1, 1, 1, 1, 1});
+        } finally {
+            hotspots.delete();
+        }
+    }
+
+    public void testInvalidHotspots() throws IOException {
+        File hotspots = File.createTempFile("fusim", "hotspots");
+        try {
+            FileUtils.writeStringToFile(hotspots, "NM_1\t0\t1\n", "UTF-8");
+            try {
+                new BreakpointModel(hotspots);
+                fail("Expected exon 0 to be rejected");
+            } catch(IOException e) {
+                assertTrue(e.getMessage().contains("line 1"));
+            }
+        } finally {
+            hotspots.delete();
+        }
+    }
+
+    public void testExonRuns() {
+        BreakpointModel model = new BreakpointModel(BreakpointDistribution.UNIFORM);
+        Random rgen = new Random(2);
+        for(int i = 0; i < 1000; i++) {
+            for(TranscriptRecord tr : new TranscriptRecord[]{forward, reverse}) {
+                boolean keepFirstHalf = i % 2 == 0;
+                int[] exons = model.sampleExonBreak(tr, keepFirstHalf, false, rgen);
+                assertTrue(exons.length >= 1 && exons.length <= LENGTHS.length);
+                for(int k = 1; k < exons.length; k++) {
+                    assertEquals(exons[k-1]+1, exons[k]);
+                }
+
+                // The 5' side holds the first exon in transcript order, the 3' side the last
+                boolean holdsFirstGenomic = exons[0] == 0;
+                boolean holdsLastGenomic = exons[exons.length-1] == LENGTHS.length-1;
+                if(tr == forward) {
+                    assertTrue(keepFirstHalf ? holdsFirstGenomic : holdsLastGenomic);
+                } else {
+                    assertTrue(keepFirstHalf ? holdsLastGenomic : holdsFirstGenomic);
+                }
+            }
+        }
+    }
+
+    public void testBoundryBreaks() throws GTFParseException {
+        // Frame preserving boundaries after 99, 300 and 600 bases
+        TranscriptRecord tr = newTranscript("GENE5", "NM_5", "+", new int[]{99, 201, 100, 200, 150});
+        BreakpointModel model = new BreakpointModel(BreakpointDistribution.THREE_PRIME);
+        Random rgen = new Random(3);
+
+        // The weight of a boundary is the weight of the last exon kept
+        double[] counts = new double[LENGTHS.length];
+        for(int i = 0; i < DRAWS; i++) {
+            int[] exons = model.sampleExonBoundryBreak(tr, false, rgen);
+            for(int k = 0; k < exons.length; k++) {
+                assertEquals(k, exons[k]);
+            }
+            counts[exons.length-1]++;
+        }
+        assertDistribution(counts, new double[]{1, 2, 0, 4, 0});
+    }
+
+    public void testTrim() {
+        Random rgen = new Random(4);
+        double[] counts = new double[4];
+        for(int i = 0; i < DRAWS; i++) {
+            int trim = BreakpointModel.sampleTrim(new int[]{1000, 1010}, rgen);
+            assertEquals(0, trim % 3);
+            assertTrue(trim < 10);
+            counts[trim/3]++;
+        }
+        assertDistribution(counts, new double[]{1, 1, 1, 1});
+    }
+
+    private void assertBreaks(BreakpointModel model, double[] weights) {
+        Random rgen = new Random(5);
+        assertDistribution(sampleBreaks(model, forward, rgen), weights);
+        assertDistribution(sampleBreaks(model, reverse, rgen), weights);
+    }
+
+    /**
+     * Number of draws breaking at each exon, in transcript order
+     */
+    private static double[] sampleBreaks(BreakpointModel model, TranscriptRecord tr, Random rgen) {
+        double[] counts = new double[tr.getExonCount()];
+        for(int i = 0; i < DRAWS; i++) {
+            counts[model.sampleExonBreak(tr, true, false, rgen).length-1]++;
+        }
+        return counts;
+    }
+
+    private static void assertDistribution(double[] counts, double[] weights) {
+        double total = 0;
+        for(double w : weights) {
+            total += w;
+        }
+        for(int k = 0; k < weights.length; k++) {
+            double expected = weights[k]/total;
+            double observed = counts[k]/DRAWS;
+            assertEquals("exon "+k, expected, observed, TOLERANCE);
+        }
+    }
+
+    private static TranscriptRecord newTranscript(String gene, String id, String strand, int[] lengths) throws GTFParseException {
+        StringBuilder starts = new StringBuilder();
+        StringBuilder ends = new StringBuilder();
+        int pos = 1000;
+        for(int length : lengths) {
+            starts.append(pos).append(',');
+            ends.append(pos+length).append(',');
+            pos += length+1000;
+        }
+        int end = pos-1000;
+        return TranscriptRecord.fromRefFlat(new String[]{gene, id, "chr1", strand, "1000", String.valueOf(end), "1000",
+                                            String.valueOf(end), String.valueOf(lengths.length), starts.toString(), ends.toString()});
+    }
+}
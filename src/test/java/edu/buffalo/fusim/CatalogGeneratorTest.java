@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Replays small fusion catalogs against a gene model of three transcripts
+ * and checks the partners and breaks resolved for each row.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class CatalogGeneratorTest extends FusimTestBase {
+    private File catalog;
+    private StaticSelector selector;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        catalog = new File(dir, "catalog.txt");
+
+        List<String> lines = new ArrayList<String>();
+        lines.add("GENEA\tNM_A1\tchr1\t+\t1000\t4400\t1000\t4400\t4\t1000,2000,3000,4000,\t1100,2200,3300,4400,");
+        lines.add("GENEA\tNM_A2\tchr1\t+\t1000\t3300\t1000\t3300\t2\t1000,3000,\t1100,3300,");
+        lines.add("GENEB\tNM_B1\tchr2\t-\t1000\t5500\t1000\t5500\t5\t1000,2000,3000,4000,5000,\t1100,2200,3300,4400,5500,");
+        File geneModel = new File(dir, "refFlat.txt");
+        FileUtils.writeLines(geneModel, "UTF-8", lines);
+
+        selector = new StaticSelector();
+        selector.setGeneModelFile(geneModel);
+        selector.setGeneModelParser(new UCSCRefFlatParser());
+    }
+
+    public void testReplay() throws IOException {
+        List<String> rows = new ArrayList<String>();
+        rows.add("#5' partner\t3' partner\t5' break\t3' break");
+        rows.add("GENEA\tGENEB");
+        rows.add("NM_A1\tNM_B1\t2\t3");
+        rows.add("NM_A1\tNM_B1\tchr1:2,150\tchr2:4010:-");
+        rows.add("NM_A1\tNM_X\t1\t1");
+        rows.add("NM_A1\tNM_B1\t9\t1");
+        rows.add("");
+        rows.add("GENEA\tGENEB\t.\t.");
+        rows.add("NM_A1\tNM_B1\tchr2:2150\tchr2:4010");
+        rows.add("GENEA\tNM_B1\t3\t1");
+        FileUtils.writeLines(catalog, "UTF-8", rows);
+
+        CatalogGenerator generator = newGenerator(9);
+        List<FusionGene> fusions = generator.generate(3, 2);
+        assertEquals(3, fusions.size());
+        assertFalse(generator.isDone());
+
+        // Random transcript of each gene, random breaks drawn later
+        assertEquals("GENEA", fusions.get(0).getGene(0).getGeneId());
+        assertEquals("NM_B1", fusions.get(0).getGene(1).getTranscriptId());
+        assertEquals(0, fusions.get(0).getBreaks().size());
+
+        // Exon numbers in transcript order, reverse strand indexes are genomic
+        assertBreaks(fusions.get(1), "NM_A1", new int[]{0, 1}, "NM_B1", new int[]{0, 1, 2});
+
+        // Positions snap to the nearest boundary: 2199 for the 5' partner,
+        // the end of the second exon in transcript order (4399) for the 3'
+        assertBreaks(fusions.get(2), "NM_A1", new int[]{0, 1}, "NM_B1", new int[]{0, 1, 2, 3});
+
+        // Unknown partners, exons and chromosomes are skipped
+        fusions = generator.generate(10, 2);
+        assertEquals(2, fusions.size());
+        assertTrue(generator.isDone());
+        assertEquals(0, fusions.get(0).getBreaks().size());
+
+        // Only the first transcript of the gene has a third exon
+        assertBreaks(fusions.get(1), "NM_A1", new int[]{0, 1, 2}, "NM_B1", new int[]{0, 1, 2, 3, 4});
+
+        assertEquals(0, generator.generate(10, 2).size());
+    }
+
+    public void testGeneTranscripts() throws IOException {
+        List<String> rows = new ArrayList<String>();
+        for(int i = 0; i < 4000; i++) {
+            rows.add("GENEA\tGENEB");
+        }
+        FileUtils.writeLines(catalog, "UTF-8", rows);
+
+        // Transcripts of a gene partner are picked uniformly
+        CatalogGenerator generator = newGenerator(10);
+        List<FusionGene> fusions = generator.generate(rows.size(), 2);
+        assertEquals(rows.size(), fusions.size());
+        int first = 0;
+        for(FusionGene f : fusions) {
+            if("NM_A1".equals(f.getGene(0).getTranscriptId())) first++;
+        }
+        assertTrue("NM_A1 picked "+first+" times", first > 1860 && first < 2140);
+    }
+
+    public void testUnpairedBreaks() throws IOException {
+        FileUtils.writeStringToFile(catalog, "NM_A1\tNM_B1\t2\n", "UTF-8");
+        try {
+            newGenerator(11).generate(1, 2);
+            fail("Expected a break for one partner to be rejected");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage().contains("line 1"));
+        }
+    }
+
+    public void testInvalidBreak() throws IOException {
+        FileUtils.writeStringToFile(catalog, "NM_A1\tNM_B1\tfirst\tlast\n", "UTF-8");
+        try {
+            newGenerator(12).generate(1, 2);
+            fail("Expected an invalid break to be rejected");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage().contains("invalid break"));
+        }
+    }
+
+    private CatalogGenerator newGenerator(long seed) {
+        CatalogGenerator generator = new CatalogGenerator(catalog, false);
+        generator.setGeneSelector(selector);
+        generator.setRandom(new Random(seed));
+        return generator;
+    }
+
+    private static void assertBreaks(FusionGene f, String id1, int[] exons1, String id2, int[] exons2) {
+        assertEquals(id1, f.getGene(0).getTranscriptId());
+        assertEquals(id2, f.getGene(1).getTranscriptId());
+        assertEquals(2, f.getBreaks().size());
+        assertEquals(Arrays.toString(exons1), Arrays.toString(f.getBreaks().get(0)));
+        assertEquals(Arrays.toString(exons2), Arrays.toString(f.getBreaks().get(1)));
+    }
+}
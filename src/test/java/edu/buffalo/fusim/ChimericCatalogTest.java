@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.buffalo.fusim.gtf.GTFParseException;
+import edu.buffalo.fusim.io.BamRecordScanner;
+import edu.buffalo.fusim.io.BamTestWriter;
+import edu.buffalo.fusim.io.BamTestWriter.Record;
+
+/**
+ * Adds discordant and split reads of a small BAM file, built here with
+ * BamTestWriter, to a catalog of five genes and checks the gene pairs
+ * supported by the reads.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ChimericCatalogTest extends FusimTestBase {
+    private static final String[] REFERENCES = new String[]{"chr1", "chr2", "chr3"};
+    private static final int[] REFERENCE_LENGTHS = new int[]{1000000, 500000, 100000};
+
+    private List<TranscriptRecord> model;
+    private File bam;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // GENEB is inside GENEA, GENED inside the long GENEC and GENEE has
+        // two overlapping transcripts
+        model = new ArrayList<TranscriptRecord>();
+        model.add(parse("GENEA\tNM_A1\tchr1\t+\t1000\t5000\t1000\t5000\t2\t1000,4000,\t2000,5000,"));
+        model.add(parse("GENEB\tNM_B1\tchr1\t+\t2000\t3000\t2000\t3000\t1\t2000,\t3000,"));
+        model.add(parse("GENEC\tNM_C1\tchr1\t-\t100000\t200000\t100000\t200000\t2\t100000,190000,\t110000,200000,"));
+        model.add(parse("GENED\tNM_D1\tchr1\t+\t110000\t120000\t110000\t120000\t1\t110000,\t120000,"));
+        model.add(parse("GENEE\tNM_E1\tchr2\t+\t5000\t9000\t5000\t9000\t2\t5000,8000,\t6000,9000,"));
+        model.add(parse("GENEE\tNM_E2\tchr2\t+\t5500\t6000\t5500\t6000\t1\t5500,\t6000,"));
+
+        List<Record> records = new ArrayList<Record>();
+
+        // Mate on another chromosome: GENEA-GENEE
+        records.add(newRecord(0, 1500, BamRecordScanner.FLAG_PAIRED, 1, 5700));
+
+        // Clipped with a supplementary alignment: GENEA-GENEE
+        Record r = newRecord(0, 1600, 0, 0, 1600);
+        r.cigar = new int[]{BamTestWriter.op(10, 4), BamTestWriter.op(40, 0)};
+        r.sa = "chr2,5601,+,10M40S,60,0;";
+        records.add(r);
+
+        // SA tag without clipping is ignored
+        r = newRecord(0, 1700, 0, 0, 1700);
+        r.sa = "chr2,5601,+,10M40S,60,0;";
+        records.add(r);
+
+        // In both GENEA and GENEB with the mate in GENEC past the end of
+        // GENED: GENEA-GENEC and GENEB-GENEC
+        records.add(newRecord(0, 2500, BamRecordScanner.FLAG_PAIRED, 0, 150000));
+
+        // Proper pair and unmapped mate are ignored
+        records.add(newRecord(0, 2600, BamRecordScanner.FLAG_PAIRED | BamRecordScanner.FLAG_PROPER_PAIR, 0, 150000));
+        records.add(newRecord(0, 2700, BamRecordScanner.FLAG_PAIRED | BamRecordScanner.FLAG_MATE_UNMAPPED, 1, 5700));
+
+        // Both ends in GENEA
+        records.add(newRecord(0, 3500, BamRecordScanner.FLAG_PAIRED, 0, 4500));
+
+        // Read or mate outside the genes
+        records.add(newRecord(0, 50000, BamRecordScanner.FLAG_PAIRED, 1, 5700));
+        records.add(newRecord(0, 150000, BamRecordScanner.FLAG_PAIRED, 2, 100));
+
+        // In both GENEC and GENED: GENEC-GENEE and GENED-GENEE
+        records.add(newRecord(0, 115000, BamRecordScanner.FLAG_PAIRED, 1, 7000));
+
+        bam = new File(dir, "test.bam");
+        BamTestWriter.write(bam, REFERENCES, REFERENCE_LENGTHS, records);
+    }
+
+    public void testSupport() throws IOException {
+        ChimericCatalog catalog = new ChimericCatalog(model, 1);
+        add(catalog, 0);
+
+        assertEquals(2, catalog.getSupport("GENEA", "GENEE"));
+        assertEquals(2, catalog.getSupport("GENEE", "GENEA"));
+        assertEquals(1, catalog.getSupport("GENEA", "GENEC"));
+        assertEquals(1, catalog.getSupport("GENEB", "GENEC"));
+        assertEquals(1, catalog.getSupport("GENEC", "GENEE"));
+        assertEquals(1, catalog.getSupport("GENED", "GENEE"));
+        assertEquals(0, catalog.getSupport("GENEA", "GENEB"));
+        assertEquals(0, catalog.getSupport("GENEC", "GENED"));
+        assertEquals(0, catalog.getSupport("GENEA", "GENEA"));
+        assertEquals(0, catalog.getSupport("GENEA", "GENEX"));
+        assertEquals(5, catalog.size());
+
+        assertTrue(catalog.isSupported(new FusionGene(model.get(5), model.get(0))));
+        assertFalse(catalog.isSupported(new FusionGene(model.get(1), model.get(4))));
+    }
+
+    public void testRecordsCountedOncePerFile() throws IOException {
+        ChimericCatalog catalog = new ChimericCatalog(model, 2);
+        add(catalog, 0);
+        add(catalog, 0);
+        assertEquals(2, catalog.getSupport("GENEA", "GENEE"));
+        assertEquals(1, catalog.getSupport("GENEB", "GENEC"));
+
+        // The same offsets in another file are other reads
+        add(catalog, 1);
+        assertEquals(4, catalog.getSupport("GENEA", "GENEE"));
+        assertEquals(2, catalog.getSupport("GENEB", "GENEC"));
+        assertEquals(5, catalog.size());
+    }
+
+    public void testWrite() throws IOException {
+        ChimericCatalog catalog = new ChimericCatalog(model, 1);
+        add(catalog, 0);
+
+        File report = new File(dir, "chimeric.txt");
+        catalog.write(report, "partial");
+        List<String> lines = FileUtils.readLines(report, "UTF-8");
+        assertEquals(7, lines.size());
+        assertEquals("# partial", lines.get(0));
+        assertEquals("#geneA\tgeneB\tdiscordantReads\tsplitReads", lines.get(1));
+
+        Set<String> expected = new HashSet<String>();
+        expected.add("GENEA\tGENEE\t1\t1");
+        expected.add("GENEA\tGENEC\t1\t0");
+        expected.add("GENEB\tGENEC\t1\t0");
+        expected.add("GENEC\tGENEE\t1\t0");
+        expected.add("GENED\tGENEE\t1\t0");
+        assertEquals(expected, new HashSet<String>(lines.subList(2, lines.size())));
+    }
+
+    /**
+     * Add every record of the BAM file to the catalog as the given file
+     */
+    private void add(ChimericCatalog catalog, int file) throws IOException {
+        BamRecordScanner scanner = new BamRecordScanner(new FileInputStream(bam));
+        try {
+            while(scanner.nextRecord()) {
+                catalog.add(file, scanner);
+            }
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private static Record newRecord(int ref, int pos, int flag, int mateRef, int matePos) {
+        Record r = new Record(ref, pos);
+        r.flag = flag;
+        r.mateRef = mateRef;
+        r.matePos = matePos;
+        return r;
+    }
+
+    private static TranscriptRecord parse(String line) throws GTFParseException {
+        return new UCSCRefFlatParser().parseLine(line);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Draws fragments from donor FASTA files with wrapped, CRLF and short last
+ * lines, indexed in memory or by a .fai index, and checks each fragment is a
+ * slice of a donor or its reverse complement.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class DonorLibraryTest extends FusimTestBase {
+    private static final int DRAWS = 20000;
+
+    private String upper;
+    private String lower;
+    private String crlf;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Random rgen = new Random(13);
+        upper = randomBases(rgen, 5003);
+        lower = randomBases(rgen, 777).toLowerCase();
+        crlf = randomBases(rgen, 300);
+    }
+
+    public void testInMemoryIndex() throws IOException {
+        File fasta = writeFasta("donors.fa", new String[]{"virA description", "virB"}, new String[]{upper, lower}, 60, "\n");
+        DonorLibrary library = newLibrary(fasta);
+        assertEquals(2, library.size());
+        assertFragments(library, new String[]{upper, lower}, 250);
+
+        // The index is never written next to the donors
+        assertFalse(new File(fasta.getAbsolutePath()+".fai").exists());
+    }
+
+    public void testCrlf() throws IOException {
+        // 70 bases a line, the last line has 20
+        File fasta = writeFasta("crlf.fa", new String[]{"virC"}, new String[]{crlf}, 70, "\r\n");
+        assertFragments(newLibrary(fasta), new String[]{crlf}, 400);
+    }
+
+    public void testFaiIndex() throws IOException {
+        File fasta = writeFasta("donors.fa", new String[]{"virA description", "virB"}, new String[]{upper, lower}, 60, "\n");
+        List<String> fragments = drawFragments(newLibrary(fasta), 500, 100);
+
+        // Same donors from a samtools index give the same fragments
+        File fai = new File(fasta.getAbsolutePath()+".fai");
+        List<String> lines = new ArrayList<String>();
+        lines.add("virA\t5003\t18\t60\t61");
+        lines.add("virB\t777\t"+(18+5003+84+6)+"\t60\t61");
+        FileUtils.writeLines(fai, "UTF-8", lines);
+        fai.setLastModified(fasta.lastModified()+2000);
+        assertEquals(fragments, drawFragments(newLibrary(fasta), 500, 100));
+
+        // An index which doesn't match the file is rejected
+        lines.set(1, "virB\t7770\t"+(18+5003+84+6)+"\t60\t61");
+        FileUtils.writeLines(fai, "UTF-8", lines);
+        fai.setLastModified(fasta.lastModified()+2000);
+        try {
+            newLibrary(fasta);
+            fail("Expected an index past the end of the file to be rejected");
+        } catch(IOException e) {
+            assertTrue(e.getMessage().contains("virB"));
+        }
+    }
+
+    public void testDistribution() throws IOException {
+        File fasta = writeFasta("donors.fa", new String[]{"virA", "virB"}, new String[]{upper, lower}, 60, "\n");
+        DonorLibrary library = newLibrary(fasta);
+        String upperRc = reverseComplement(upper);
+        String lowerRc = reverseComplement(lower);
+
+        int maxLen = 100;
+        long totalLength = 0;
+        int fromLower = 0;
+        int reversed = 0;
+        int unambiguous = 0;
+        for(String f : drawFragments(library, maxLen, DRAWS)) {
+            totalLength += f.length();
+            if(Character.isLowerCase(f.charAt(0))) fromLower++;
+            if(f.length() >= 20) {
+                boolean forward = upper.contains(f) || lower.contains(f);
+                boolean reverse = upperRc.contains(f) || lowerRc.contains(f);
+                if(forward != reverse) {
+                    unambiguous++;
+                    if(reverse) reversed++;
+                }
+            }
+        }
+
+        // Lengths are uniform on 1..maxLen
+        assertEquals((maxLen+1)/2.0, (double)totalLength/DRAWS, 1);
+
+        // Donors are picked in proportion to their length
+        assertEquals(777.0/(5003+777), (double)fromLower/DRAWS, 0.01);
+
+        // Half of the fragments are reverse complemented
+        assertEquals(0.5, (double)reversed/unambiguous, 0.02);
+    }
+
+    public void testShortDonor() throws IOException {
+        File fasta = writeFasta("short.fa", new String[]{"tiny"}, new String[]{"ACGTA"}, 60, "\n");
+        DonorLibrary library = newLibrary(fasta);
+        Random rgen = new Random(14);
+        for(int i = 0; i < 100; i++) {
+            StringBuilder buf = new StringBuilder();
+            library.appendFragment(buf, 50, rgen);
+            assertTrue(buf.length() >= 1 && buf.length() <= 5);
+        }
+    }
+
+    public void testInvalidFasta() throws IOException {
+        File fasta = new File(dir, "ragged.fa");
+        FileUtils.writeStringToFile(fasta, ">virD\nACGTACGT\nACG\nACGTACGT\n", "UTF-8");
+        try {
+            newLibrary(fasta);
+            fail("Expected lines of different lengths to be rejected");
+        } catch(IOException e) {
+            assertTrue(e.getMessage().contains("virD"));
+        }
+
+        FileUtils.writeStringToFile(fasta, "ACGT\n>virE\nACGT\n", "UTF-8");
+        try {
+            newLibrary(fasta);
+            fail("Expected sequence before a header to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+
+        FileUtils.writeStringToFile(fasta, ">virF\n", "UTF-8");
+        try {
+            newLibrary(fasta);
+            fail("Expected a library without bases to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    private void assertFragments(DonorLibrary library, String[] donors, int maxLen) {
+        int longest = 0;
+        for(String f : drawFragments(library, maxLen, 2000)) {
+            assertTrue(f.length() >= 1 && f.length() <= maxLen);
+            boolean found = false;
+            for(String donor : donors) {
+                found = found || donor.contains(f) || reverseComplement(donor).contains(f);
+            }
+            assertTrue("Fragment not in donors: "+f, found);
+            longest = Math.max(longest, f.length());
+        }
+        assertTrue(longest > maxLen/2);
+    }
+
+    private static List<String> drawFragments(DonorLibrary library, int maxLen, int n) {
+        Random rgen = new Random(15);
+        List<String> fragments = new ArrayList<String>(n);
+        for(int i = 0; i < n; i++) {
+            StringBuilder buf = new StringBuilder(">");
+            library.appendFragment(buf, maxLen, rgen);
+            assertEquals('>', buf.charAt(0));
+            fragments.add(buf.substring(1));
+        }
+        return fragments;
+    }
+
+    private DonorLibrary newLibrary(File fasta) throws IOException {
+        List<File> files = new ArrayList<File>();
+        files.add(fasta);
+        return new DonorLibrary(files);
+    }
+
+    private File writeFasta(String name, String[] headers, String[] sequences, int lineWidth, String eol) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < headers.length; i++) {
+            buf.append('>').append(headers[i]).append(eol);
+            for(int pos = 0; pos < sequences[i].length(); pos += lineWidth) {
+                buf.append(sequences[i], pos, Math.min(pos+lineWidth, sequences[i].length())).append(eol);
+            }
+        }
+        File fasta = new File(dir, name);
+        FileUtils.writeStringToFile(fasta, buf.toString(), "US-ASCII");
+        return fasta;
+    }
+
+    private static String reverseComplement(String seq) {
+        StringBuilder buf = new StringBuilder(seq.length());
+        for(int i = seq.length()-1; i >= 0; i--) {
+            char c = seq.charAt(i);
+            int k = "ACGTacgt".indexOf(c);
+            buf.append(k < 0 ? c : "TGCAtgca".charAt(k));
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Parses small salmon, kallisto, RSEM and featureCounts tables and checks the
+ * expression value read or computed for each id.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ExpressionSelectorTest extends FusimTestBase {
+    private static final double DELTA = 1e-6;
+
+    public void testSalmon() throws IOException {
+        // Counts are converted with the effective length, not Length
+        Map<String, Double> expression = parse("quant.sf",
+            "Name\tLength\tEffectiveLength\tTPM\tNumReads",
+            "ENST00000000001.3\t1000\t800\t100000.0\t80",
+            "ENST00000000002.1\t2000\t1600\t200000.0\t320");
+        assertEquals(1e9*80/(400*800), expression.get("ENST00000000001.3"), DELTA);
+        assertEquals(1e9*320/(400*1600), expression.get("ENST00000000002.1"), DELTA);
+
+        // Versions are optional when joining
+        assertEquals(1e9*80/(400*800), ExpressionSelector.lookup(expression, "ENST00000000001"), DELTA);
+        assertEquals(1e9*80/(400*800), ExpressionSelector.lookup(expression, "ENST00000000001.4"), DELTA);
+        assertNull(ExpressionSelector.lookup(expression, "ENST00000000003"));
+    }
+
+    public void testKallisto() throws IOException {
+        Map<String, Double> expression = parse("abundance.tsv",
+            "target_id\tlength\teff_length\test_counts\ttpm",
+            "NM_001\t500\t250\t10\t1.0",
+            "NM_002\t1500\t1250\t40\t1.0");
+        assertEquals(1e9*10/(50*250), expression.get("NM_001"), DELTA);
+        assertEquals(1e9*40/(50*1250), expression.get("NM_002"), DELTA);
+    }
+
+    public void testRsem() throws IOException {
+        // FPKM is used as is
+        Map<String, Double> expression = parse("genes.results",
+            "gene_id\ttranscript_id(s)\tlength\teffective_length\texpected_count\tTPM\tFPKM",
+            "GENE1\tNM_001,NM_002\t1200.5\t1000.5\t15.00\t3.50\t2.25",
+            "GENE2\tNM_003\t800.0\t600.0\t0.00\t0.00\t0.00");
+        assertEquals(2.25, expression.get("GENE1"), DELTA);
+        assertEquals(0, expression.get("GENE2"), DELTA);
+    }
+
+    public void testFeatureCounts() throws IOException {
+        // Counts are in the last column, named after the BAM file
+        Map<String, Double> expression = parse("counts.txt",
+            "# Program:featureCounts v2.0.1; Command:\"featureCounts\" \"-a\" \"genes.gtf\" \"sample.bam\"",
+            "Geneid\tChr\tStart\tEnd\tStrand\tLength\tsample.bam",
+            "GENE1\tchr1;chr1\t100;500\t200;1400\t+;+\t1000\t100",
+            "GENE2\tchr2\t100\t600\t-\t500\t300");
+        assertEquals(1e9*100/(400*1000), expression.get("GENE1"), DELTA);
+        assertEquals(1e9*300/(400*500), expression.get("GENE2"), DELTA);
+    }
+
+    public void testTpmOnly() throws IOException {
+        Map<String, Double> expression = parse("tpm.txt",
+            "id\tTPM",
+            "NM_001\t12.5");
+        assertEquals(12.5, expression.get("NM_001"), DELTA);
+    }
+
+    public void testInvalidTables() throws IOException {
+        try {
+            parse("bad.txt", "id\tvalue", "NM_001\t1");
+            fail("Expected a table without expression columns to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+
+        try {
+            parse("bad.txt", "Name\tLength\tNumReads", "NM_001\t1000\t10", "NM_002\t1000");
+            fail("Expected a short line to be rejected");
+        } catch(IOException e) {
+            assertTrue(e.getMessage().contains("line 3"));
+        }
+    }
+
+    private Map<String, Double> parse(String name, String... lines) throws IOException {
+        List<String> table = new ArrayList<String>();
+        for(String line : lines) {
+            table.add(line);
+        }
+        File file = new File(dir, name);
+        FileUtils.writeLines(file, "UTF-8", table);
+        return ExpressionSelector.parseExpression(file);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Base class of tests which write files. Each test gets an empty scratch
+ * directory which is deleted when the test finishes.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public abstract class FusimTestBase extends TestCase {
+    protected File dir;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("fusim", "test");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Random sequence of upper case bases
+     */
+    public static String randomBases(Random rgen, int length) {
+        char[] bases = new char[length];
+        for(int i = 0; i < length; i++) {
+            bases[i] = "ACGT".charAt(rgen.nextInt(4));
+        }
+        return new String(bases);
+    }
+}
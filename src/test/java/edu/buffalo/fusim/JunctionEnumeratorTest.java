@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import edu.buffalo.fusim.gtf.GTFParseException;
+import edu.buffalo.fusim.gtf.Strand;
+
+/**
+ * Checks the junctions of JunctionEnumerator against every pair of exon
+ * boundaries of transcripts with random exon lengths.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class JunctionEnumeratorTest extends TestCase {
+    private List<TranscriptRecord> gene1s;
+    private List<TranscriptRecord> gene2s;
+
+    protected void setUp() throws Exception {
+        Random rgen = new Random(6);
+        gene1s = new ArrayList<TranscriptRecord>();
+        gene2s = new ArrayList<TranscriptRecord>();
+        for(int i = 0; i < 4; i++) {
+            gene1s.add(newTranscript(rgen, "GENE"+i, "NM_"+i, i % 2 == 0 ? "+" : "-"));
+        }
+        // GENE0 is on both sides, it can't be fused with itself
+        gene2s.add(newTranscript(rgen, "GENE0", "NM_10", "-"));
+        for(int i = 5; i < 9; i++) {
+            gene2s.add(newTranscript(rgen, "GENE"+i, "NM_"+i, i % 2 == 0 ? "+" : "-"));
+        }
+    }
+
+    public void testInFrame() {
+        for(boolean cdsOnly : new boolean[]{false, true}) {
+            Set<String> expected = expectedJunctions(cdsOnly, false);
+            assertTrue(expected.size() > 0);
+            assertEquals(expected, enumerate(new JunctionEnumerator(gene1s, gene2s, cdsOnly, false, 0), expected.size()));
+        }
+    }
+
+    public void testOutOfFrame() {
+        Set<String> expected = expectedJunctions(false, true);
+        int total = 0;
+        for(TranscriptRecord t1 : gene1s) {
+            for(TranscriptRecord t2 : gene2s) {
+                if(!t1.getGeneId().equals(t2.getGeneId())) total += t1.getExonCount()*t2.getExonCount();
+            }
+        }
+        assertEquals(total, expected.size());
+        assertEquals(expected, enumerate(new JunctionEnumerator(gene1s, gene2s, false, true, 0), total));
+    }
+
+    public void testMaxJunctions() {
+        JunctionEnumerator junctions = new JunctionEnumerator(gene1s, gene2s, false, true, 7);
+        Set<String> found = enumerate(junctions, 7);
+        assertEquals(7, junctions.getCount());
+        assertTrue(expectedJunctions(false, true).containsAll(found));
+        assertFalse(junctions.hasNext());
+    }
+
+    public void testBreaks() throws GTFParseException {
+        TranscriptRecord tr = newTranscript(new Random(7), "GENE9", "NM_9", "+");
+        int n = tr.getExonCount();
+        assertTrue(Arrays.equals(new int[]{0, 1}, JunctionEnumerator.getPrefixBreak(tr, 2, false)));
+        assertTrue(Arrays.equals(new int[]{1, 2, 3, 4, 5}, JunctionEnumerator.getSuffixBreak(tr, 1, false)));
+        assertEquals(6, n);
+
+        tr = newTranscript(new Random(7), "GENE9", "NM_9", "-");
+        assertTrue(Arrays.equals(new int[]{4, 5}, JunctionEnumerator.getPrefixBreak(tr, 2, false)));
+        assertTrue(Arrays.equals(new int[]{0, 1, 2, 3, 4}, JunctionEnumerator.getSuffixBreak(tr, 1, false)));
+    }
+
+    /**
+     * Junctions as gene1:exons|gene2:exons, checking there are no
+     * duplicates and the iterator ends after count junctions
+     */
+    private static Set<String> enumerate(JunctionEnumerator junctions, int count) {
+        Set<String> found = new HashSet<String>();
+        while(junctions.hasNext()) {
+            FusionGene f = junctions.next();
+            assertEquals(2, f.size());
+            assertTrue(found.add(key(f.getGene(0), f.getBreaks().get(0), f.getGene(1), f.getBreaks().get(1))));
+        }
+        assertEquals(count, found.size());
+        assertEquals(count, junctions.getCount());
+        try {
+            junctions.next();
+            fail("Expected the iterator to be exhausted");
+        } catch(NoSuchElementException e) {
+            // expected
+        }
+        return found;
+    }
+
+    /**
+     * Every pair of a prefix of gene1 and suffix of gene2 (in transcript
+     * order) where the bases kept of gene1 and dropped of gene2 have the
+     * same phase
+     */
+    private Set<String> expectedJunctions(boolean cdsOnly, boolean outOfFrame) {
+        Set<String> expected = new HashSet<String>();
+        for(TranscriptRecord t1 : gene1s) {
+            for(TranscriptRecord t2 : gene2s) {
+                if(t1.getGeneId().equals(t2.getGeneId())) continue;
+                int[] lengths1 = transcriptLengths(t1, cdsOnly);
+                int[] lengths2 = transcriptLengths(t2, cdsOnly);
+                for(int prefix = 1; prefix <= lengths1.length; prefix++) {
+                    int kept = sum(lengths1, prefix);
+                    for(int start = 0; start < lengths2.length; start++) {
+                        int dropped = sum(lengths2, start);
+                        if(!outOfFrame && kept % 3 != dropped % 3) continue;
+                        expected.add(key(t1, genomic(t1, 0, prefix, cdsOnly), t2, genomic(t2, start, lengths2.length, cdsOnly)));
+                    }
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static String key(TranscriptRecord t1, int[] exons1, TranscriptRecord t2, int[] exons2) {
+        return t1.getTranscriptId()+":"+Arrays.toString(exons1)+"|"+t2.getTranscriptId()+":"+Arrays.toString(exons2);
+    }
+
+    /**
+     * Genomic indexes (ascending) of exons [from, to) in transcript order
+     */
+    private static int[] genomic(TranscriptRecord tr, int from, int to, boolean cdsOnly) {
+        int n = tr.getExons(cdsOnly).size();
+        int[] exons = new int[to-from];
+        for(int k = from; k < to; k++) {
+            exons[k-from] = Strand.REVERSE.equals(tr.getStrand()) ? n-1-k : k;
+        }
+        Arrays.sort(exons);
+        return exons;
+    }
+
+    private static int[] transcriptLengths(TranscriptRecord tr, boolean cdsOnly) {
+        List<int []> exons = tr.getExons(cdsOnly);
+        int n = exons.size();
+        int[] lengths = new int[n];
+        for(int k = 0; k < n; k++) {
+            int[] exon = exons.get(Strand.REVERSE.equals(tr.getStrand()) ? n-1-k : k);
+            lengths[k] = exon[1]-exon[0];
+        }
+        return lengths;
+    }
+
+    private static int sum(int[] values, int n) {
+        int total = 0;
+        for(int i = 0; i < n; i++) {
+            total += values[i];
+        }
+        return total;
+    }
+
+    /**
+     * Transcript of 6 exons of random length, the CDS starting in the
+     * second exon and ending in the fifth
+     */
+    private static TranscriptRecord newTranscript(Random rgen, String gene, String id, String strand) throws GTFParseException {
+        int[] starts = new int[6];
+        int[] ends = new int[6];
+        int pos = 1000;
+        StringBuilder startList = new StringBuilder();
+        StringBuilder endList = new StringBuilder();
+        for(int i = 0; i < starts.length; i++) {
+            starts[i] = pos;
+            ends[i] = pos+50+rgen.nextInt(200);
+            startList.append(starts[i]).append(',');
+            endList.append(ends[i]).append(',');
+            pos = ends[i]+1000;
+        }
+        int cdsStart = starts[1]+10;
+        int cdsEnd = ends[4]-10;
+        return TranscriptRecord.fromRefFlat(new String[]{gene, id, "chr1", strand, String.valueOf(starts[0]), String.valueOf(ends[5]),
+                                            String.valueOf(cdsStart), String.valueOf(cdsEnd), "6", startList.toString(), endList.toString()});
+    }
+}
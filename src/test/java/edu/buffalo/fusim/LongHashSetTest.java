@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks LongHashSet against a HashSet over rounds of adds and clears of
+ * very different sizes.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class LongHashSetTest extends TestCase {
+    public void testAddContains() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(0));
+        assertTrue(set.add(-1));
+
+        // The value used for empty slots is still a valid key
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(4, set.size());
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(42));
+        assertFalse(set.contains(Long.MIN_VALUE));
+    }
+
+    public void testClearRounds() {
+        Random rgen = new Random(16);
+        LongHashSet set = new LongHashSet(4);
+        Set<Long> expected = new HashSet<Long>();
+
+        // A large round grows the table, the small rounds after it shrink it
+        int[] rounds = new int[]{10, 100000, 5, 0, 300, 50000, 1, 20};
+        for(int n : rounds) {
+            set.clear();
+            expected.clear();
+            for(int i = 0; i < n; i++) {
+                // Offsets of nearby BAM records, with repeats
+                long key = ((long)rgen.nextInt(2000) << 16) | rgen.nextInt(64);
+                assertEquals(expected.add(key), set.add(key));
+            }
+            assertEquals(expected.size(), set.size());
+            for(long key : expected) {
+                assertTrue(set.contains(key));
+            }
+            for(int i = 0; i < 1000; i++) {
+                long key = rgen.nextLong();
+                assertEquals(expected.contains(key), set.contains(key));
+            }
+        }
+    }
+}
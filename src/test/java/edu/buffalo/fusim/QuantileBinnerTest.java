@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import cern.colt.list.IntArrayList;
+
+/**
+ * Checks the selections and bins of QuantileBinner against a sorted copy of
+ * values drawn with a fixed seed.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class QuantileBinnerTest extends TestCase {
+    private double[] values;
+    private double[] sorted;
+
+    protected void setUp() throws Exception {
+        // Skewed like RPKMs, with ties
+        Random rgen = new Random(3);
+        values = new double[1000];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = i % 10 == 0 ? 0 : Math.floor(Math.exp(rgen.nextGaussian()*0.5)*10)/10;
+        }
+        sorted = values.clone();
+        Arrays.sort(sorted);
+    }
+
+    public void testSelect() {
+        QuantileBinner binner = new QuantileBinner(values.clone());
+        assertEquals(values.length, binner.size());
+        assertEquals(sorted[0], binner.getMin(), 0);
+        assertEquals(sorted[sorted.length-1], binner.getMax(), 0);
+
+        // Every rank, in an order which reuses the partial ordering
+        Random rgen = new Random(4);
+        for(int i = 0; i < 2000; i++) {
+            int k = rgen.nextInt(values.length);
+            assertEquals("rank "+k, sorted[k], binner.select(k), 0);
+        }
+        for(int k = 0; k < values.length; k++) {
+            assertEquals("rank "+k, sorted[k], binner.select(k), 0);
+        }
+
+        assertEquals(sorted[0], binner.getQuantile(0), 0);
+        assertEquals(sorted[500], binner.getQuantile(0.5), 0);
+        assertEquals(sorted[999], binner.getQuantile(1), 0);
+
+        try {
+            binner.select(values.length);
+            fail("Expected invalid rank to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBinCounts() {
+        QuantileBinner binner = new QuantileBinner(values);
+        assertEquals(31, binner.getSqrtBins());
+        assertEquals(9, binner.getSturgesBins());
+
+        // 2*IQR/n^(1/3) with the nearest rank quartiles
+        double iqr = sorted[749]-sorted[250];
+        int expected = (int)Math.ceil((sorted[999]-sorted[0])/(2*iqr/Math.pow(1000, 1.0/3)));
+        assertEquals(expected, binner.getFreedmanDiaconisBins());
+
+        // Constant values have no spread, fall back on the square root rule
+        double[] constant = new double[16];
+        Arrays.fill(constant, 2.5);
+        assertEquals(4, new QuantileBinner(constant).getFreedmanDiaconisBins());
+    }
+
+    public void testQuantileBins() {
+        for(int bins : new int[]{1, 2, 3, 7, 10, 64, 1000}) {
+            IntArrayList[] result = new QuantileBinner(values).getQuantileBins(bins);
+            assertEquals(bins, result.length);
+
+            boolean[] seen = new boolean[values.length];
+            double previousMax = Double.NEGATIVE_INFINITY;
+            for(IntArrayList bin : result) {
+                int size = bin.size();
+                assertTrue(size == values.length/bins || size == values.length/bins+1);
+
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for(int i = 0; i < size; i++) {
+                    int idx = bin.get(i);
+                    assertFalse(seen[idx]);
+                    seen[idx] = true;
+                    min = Math.min(min, values[idx]);
+                    max = Math.max(max, values[idx]);
+                }
+                // Bins are ordered by value, ties may straddle a boundary
+                assertTrue(min >= previousMax);
+                previousMax = max;
+            }
+            for(boolean s : seen) {
+                assertTrue(s);
+            }
+        }
+
+        // More bins than values is one bin
+        assertEquals(1, new QuantileBinner(values).getQuantileBins(values.length+1).length);
+    }
+
+    public void testWidthBins() {
+        QuantileBinner binner = new QuantileBinner(values);
+        double min = binner.getMin();
+        double width = (binner.getMax()-min)/20;
+        IntArrayList[] result = binner.getWidthBins(20);
+        assertTrue(result.length <= 20);
+
+        int total = 0;
+        int previousBin = -1;
+        for(IntArrayList bin : result) {
+            assertTrue(bin.size() > 0);
+            int b = Math.min(19, (int)((values[bin.get(0)]-min)/width));
+            assertTrue(b > previousBin);
+            for(int i = 0; i < bin.size(); i++) {
+                assertEquals(b, Math.min(19, (int)((values[bin.get(i)]-min)/width)));
+            }
+            previousBin = b;
+            total += bin.size();
+        }
+        assertEquals(values.length, total);
+
+        double[] constant = new double[10];
+        Arrays.fill(constant, 1);
+        result = new QuantileBinner(constant).getWidthBins(5);
+        assertEquals(1, result.length);
+        assertEquals(10, result[0].size());
+    }
+}
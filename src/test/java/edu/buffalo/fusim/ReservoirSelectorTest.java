@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Checks the samples of ReservoirSelector, and their distribution over many
+ * fixed seeds, on a small gene model.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class ReservoirSelectorTest extends FusimTestBase {
+    private static final int TRANSCRIPTS = 100;
+
+    private File geneModel;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // GENEi/NM_i, the first half on chr1 and the rest on chr2
+        List<String> lines = new ArrayList<String>();
+        lines.add("#geneName\tname\tchrom\tstrand\ttxStart\ttxEnd\tcdsStart\tcdsEnd\texonCount\texonStarts\texonEnds");
+        for(int i = 0; i < TRANSCRIPTS; i++) {
+            int start = 1000*i;
+            lines.add("GENE"+i+"\tNM_"+i+"\t"+(i < TRANSCRIPTS/2 ? "chr1" : "chr2")+"\t+\t"+start+"\t"+(start+500)
+                      +"\t"+start+"\t"+(start+500)+"\t2\t"+start+","+(start+300)+",\t"+(start+100)+","+(start+500)+",");
+        }
+        geneModel = new File(dir, "refFlat.txt");
+        FileUtils.writeLines(geneModel, "UTF-8", lines);
+    }
+
+    public void testSample() {
+        List<TranscriptRecord> sample = newSelector(10, null, 1).select();
+        assertEquals(10, sample.size());
+
+        // Distinct and in gene model order
+        int previous = -1;
+        for(TranscriptRecord tr : sample) {
+            int i = index(tr);
+            assertTrue(i > previous);
+            previous = i;
+        }
+
+        // Same seed, same sample
+        List<TranscriptRecord> again = newSelector(10, null, 1).select();
+        for(int i = 0; i < sample.size(); i++) {
+            assertEquals(sample.get(i).getTranscriptId(), again.get(i).getTranscriptId());
+        }
+
+        assertEquals(TRANSCRIPTS, newSelector(TRANSCRIPTS*2, null, 1).select().size());
+    }
+
+    public void testUniform() {
+        int runs = 2000;
+        int[] counts = new int[TRANSCRIPTS];
+        // The first draws of generators with consecutive seeds are correlated
+        Random seeds = new Random(1);
+        for(int run = 0; run < runs; run++) {
+            for(TranscriptRecord tr : newSelector(10, null, seeds.nextLong()).select()) {
+                counts[index(tr)]++;
+            }
+        }
+
+        // Each transcript is in 10% of the samples, 200 +/- 4.5 sd
+        for(int i = 0; i < TRANSCRIPTS; i++) {
+            assertTrue("NM_"+i+" sampled "+counts[i]+" times", counts[i] > 140 && counts[i] < 260);
+        }
+    }
+
+    public void testWeighted() throws IOException {
+        // NM_0-9 are below the cutoff, NM_99 isn't expressed, NM_50-98 have 4x the weight
+        List<String> lines = new ArrayList<String>();
+        lines.add("tracking_id\tFPKM");
+        for(int i = 0; i < TRANSCRIPTS-1; i++) {
+            lines.add("NM_"+i+"\t"+(i < 10 ? 0.5 : (i < TRANSCRIPTS/2 ? 1 : 4)));
+        }
+        File expression = new File(dir, "expression.txt");
+        FileUtils.writeLines(expression, "UTF-8", lines);
+
+        int runs = 5000;
+        int heavy = 0;
+        Random seeds = new Random(1);
+        for(int run = 0; run < runs; run++) {
+            ReservoirSelector selector = newSelector(1, null, seeds.nextLong());
+            selector.setExpression(expression, 0.75, true);
+            List<TranscriptRecord> sample = selector.select();
+            assertEquals(1, sample.size());
+
+            TranscriptRecord tr = sample.get(0);
+            int i = index(tr);
+            assertTrue(i >= 10 && i < TRANSCRIPTS-1);
+            assertEquals(i < TRANSCRIPTS/2 ? 1.0 : 4.0, tr.getRPKM(), 0);
+            if(i >= TRANSCRIPTS/2) heavy++;
+        }
+
+        // 49*4/(40+49*4) of the samples are heavy, 4153 +/- 4.5 sd
+        assertTrue("Heavy transcripts sampled "+heavy+" times", heavy > 4030 && heavy < 4280);
+    }
+
+    public void testFilters() {
+        List<String[]> filters = new ArrayList<String[]>();
+        filters.add(new String[]{"chr2"});
+        filters.add(new String[]{"GENE3", "NM_7"});
+        ReservoirSelector selector = newSelector(10, filters, 2);
+
+        List<TranscriptRecord> sample = selector.select();
+        List<TranscriptRecord> chr2 = selector.select(new String[]{"chr2"});
+        assertEquals(10, chr2.size());
+        Set<String> ids = new HashSet<String>();
+        for(TranscriptRecord tr : chr2) {
+            assertEquals("chr2", tr.getChrom());
+            ids.add(tr.getTranscriptId());
+        }
+
+        // The keys are shared so sampled transcripts on chr2 are in the filtered sample
+        for(TranscriptRecord tr : sample) {
+            if("chr2".equals(tr.getChrom())) assertTrue(ids.contains(tr.getTranscriptId()));
+        }
+
+        List<TranscriptRecord> genes = selector.select(new String[]{"GENE3", "NM_7"});
+        assertEquals(2, genes.size());
+        assertEquals("NM_3", genes.get(0).getTranscriptId());
+        assertEquals("NM_7", genes.get(1).getTranscriptId());
+
+        // Filters not given up front are applied to the sample
+        for(TranscriptRecord tr : selector.select(new String[]{"chr1"})) {
+            assertEquals("chr1", tr.getChrom());
+            assertTrue(sample.contains(tr));
+        }
+    }
+
+    private ReservoirSelector newSelector(int sampleSize, List<String[]> filters, long seed) {
+        ReservoirSelector selector = new ReservoirSelector(sampleSize, filters);
+        selector.setGeneModelFile(geneModel);
+        selector.setGeneModelParser(new UCSCRefFlatParser());
+        selector.setRandom(new Random(seed));
+        return selector;
+    }
+
+    private static int index(TranscriptRecord tr) {
+        return Integer.parseInt(tr.getTranscriptId().substring(3));
+    }
+}
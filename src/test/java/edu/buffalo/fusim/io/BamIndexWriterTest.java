@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.buffalo.fusim.FusimTestBase;
+import edu.buffalo.fusim.io.BamTestWriter.Record;
+
+/**
+ * Sweeps a small coordinate sorted BAM file, built here with
+ * BgzfOutputStream, into a BamIndexWriter and checks the index read back by
+ * BamIndex against a brute force scan of the records.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BamIndexWriterTest extends FusimTestBase {
+    private static final String[] REFERENCES = new String[]{"chr1", "chr2", "chr3"};
+    private static final int[] REFERENCE_LENGTHS = new int[]{1000000, 500000, 100000};
+
+    private File bam;
+    private File bai;
+    private List<Record> records;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        bam = new File(dir, "test.bam");
+        bai = new File(dir, "test.bam.bai");
+
+        records = new ArrayList<Record>();
+        Random rgen = new Random(7);
+        int pos = 0;
+        for(int i = 0; i < 4000; i++) {
+            pos += rgen.nextInt(300);
+            Record r = new Record(0, pos);
+            if(i % 17 == 0) {
+                // Unmapped read placed at its mate
+                r.flag = BamRecordScanner.FLAG_UNMAPPED | BamRecordScanner.FLAG_PAIRED;
+                r.cigar = new int[0];
+            } else if(i % 10 == 0) {
+                r.cigar = new int[]{BamTestWriter.op(30, 0), BamTestWriter.op(30000, 3), BamTestWriter.op(20, 0)};
+            } else if(i % 7 == 0) {
+                r.cigar = new int[]{BamTestWriter.op(10, 4), BamTestWriter.op(40, 0)};
+            }
+            if(i % 13 == 0 && !r.isUnmapped()) {
+                r.sa = "chr2,1000,+,20M30S,60,0;";
+            }
+            records.add(r);
+        }
+        pos = 100000;
+        for(int i = 0; i < 500; i++) {
+            pos += rgen.nextInt(500);
+            records.add(new Record(1, pos));
+        }
+        for(int i = 0; i < 50; i++) {
+            Record r = new Record(-1, -1);
+            r.flag = BamRecordScanner.FLAG_UNMAPPED;
+            r.cigar = new int[0];
+            records.add(r);
+        }
+
+        BamTestWriter.write(bam, REFERENCES, REFERENCE_LENGTHS, records);
+        sweep();
+    }
+
+    public void testReg2bin() {
+        assertEquals(4681, BamIndex.reg2bin(0, 1));
+        assertEquals(4681, BamIndex.reg2bin(0, 16384));
+        assertEquals(4682, BamIndex.reg2bin(16384, 16385));
+        assertEquals(585, BamIndex.reg2bin(0, 16385));
+        assertEquals(73, BamIndex.reg2bin(0, 131073));
+        assertEquals(0, BamIndex.reg2bin(0, 1<<29));
+
+        // Every bin a record in the region could be in is listed
+        int[] bins = BamIndex.reg2bins(16000, 17000);
+        assertEquals(7, bins.length);
+        assertEquals(0, bins[0]);
+        assertEquals(1, bins[1]);
+        assertEquals(9, bins[2]);
+        assertEquals(73, bins[3]);
+        assertEquals(585, bins[4]);
+        assertEquals(4681, bins[5]);
+        assertEquals(4682, bins[6]);
+    }
+
+    public void testScannerDecodesRecords() throws IOException {
+        BamRecordScanner scanner = new BamRecordScanner(new FileInputStream(bam));
+        try {
+            assertEquals(REFERENCES.length, scanner.getNumberOfReferences());
+            assertEquals(1, scanner.getReferenceIndex("chr2"));
+            assertEquals(-1, scanner.getReferenceIndex("chrX"));
+
+            for(Record r : records) {
+                assertTrue(scanner.nextRecord());
+                assertEquals(r.ref, scanner.getReferenceIndex());
+                assertEquals(r.pos, scanner.getAlignmentStart());
+                assertEquals(r.offset, scanner.getRecordOffset());
+                assertEquals(r.flag, scanner.getFlag());
+                assertEquals(r.isUnmapped(), scanner.getReadUnmappedFlag());
+                assertEquals(60, scanner.getMappingQuality());
+                assertEquals(r.mateRef, scanner.getMateReferenceIndex());
+                assertEquals(r.matePos, scanner.getMateAlignmentStart());
+                assertEquals(r.getEnd(), r.isUnmapped() ? r.pos+1 : scanner.getAlignmentEnd());
+                assertEquals(r.cigar.length == 2, scanner.isClipped());
+                assertEquals(r.sa, scanner.getStringTag("SA"));
+                assertNull(scanner.getStringTag("XX"));
+            }
+            assertFalse(scanner.nextRecord());
+        } finally {
+            scanner.close();
+        }
+    }
+
+    public void testIndexCounts() throws IOException {
+        byte[] data = FileUtils.readFileToByteArray(bai);
+        assertEquals('B', data[0]);
+        assertEquals('A', data[1]);
+        assertEquals('I', data[2]);
+        assertEquals(1, data[3]);
+
+        BamIndex index = new BamIndex(bai);
+        assertEquals(REFERENCES.length, index.getNumberOfReferences());
+
+        long total = 0;
+        for(int ref = 0; ref < REFERENCES.length; ref++) {
+            long mapped = 0;
+            long unmapped = 0;
+            for(Record r : records) {
+                if(r.ref != ref) continue;
+                if(r.isUnmapped()) {
+                    unmapped++;
+                } else {
+                    mapped++;
+                }
+            }
+            assertEquals(mapped, index.getMappedCount(ref));
+            assertEquals(unmapped, index.getUnmappedCount(ref));
+            total += mapped;
+        }
+        assertEquals(total, index.getMappedCount());
+        assertEquals(0, index.getChunks(2, 0, REFERENCE_LENGTHS[2]).length);
+    }
+
+    public void testChunkLookup() throws IOException {
+        BamIndex index = new BamIndex(bai);
+
+        // The first record of a reference starts the only chunk of its window
+        Record first = null;
+        for(Record r : records) {
+            if(r.ref == 1) {
+                first = r;
+                break;
+            }
+        }
+        long[] chunks = index.getChunks(1, first.pos, first.pos+1);
+        assertTrue(chunks.length >= 2);
+        assertEquals(first.offset, chunks[0]);
+
+        // Chunks are sorted and don't overlap
+        chunks = index.getChunks(0, 0, REFERENCE_LENGTHS[0]);
+        for(int c = 2; c < chunks.length; c += 2) {
+            assertTrue(chunks[c] > chunks[c-1]);
+        }
+        assertEquals(records.get(0).offset, chunks[0]);
+    }
+
+    public void testQueries() throws IOException {
+        BamIndex index = new BamIndex(bai);
+        BamRecordScanner scanner = new BamRecordScanner(bam, index);
+        try {
+            Random rgen = new Random(11);
+            for(int i = 0; i < 200; i++) {
+                int ref = rgen.nextInt(2);
+                int start = rgen.nextInt(REFERENCE_LENGTHS[ref]);
+                int end = start+1+rgen.nextInt(i % 2 == 0 ? 500 : 50000);
+                assertQuery(scanner, ref, start, end);
+            }
+            assertQuery(scanner, 0, 0, 1);
+            assertQuery(scanner, 0, 0, REFERENCE_LENGTHS[0]);
+            assertQuery(scanner, 1, 0, REFERENCE_LENGTHS[1]);
+            assertQuery(scanner, 2, 0, REFERENCE_LENGTHS[2]);
+
+            assertFalse(scanner.query("chrX", 0, 1000));
+            assertFalse(scanner.next());
+        } finally {
+            scanner.close();
+        }
+    }
+
+    public void testUnsortedRejected() throws IOException {
+        BamIndexWriter writer = new BamIndexWriter(2);
+        writer.add(0, 100, 150, false, 1 << 16, 2 << 16);
+        try {
+            writer.add(0, 50, 100, false, 2 << 16, 3 << 16);
+            fail("Expected unsorted records to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+
+        writer = new BamIndexWriter(2);
+        writer.add(-1, -1, 0, true, 1 << 16, 2 << 16);
+        try {
+            writer.add(0, 50, 100, false, 2 << 16, 3 << 16);
+            fail("Expected placed records after unplaced records to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    private void assertQuery(BamRecordScanner scanner, int ref, int start, int end) throws IOException {
+        List<Long> expected = new ArrayList<Long>();
+        for(Record r : records) {
+            if(r.ref == ref && r.pos < end && r.getEnd() > start) expected.add(r.offset);
+        }
+
+        List<Long> found = new ArrayList<Long>();
+        assertTrue(scanner.query(REFERENCES[ref], start, end));
+        while(scanner.next()) {
+            found.add(scanner.getRecordOffset());
+        }
+        assertEquals(REFERENCES[ref]+":"+start+"-"+end, expected, found);
+    }
+
+    /**
+     * Index the BAM file the same way a background sweep does, recording
+     * the virtual offset of every record
+     */
+    private void sweep() throws IOException {
+        BamIndexWriter writer = new BamIndexWriter(REFERENCES.length);
+        BamRecordScanner scanner = new BamRecordScanner(new FileInputStream(bam));
+        try {
+            int i = 0;
+            while(scanner.nextRecord()) {
+                int ref = scanner.getReferenceIndex();
+                int pos = scanner.getAlignmentStart();
+                boolean unmapped = scanner.getReadUnmappedFlag();
+                int end = ref < 0 || unmapped ? pos+1 : scanner.getAlignmentEnd();
+                writer.add(ref, pos, end, unmapped, scanner.getRecordOffset(), scanner.getFilePointer());
+                records.get(i++).offset = scanner.getRecordOffset();
+            }
+            assertEquals(records.size(), i);
+        } finally {
+            scanner.close();
+        }
+        writer.write(bai);
+    }
+}
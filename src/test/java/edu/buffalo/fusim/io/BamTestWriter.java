@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Writes BAM files of hand built records for the tests of the BAM scanner,
+ * index and the readers built on them.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BamTestWriter {
+    /**
+     * Write the records, named read0, read1, ..., in the given order
+     */
+    public static void write(File bam, String[] references, int[] referenceLengths, List<Record> records) throws IOException {
+        OutputStream out = new BgzfOutputStream(new FileOutputStream(bam));
+        try {
+            String text = "@HD\tVN:1.4\tSO:coordinate\n";
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(new byte[]{'B', 'A', 'M', 1});
+            header.write(toBytes(text.length()));
+            header.write(text.getBytes("US-ASCII"));
+            header.write(toBytes(references.length));
+            for(int i = 0; i < references.length; i++) {
+                header.write(toBytes(references[i].length()+1));
+                header.write(references[i].getBytes("US-ASCII"));
+                header.write(0);
+                header.write(toBytes(referenceLengths[i]));
+            }
+            out.write(header.toByteArray());
+
+            int n = 0;
+            for(Record r : records) {
+                out.write(r.encode("read"+(n++)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * CIGAR operation, op is the BAM code (0 = M, 3 = N, 4 = S, ...)
+     */
+    public static int op(int length, int op) {
+        return (length << 4) | op;
+    }
+
+    private static byte[] toBytes(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    /**
+     * A read of 50 bases. The mate is placed at the read unless set.
+     */
+    public static class Record {
+        private static final int READ_LENGTH = 50;
+
+        public int ref;
+        public int pos;
+        public int mateRef;
+        public int matePos;
+        public int flag = 0;
+        public int[] cigar = new int[]{op(READ_LENGTH, 0)};
+        public String sa;
+        public long offset;
+
+        public Record(int ref, int pos) {
+            this.ref = ref;
+            this.pos = pos;
+            this.mateRef = ref;
+            this.matePos = pos;
+        }
+
+        public boolean isUnmapped() {
+            return (flag & BamRecordScanner.FLAG_UNMAPPED) != 0;
+        }
+
+        /**
+         * 0-based exclusive end, unmapped reads span one base
+         */
+        public int getEnd() {
+            if(isUnmapped()) return pos+1;
+            int length = 0;
+            for(int c : cigar) {
+                int type = c & 0xf;
+                if(type == 0 || type == 2 || type == 3) length += c >>> 4;
+            }
+            return pos+Math.max(1, length);
+        }
+
+        public byte[] encode(String name) throws IOException {
+            int tagLength = sa == null ? 0 : 3+sa.length()+1;
+            int size = 32+name.length()+1+cigar.length*4+(READ_LENGTH+1)/2+READ_LENGTH+tagLength;
+            ByteBuffer buf = ByteBuffer.allocate(4+size).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(size);
+            buf.putInt(ref);
+            buf.putInt(pos);
+            buf.put((byte)(name.length()+1));
+            buf.put((byte)60);
+            buf.putShort((short)(ref < 0 ? 4680 : BamIndex.reg2bin(pos, getEnd())));
+            buf.putShort((short)cigar.length);
+            buf.putShort((short)flag);
+            buf.putInt(READ_LENGTH);
+            buf.putInt(mateRef);
+            buf.putInt(matePos);
+            buf.putInt(0);
+            buf.put(name.getBytes("US-ASCII"));
+            buf.put((byte)0);
+            for(int c : cigar) {
+                buf.putInt(c);
+            }
+            for(int i = 0; i < (READ_LENGTH+1)/2; i++) {
+                buf.put((byte)0x12);
+            }
+            for(int i = 0; i < READ_LENGTH; i++) {
+                buf.put((byte)30);
+            }
+            if(sa != null) {
+                buf.put((byte)'S').put((byte)'A').put((byte)'Z');
+                buf.put(sa.getBytes("US-ASCII"));
+                buf.put((byte)0);
+            }
+            return buf.array();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.buffalo.fusim.FusimTestBase;
+
+/**
+ * Round trips FASTA records through BgzfOutputStream and the BGZF readers,
+ * checking the .fai and .gzi indexes written alongside.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class BgzfOutputStreamTest extends FusimTestBase {
+    private static final int LINE_WIDTH = 60;
+
+    private File fasta;
+    private File fai;
+    private File gzi;
+    private String[] names = new String[]{"seq1", "seq2", "seq3"};
+    private String[] sequences;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        fasta = new File(dir, "out.fa.gz");
+        fai = new File(dir, "out.fa.gz.fai");
+        gzi = new File(dir, "out.fa.gz.gzi");
+
+        // Random bases only compress ~4x so this spans several blocks
+        Random rgen = new Random(42);
+        sequences = new String[]{randomBases(rgen, 150000), randomBases(rgen, 61), randomBases(rgen, 200000)};
+    }
+
+    public void testRoundTrip() throws IOException {
+        write(1);
+        byte[] expected = expectedFasta();
+
+        assertEquals(new String(expected, "US-ASCII"), new String(readAll(new BgzfStreamInputStream(new FileInputStream(fasta))), "US-ASCII"));
+
+        // Any gzip reader can read the concatenated blocks
+        assertEquals(new String(expected, "US-ASCII"), new String(readAll(new GZIPInputStream(new FileInputStream(fasta))), "US-ASCII"));
+    }
+
+    public void testThreadedOutputMatchesSingleThreaded() throws IOException {
+        write(1);
+        byte[] single = FileUtils.readFileToByteArray(fasta);
+        write(4);
+        byte[] threaded = FileUtils.readFileToByteArray(fasta);
+
+        assertEquals(single.length, threaded.length);
+        for(int i = 0; i < single.length; i++) {
+            assertEquals("Byte "+i, single[i], threaded[i]);
+        }
+    }
+
+    public void testEofBlock() throws IOException {
+        write(2);
+        byte[] data = FileUtils.readFileToByteArray(fasta);
+        byte[] eof = new byte[]{
+            0x1f, (byte)0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00,
+            0x00, (byte)0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+            0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00
+        };
+        assertTrue(data.length > eof.length);
+        for(int i = 0; i < eof.length; i++) {
+            assertEquals(eof[i], data[data.length-eof.length+i]);
+        }
+    }
+
+    public void testEmptyStream() throws IOException {
+        BgzfOutputStream out = new BgzfOutputStream(new FileOutputStream(fasta), 1, gzi);
+        out.close();
+
+        assertEquals(28, fasta.length());
+        assertEquals(0, readAll(new BgzfStreamInputStream(new FileInputStream(fasta))).length);
+        assertEquals(0, readGzi().size());
+    }
+
+    public void testFaiIndex() throws IOException {
+        write(2);
+        byte[] expected = expectedFasta();
+
+        List<String> lines = FileUtils.readLines(fai, "US-ASCII");
+        assertEquals(names.length, lines.size());
+        for(int i = 0; i < names.length; i++) {
+            String[] fields = lines.get(i).split("\t");
+            assertEquals(5, fields.length);
+            assertEquals(names[i], fields[0]);
+            assertEquals(sequences[i].length(), Integer.parseInt(fields[1]));
+            assertEquals(LINE_WIDTH, Integer.parseInt(fields[3]));
+            assertEquals(LINE_WIDTH+1, Integer.parseInt(fields[4]));
+
+            // The offset (in uncompressed bytes) is the first base
+            int offset = Integer.parseInt(fields[2]);
+            assertEquals(sequences[i].substring(0, LINE_WIDTH), new String(expected, offset, LINE_WIDTH, "US-ASCII"));
+            assertEquals('\n', expected[offset-1]);
+        }
+    }
+
+    public void testGziIndex() throws IOException {
+        write(4);
+        byte[] expected = expectedFasta();
+
+        // One entry for every block but the first
+        List<long []> index = readGzi();
+        int blocks = (expected.length+BgzfOutputStream.MAX_BLOCK_INPUT-1)/BgzfOutputStream.MAX_BLOCK_INPUT;
+        assertTrue(blocks > 2);
+        assertEquals(blocks-1, index.size());
+
+        AsyncBgzfInputStream in = new AsyncBgzfInputStream(fasta);
+        try {
+            long previous = 0;
+            for(long[] entry : index) {
+                assertTrue(entry[0] > previous);
+                assertEquals(0, entry[1] % BgzfOutputStream.MAX_BLOCK_INPUT);
+                previous = entry[0];
+
+                // Each entry is the start of a block holding the indexed bytes
+                in.seek(entry[0] << 16);
+                assertEquals(entry[0] << 16, in.getFilePointer());
+                byte[] buf = new byte[100];
+                int n = IOUtils.read(in, buf);
+                assertTrue(n > 0);
+                assertEquals(new String(expected, (int)entry[1], n, "US-ASCII"), new String(buf, 0, n, "US-ASCII"));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(int threads) throws IOException {
+        FastaWriter writer = new FastaWriter(new BgzfOutputStream(new FileOutputStream(fasta), threads, gzi), LINE_WIDTH, fai);
+        for(int i = 0; i < names.length; i++) {
+            writer.write(names[i]+" test sequence "+i, sequences[i]);
+        }
+        writer.close();
+    }
+
+    private byte[] expectedFasta() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < names.length; i++) {
+            buf.append('>').append(names[i]).append(" test sequence ").append(i).append('\n');
+            for(int pos = 0; pos < sequences[i].length(); pos += LINE_WIDTH) {
+                buf.append(sequences[i], pos, Math.min(pos+LINE_WIDTH, sequences[i].length())).append('\n');
+            }
+        }
+        return buf.toString().getBytes("US-ASCII");
+    }
+
+    /**
+     * Pairs of compressed and uncompressed offsets
+     */
+    private List<long []> readGzi() throws IOException {
+        List<long []> index = new ArrayList<long []>();
+        DataInputStream in = new DataInputStream(new FileInputStream(gzi));
+        try {
+            long n = Long.reverseBytes(in.readLong());
+            for(long i = 0; i < n; i++) {
+                index.add(new long[]{Long.reverseBytes(in.readLong()), Long.reverseBytes(in.readLong())});
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 Andrew E. Bruno <aebruno2@buffalo.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package edu.buffalo.fusim.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.buffalo.fusim.FusimTestBase;
+
+/**
+ * Decodes .2bit files built here, a hand packed one and larger ones packed
+ * from random sequence with N and soft masked blocks, and checks every base
+ * against the source sequence.
+ *
+ * @author Andrew E. Bruno
+ *
+ */
+public class TwoBitReaderTest extends FusimTestBase {
+    public void testKnownFile() throws IOException {
+        // chr1 = ACGTNNac: N block [4,6), mask block [6,8)
+        ByteBuffer buf = ByteBuffer.allocate(59).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0x1A412743).putInt(0).putInt(1).putInt(0);
+        buf.put((byte)4).put("chr1".getBytes("US-ASCII")).putInt(25);
+        buf.putInt(8);
+        buf.putInt(1).putInt(4).putInt(2);
+        buf.putInt(1).putInt(6).putInt(2);
+        buf.putInt(0);
+        buf.put((byte)0x9c).put((byte)0x09);
+        File file = new File(dir, "known.2bit");
+        FileUtils.writeByteArrayToFile(file, buf.array());
+
+        TwoBitReader reader = new TwoBitReader(file);
+        try {
+            assertTrue(reader.hasSequence("chr1"));
+            assertFalse(reader.hasSequence("chr2"));
+            assertEquals(8, reader.getLength("chr1"));
+            assertEquals("ACGTNNac", read(reader, "chr1", 0, 8));
+            assertEquals("GTNNa", read(reader, "chr1", 2, 7));
+            assertEquals("N", read(reader, "chr1", 5, 6));
+            assertEquals("c", read(reader, "chr1", 7, 8));
+            assertEquals(0, reader.read("chr1", 3, 3));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        Random rgen = new Random(5);
+        String[] names = new String[]{"chr1", "chr2", "chrM"};
+        String[] sequences = new String[]{randomSequence(rgen, 10007), randomSequence(rgen, 3), randomSequence(rgen, 4096)};
+
+        // Both byte orders and both versions of the offsets
+        for(int v = 0; v < 4; v++) {
+            ByteOrder order = v % 2 == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            File file = new File(dir, "test"+v+".2bit");
+            FileUtils.writeByteArrayToFile(file, pack(names, sequences, order, v/2));
+
+            TwoBitReader reader = new TwoBitReader(file);
+            try {
+                for(int i = 0; i < names.length; i++) {
+                    String seq = sequences[i];
+                    assertEquals(seq.length(), reader.getLength(names[i]));
+                    assertEquals(seq, read(reader, names[i], 0, seq.length()));
+
+                    // Slices starting and ending at every offset within a byte
+                    for(int k = 0; k < 200; k++) {
+                        int start = rgen.nextInt(seq.length());
+                        int end = start+rgen.nextInt(Math.min(seq.length()-start, 300)+1);
+                        assertEquals(names[i]+":"+start+"-"+end, seq.substring(start, end), read(reader, names[i], start, end));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public void testInvalidRegion() throws IOException {
+        File file = new File(dir, "test.2bit");
+        FileUtils.writeByteArrayToFile(file, pack(new String[]{"chr1"}, new String[]{"ACGTACGT"}, ByteOrder.LITTLE_ENDIAN, 0));
+
+        TwoBitReader reader = new TwoBitReader(file);
+        try {
+            try {
+                reader.read("chr1", 4, 9);
+                fail("Expected region past the end to be rejected");
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                reader.read("chr2", 0, 1);
+                fail("Expected missing sequence to be rejected");
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testInvalidSignature() throws IOException {
+        File file = new File(dir, "bad.2bit");
+        FileUtils.writeByteArrayToFile(file, new byte[16]);
+        try {
+            new TwoBitReader(file);
+            fail("Expected invalid signature to be rejected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    private static String read(TwoBitReader reader, String name, int start, int end) throws IOException {
+        int n = reader.read(name, start, end);
+        return new String(reader.getBuffer(), 0, n, "US-ASCII");
+    }
+
+    /**
+     * Random bases with runs of N and lower case, including masked N
+     */
+    private static String randomSequence(Random rgen, int length) {
+        StringBuilder buf = new StringBuilder(length);
+        while(buf.length() < length) {
+            int run = 1+rgen.nextInt(40);
+            int kind = rgen.nextInt(4);
+            for(int i = 0; i < run && buf.length() < length; i++) {
+                char base = kind == 3 ? 'N' : "ACGT".charAt(rgen.nextInt(4));
+                buf.append(kind == 1 || (kind == 3 && run % 2 == 0) ? Character.toLowerCase(base) : base);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Pack sequences into a .2bit file
+     */
+    private static byte[] pack(String[] names, String[] sequences, ByteOrder order, int version) throws IOException {
+        int offsetSize = version == 0 ? 4 : 8;
+        List<byte []> records = new ArrayList<byte []>();
+        int indexSize = 0;
+        int recordsSize = 0;
+        for(int i = 0; i < names.length; i++) {
+            indexSize += 1+names[i].length()+offsetSize;
+            byte[] record = packSequence(sequences[i], order);
+            records.add(record);
+            recordsSize += record.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(16+indexSize+recordsSize).order(order);
+        buf.putInt(0x1A412743).putInt(version).putInt(names.length).putInt(0);
+        long offset = 16+indexSize;
+        for(int i = 0; i < names.length; i++) {
+            buf.put((byte)names[i].length()).put(names[i].getBytes("US-ASCII"));
+            if(version == 0) {
+                buf.putInt((int)offset);
+            } else {
+                buf.putLong(offset);
+            }
+            offset += records.get(i).length;
+        }
+        for(byte[] record : records) {
+            buf.put(record);
+        }
+        return buf.array();
+    }
+
+    private static byte[] packSequence(String seq, ByteOrder order) {
+        List<int []> nBlocks = blocks(seq, true);
+        List<int []> maskBlocks = blocks(seq, false);
+
+        ByteBuffer buf = ByteBuffer.allocate(4+4+8*nBlocks.size()+4+8*maskBlocks.size()+4+(seq.length()+3)/4).order(order);
+        buf.putInt(seq.length());
+        buf.putInt(nBlocks.size());
+        for(int[] b : nBlocks) buf.putInt(b[0]);
+        for(int[] b : nBlocks) buf.putInt(b[1]);
+        buf.putInt(maskBlocks.size());
+        for(int[] b : maskBlocks) buf.putInt(b[0]);
+        for(int[] b : maskBlocks) buf.putInt(b[1]);
+        buf.putInt(0);
+
+        // T=0 C=1 A=2 G=3, N is packed as T
+        int packed = 0;
+        for(int i = 0; i < seq.length(); i++) {
+            packed = (packed << 2) | Math.max(0, "TCAG".indexOf(Character.toUpperCase(seq.charAt(i))));
+            if(i % 4 == 3) {
+                buf.put((byte)packed);
+                packed = 0;
+            }
+        }
+        if(seq.length() % 4 != 0) {
+            buf.put((byte)(packed << (2*(4-seq.length() % 4))));
+        }
+        return buf.array();
+    }
+
+    /**
+     * Start and size of the runs of N (or lower case) bases
+     */
+    private static List<int []> blocks(String seq, boolean n) {
+        List<int []> list = new ArrayList<int []>();
+        int start = -1;
+        for(int i = 0; i <= seq.length(); i++) {
+            boolean in = false;
+            if(i < seq.length()) {
+                char c = seq.charAt(i);
+                in = n ? Character.toUpperCase(c) == 'N' : Character.isLowerCase(c);
+            }
+            if(in && start < 0) {
+                start = i;
+            } else if(!in && start >= 0) {
+                list.add(new int[]{start, i-start});
+                start = -1;
+            }
+        }
+        return list;
+    }
+}